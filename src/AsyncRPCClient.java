@@ -1,98 +1,191 @@
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * AsyncRPCClient - Asynchronous RPC client
  * <p>
- * 1) asyncFoo(iterations) -> returns an rpcId
- * 2) asyncAdd(i, j)       -> returns an rpcId
- * 3) asyncSort(array)     -> returns an rpcId
- * 4) getResult(rpcId)     -> returns the result or "NOT_READY"
+ * 1) submitFoo(iterations) -> returns an rpcId
+ * 2) submitAdd(i, j)       -> returns an rpcId
+ * 3) submitSort(array)     -> returns an rpcId
+ * 4) getResult(rpcId)      -> returns the result or "NOT_READY"
+ * 5) cancel(rpcId)         -> stops the job; its result becomes "ERROR - Cancelled"
+ * </p>
+ * <p>
+ * handleAsyncFoo/handleAsyncAdd/handleAsyncSort skip the polling: they submit
+ * over one long-lived "subscribe" connection and return a future that the
+ * server completes by pushing "RESULT <rpcId> <result>" as soon as it is done.
+ * </p>
+ * <p>
+ * Submissions and polls borrow a connection from a {@link ConnectionPool}
+ * instead of connecting for every call.
  * </p>
  */
-public class AsyncRPCClient {
+public class AsyncRPCClient implements Closeable {
 	private final String serverHost;
 	private final int serverPort;
+	private final ConnectionPool pool;
+
+	// Long-lived push connection, opened on the first handleAsync* call
+	private Socket pushSocket;
+	private Codec pushCodec;
+	// Submissions are answered in order with their rpcId...
+	private final Queue<CompletableFuture<String>> awaitingRpcId = new ConcurrentLinkedQueue<>();
+	// ...and results are then pushed by rpcId
+	private final ConcurrentHashMap<Integer, CompletableFuture<String>> awaitingResult = new ConcurrentHashMap<>();
 
 	public AsyncRPCClient(String host, int port) {
+		this(host, port, ConnectionPool.shared());
+	}
+
+	public AsyncRPCClient(String host, int port, ConnectionPool pool) {
 		this.serverHost = host;
 		this.serverPort = port;
+		this.pool = pool;
 	}
 
-	public int handleAsyncFoo(int iterations) throws IOException {
-		String request = "REQUEST: foo " + iterations;
-		String response = sendRequest(request);
+	public int submitFoo(int iterations) throws IOException {
+		RpcResponse response = sendRequest(RpcRequest.of("foo", iterations));
 		// response should be "RESPONSE: <rpcId>"
 		return parseRpcId(response);
 	}
 
-	public int handleAsyncAdd(int i, int j) throws IOException {
-		String request = "REQUEST: add " + i + " " + j;
-		String response = sendRequest(request);
+	public int submitAdd(int i, int j) throws IOException {
+		RpcResponse response = sendRequest(RpcRequest.of("add", i, j));
 		return parseRpcId(response);
 	}
 
-	public int handleAsyncSort(int[] array) throws IOException {
-		StringBuilder sb = new StringBuilder("REQUEST: sort");
-		for (int val : array) {
-			sb.append(" ").append(val);
-		}
-		String response = sendRequest(sb.toString());
+	public int submitSort(int[] array) throws IOException {
+		RpcResponse response = sendRequest(RpcRequest.of("sort", array));
 		return parseRpcId(response);
 	}
 
+	/**
+	 * Run foo remotely; the future completes with e.g. "OK: foo=..." once the server pushes it.
+	 */
+	public CompletableFuture<String> handleAsyncFoo(int iterations) throws IOException {
+		return submitWithPush(RpcRequest.of("foo", iterations));
+	}
+
+	public CompletableFuture<String> handleAsyncAdd(int i, int j) throws IOException {
+		return submitWithPush(RpcRequest.of("add", i, j));
+	}
+
+	public CompletableFuture<String> handleAsyncSort(int[] array) throws IOException {
+		return submitWithPush(RpcRequest.of("sort", array));
+	}
+
+	private synchronized CompletableFuture<String> submitWithPush(RpcRequest request) throws IOException {
+		if (pushCodec == null) {
+			openPushConnection();
+		}
+		CompletableFuture<String> result = new CompletableFuture<>();
+		awaitingRpcId.add(result);
+		try {
+			pushCodec.writeRequest(request);
+		} catch (IOException e) {
+			awaitingRpcId.remove(result);
+			throw e;
+		}
+		return result;
+	}
+
+	private void openPushConnection() throws IOException {
+		pushSocket = new Socket(serverHost, serverPort);
+		pushSocket.setTcpNoDelay(true);
+		pushCodec = new TextCodec(pushSocket.getInputStream(), pushSocket.getOutputStream());
+		pushCodec.writeRequest(RpcRequest.of("subscribe"));
+		RpcResponse ack = pushCodec.readResponse();
+		if (ack == null || !"SUBSCRIBED".equals(ack.text())) {
+			pushSocket.close();
+			pushCodec = null;
+			throw new IOException("Server did not accept subscribe: " + (ack == null ? "no response" : ack.payload()));
+		}
+		Thread reader = new Thread(this::readPushes, "async-rpc-push-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	// "RESPONSE: <rpcId>" pairs with the oldest submission; "RESULT <rpcId> ..." completes it
+	private void readPushes() {
+		IOException failure = new IOException("Push connection closed");
+		try {
+			RpcResponse response;
+			while ((response = pushCodec.readResponse()) != null) {
+				if (response.isPushedResult()) {
+					CompletableFuture<String> result = awaitingResult.remove(response.requestId());
+					if (result != null) {
+						result.complete(response.payload());
+					}
+					continue;
+				}
+				CompletableFuture<String> submitted = awaitingRpcId.poll();
+				if (submitted == null) {
+					System.err.println("[AsyncClient] Unexpected response: " + response.payload());
+				} else if (response.values() == null) {
+					submitted.completeExceptionally(new IOException("Submit failed: " + response.payload()));
+				} else {
+					awaitingResult.put(response.values()[0], submitted);
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+		for (CompletableFuture<String> future : awaitingRpcId) {
+			future.completeExceptionally(failure);
+		}
+		for (CompletableFuture<String> future : awaitingResult.values()) {
+			future.completeExceptionally(failure);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (pushSocket != null) {
+			pushSocket.close();
+		}
+	}
+
 	/**
 	 * Poll for the result. If the result is not ready, returns "NOT_READY".
 	 * Otherwise, returns the actual result string (e.g. "OK: foo=..." or "8" or "[1, 2, 3]").
 	 */
 	public String getResult(int rpcId) throws IOException {
-		String request = "REQUEST: getResult " + rpcId;
-		String response = sendRequest(request);
+		RpcResponse response = sendRequest(RpcRequest.of("getResult", rpcId));
 		// response might be "RESPONSE: NOT_READY" or "RESPONSE: <some result>"
-		return parseResponse(response);
+		return response.payload();
 	}
 
 	/**
-	 * Low-level helper to open a socket, send a request line, and read one response line.
+	 * Stop a job that is no longer wanted, so it frees its worker.
+	 *
+	 * @return false if the job had already finished (or never existed)
 	 */
-	private String sendRequest(String request) throws IOException {
-		try (Socket socket = new Socket(serverHost, serverPort);
-		     PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-		     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-			out.println(request);
-			String line = in.readLine();
-			if (line == null) {
-				throw new IOException("No response from server");
-			}
-			return line; // e.g. "RESPONSE: 1001" or "RESPONSE: NOT_READY"
-		}
+	public boolean cancel(int rpcId) throws IOException {
+		return "CANCELLED".equals(sendRequest(RpcRequest.of("cancel", rpcId)).payload());
 	}
 
-	private int parseRpcId(String serverLine) throws IOException {
-		// e.g. "RESPONSE: 1001"
-		if (!serverLine.startsWith("RESPONSE:")) {
-			throw new IOException("Invalid server response: " + serverLine);
-		}
-		String val = serverLine.substring("RESPONSE:".length()).trim();
-		try {
-			return Integer.parseInt(val);
-		} catch (NumberFormatException e) {
-			throw new IOException("Invalid rpcId in response: " + val);
-		}
+	/**
+	 * Low-level helper: one request/response exchange on a pooled connection.
+	 * Not retried once written: a submission may already be queued, and a
+	 * fetched result is gone from the server.
+	 */
+	private RpcResponse sendRequest(RpcRequest request) throws IOException {
+		return pool.call(ConnectionPool.Key.of(serverHost, serverPort), request);
 	}
 
-	private String parseResponse(String serverLine) throws IOException {
-		// e.g. "RESPONSE: NOT_READY" or "RESPONSE: 8" or "RESPONSE: [1, 2, 3]"
-		if (!serverLine.startsWith("RESPONSE:")) {
-			throw new IOException("Invalid server response: " + serverLine);
+	private int parseRpcId(RpcResponse response) throws IOException {
+		// e.g. "RESPONSE: 1001"
+		if (response.values() == null || response.values().length != 1) {
+			throw new IOException("Invalid rpcId in response: " + response.payload());
 		}
-		return serverLine.substring("RESPONSE:".length()).trim();
+		return response.values()[0];
 	}
 
 	// Quick test
@@ -100,16 +193,56 @@ public class AsyncRPCClient {
 		String host = Constants.IP.CLIENT_IP;
 		int port = Constants.Ports.RPC_PORT;
 
-		AsyncRPCClient client = new AsyncRPCClient(host, port);
-
 		int numberOfCalls = 5;
 		int iterations = 500_000_000;
+		boolean poll = false;
+		if (args.length != 0) {
+			numberOfCalls = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			iterations = Integer.parseInt(args[1]);
+		}
+		if (args.length > 2) {
+			poll = "poll".equals(args[2]);
+		}
+
+		try (AsyncRPCClient client = new AsyncRPCClient(host, port)) {
+			if (poll) {
+				runPolling(client, numberOfCalls, iterations);
+			} else {
+				runPush(client, numberOfCalls, iterations);
+			}
+		}
+	}
+
+	// Submit everything, then wait for the server to push each result
+	private static void runPush(AsyncRPCClient client, int numberOfCalls, int iterations) throws IOException {
+		long sendStart = System.currentTimeMillis();
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int i = 0; i < numberOfCalls; i++) {
+			int call = i;
+			results.add(client.handleAsyncFoo(iterations).whenComplete((res, e) ->
+					System.out.println("[AsyncClientPerf] Call " + call + " completed with: "
+							+ (e == null ? res : "FAILED " + e.getMessage()))));
+		}
+		long sendEnd = System.currentTimeMillis();
+		System.out.println("[AsyncClientPerf] Sent " + numberOfCalls + " asyncFoo() requests in "
+				+ (sendEnd - sendStart) + " ms");
+
+		CompletableFuture.allOf(results.toArray(CompletableFuture<?>[]::new)).exceptionally(e -> null).join();
+		long totalTime = System.currentTimeMillis() - sendStart;
+		System.out.println("[AsyncClient] All " + numberOfCalls + " calls finished. " +
+				"Total time = " + totalTime + " ms");
+	}
+
+	private static void runPolling(AsyncRPCClient client, int numberOfCalls, int iterations)
+			throws IOException, InterruptedException {
 		List<Integer> rpcIds = new ArrayList<>();
 
 		// 1) Send all requests up front
 		long sendStart = System.currentTimeMillis();
 		for (int i = 0; i < numberOfCalls; i++) {
-			int rpcId = client.handleAsyncFoo(iterations);
+			int rpcId = client.submitFoo(iterations);
 			rpcIds.add(rpcId);
 		}
 		long sendEnd = System.currentTimeMillis();
@@ -143,6 +276,6 @@ public class AsyncRPCClient {
 
 		System.out.println("[AsyncClient] All " + numberOfCalls + " calls finished. " +
 				"Total time = " + totalTime + " ms");
+		System.out.println(client.pool.stats());
 	}
 }
-
@@ -1,12 +1,24 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * AsyncRPCServer - Asynchronous RPC example
@@ -18,120 +30,356 @@ import java.util.concurrent.atomic.AtomicInteger;
  *  - "REQUEST: sort <list of int>" -> same idea.
  *  - "REQUEST: getResult <rpcId>" -> returns "RESPONSE: <result>" if ready,
  *       or "RESPONSE: NOT_READY" if not yet computed.
+ *  - "REQUEST: watch <rpcId>" -> returns "RESPONSE: <rpcId>", then pushes
+ *       "RESULT <rpcId> <result>" on this connection as soon as the job is done.
+ *  - "REQUEST: subscribe" -> returns "RESPONSE: SUBSCRIBED"; from then on every
+ *       job submitted on this connection is watched automatically.
+ *  - "REQUEST: stats" -> returns queue depth, live results, evictions etc.
+ *  - "REQUEST: cancel <rpcId>" -> returns "RESPONSE: CANCELLED"; the job stops
+ *       at its next checkpoint and its result becomes "ERROR - Cancelled".
+ * A submission may end with "DEADLINE:<ms>": a job still queued or running
+ * after that long stops with the result "ERROR - Deadline exceeded".
+ * Jobs run on a bounded pool (--workers=N, --queue-size=N); when it is full
+ * a submission is answered with "RESPONSE: BUSY". Results are removed once
+ * fetched or pushed, and expire after --result-ttl=seconds or once more than
+ * --max-results are stored.
+ * foo is pure, so its results are kept in a {@link MemoCache} (--memo-size=N,
+ * 0 to disable) and identical jobs running at once share one computation.
+ * With --batch, add jobs skip the pool and run in micro-batches
+ * (--batch-window-us=N, --batch-max=N).
+ * A large foo is split into pieces that run on a fork-join pool, at most
+ * --split-parallelism=N at once per job (default: all cores, 1 to disable),
+ * once it has more than --split-threshold=N iterations.
+ * The same calls are also accepted as {@link BinaryCodec} frames.
  * </p>
  */
 public class AsyncRPCServer {
 	public static final int PORT = Constants.Ports.RPC_PORT;
 
-	// A thread-safe map from rpcId -> result string
-	private static final ConcurrentHashMap<Integer, String> rpcIDHashMap = new ConcurrentHashMap<>();
+	// Finished results by rpcId, bounded by TTL and size
+	private static ResultStore resultStore;
+	// Results of pure methods, or null with --memo-size=0
+	private static MemoCache memo;
+	// Small jobs collected into micro-batches instead of one pool task each, or null without --batch
+	private static MicroBatcher<SmallJob> batcher;
+	// Splits a large foo over several cores, or null with --split-parallelism=1
+	private static RangeSplitter splitter;
+
+	private record SmallJob(int rpcId, Supplier<String> job, CancellationToken token) {
+	}
+
+	// rpcIds submitted but not yet finished
+	private static final Set<Integer> runningJobs = ConcurrentHashMap.newKeySet();
+	// rpcId -> token of a job not yet finished, for "cancel" and the job's deadline
+	private static final ConcurrentHashMap<Integer, CancellationToken> jobTokens = new ConcurrentHashMap<>();
+	private static final AtomicLong rejectedJobs = new AtomicLong();
+
+	// rpcId -> connections waiting for a pushed result
+	private static final ConcurrentHashMap<Integer, List<Consumer<String>>> watchers = new ConcurrentHashMap<>();
 
 	// Generate unique RPC IDs
 	private static final AtomicInteger requestIdGenerator = new AtomicInteger(Constants.Config.RPC_ID);
 
+	// Background jobs answer with an rpcId; the rest answer directly
+	private static final MethodRegistry<RpcResponse> methods = MethodRegistry.forResponses()
+			.registerInt("foo", (requestId, iterations) -> submitJob(requestId, () -> "OK: foo=" + memoFoo(iterations)))
+			.registerIntInt("add", (requestId, i, j) -> submitSmallJob(requestId, () -> String.valueOf(add(i, j))))
+			.registerIntArray("sort", (requestId, arr) -> submitJob(requestId, () -> {
+				SortEngine.sort(arr);
+				return Arrays.toString(arr);
+			}))
+			.registerInt("getResult", AsyncRPCServer::getResult)
+			.registerInt("watch", AsyncRPCServer::watchable)
+			.registerNoArgs("stats", requestId -> RpcResponse.ofText(requestId, stats()))
+			.registerInt("cancel", AsyncRPCServer::cancel);
+	// Methods whose answer is an rpcId, watched automatically after "subscribe"
+	private static final BitSet jobMethods = new BitSet();
+
+	static {
+		jobMethods.set(MethodRegistry.idOf("foo"));
+		jobMethods.set(MethodRegistry.idOf("add"));
+		jobMethods.set(MethodRegistry.idOf("sort"));
+	}
+
+	// Connection handlers, chosen with --executor
+	private static ExecutorService connectionExecutor;
+	// Background jobs: a fixed number of workers behind a bounded queue
+	private static ThreadPoolExecutor jobExecutor;
+	// Encodings allowed with --compress, or null for any the client asks for
+	private static List<Compression.Encoding> compression;
+
 	public static void main(String[] args) {
-		System.out.println("[AsyncRPCServer] Listening on port " + PORT);
+		ServerOptions options = ServerOptions.parse(args);
+		if (options.has("nio")) {
+			startNio(options);
+			return;
+		}
+		configureJobs(options);
+		compression = Compression.forOptions(options);
+		connectionExecutor = ExecutionStrategy.executorFor(options);
+		System.out.println("[AsyncRPCServer] Listening on port " + PORT + " (executor: "
+				+ ExecutionStrategy.fromOptions(options) + ")");
 		try (ServerSocket serverSocket = new ServerSocket(PORT)) {
 			while (true) {
 				Socket clientSocket = serverSocket.accept();
+				// Small responses and pushes must not wait for the client's delayed ACK
+				clientSocket.setTcpNoDelay(true);
 				System.out.println("[Server] Accepted connection from " + clientSocket.getInetAddress()
 						+ ":" + clientSocket.getPort());
-				// handle each client in a separate thread
-				new Thread(() -> handleClient(clientSocket)).start();
+				// handle each client on the configured executor
+				connectionExecutor.execute(() -> handleClient(clientSocket));
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			connectionExecutor.shutdown();
+			jobExecutor.shutdown();
 		}
 	}
 
-	private static void handleClient(Socket socket) {
-		try (Socket clientSocket = socket;
-		     BufferedReader inputReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-		     PrintWriter outputWriter = new PrintWriter(clientSocket.getOutputStream(), true)) {
-
-			String request = inputReader.readLine();
-			if (request == null || !request.startsWith("REQUEST:")) {
-				outputWriter.println("RESPONSE: ERROR - Invalid request");
-				return;
-			}
+	private static void configureJobs(ServerOptions options) {
+		int workers = options.getInt("workers", Runtime.getRuntime().availableProcessors());
+		int queueSize = options.getInt("queue-size", Constants.Config.JOB_QUEUE_SIZE);
+		// AbortPolicy: a full queue throws RejectedExecutionException, which we answer with BUSY
+		jobExecutor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+		memo = MemoCache.forOptions(options);
+		splitter = RangeSplitter.forOptions(options, null);
+		batcher = MicroBatcher.forOptions("job", options,
+				batch -> batch.forEach(small -> complete(small.rpcId(), runJob(small.token(), small.job()))));
+		resultStore = new ResultStore(options.getInt("result-ttl", Constants.Config.RESULT_TTL_SECONDS),
+				TimeUnit.SECONDS, options.getInt("max-results", Constants.Config.MAX_RESULTS));
+		System.out.println("[AsyncRPCServer] " + workers + " job workers, queue size " + queueSize
+				+ (splitter != null ? ", " + splitter.stats() : ""));
+	}
 
-			// e.g. "REQUEST: foo 100000"
-			String[] parts = request.substring("REQUEST:".length()).trim().split("\\s+");
-			String method = parts[0];
-
-			switch (method) {
-				case "foo": {
-					// "foo <iterations>"
-					int iterations = Integer.parseInt(parts[1]);
-					int rpcId = requestIdGenerator.getAndIncrement();
-					// Immediately respond with the rpcId
-					outputWriter.println("RESPONSE: " + rpcId);
-
-					// Asynchronously compute foo
-					new Thread(() -> {
-						long dummy = foo(iterations);
-						// Store the result
-						rpcIDHashMap.put(rpcId, "OK: foo=" + dummy);
-					}).start();
-
-					break;
-				}
-				case "add": {
-					// "add <i> <j>"
-					int i = Integer.parseInt(parts[1]);
-					int j = Integer.parseInt(parts[2]);
-					int rpcId = requestIdGenerator.getAndIncrement();
-					outputWriter.println("RESPONSE: " + rpcId);
-
-					// Asynchronously compute add
-					new Thread(() -> {
-						int sum = add(i, j);
-						rpcIDHashMap.put(rpcId, String.valueOf(sum));
-					}).start();
-
-					break;
-				}
-				case "sort": {
-					// "sort 5 9 1 3 2"
-					int[] arr = new int[parts.length - 1];
-					for (int k = 1; k < parts.length; k++) {
-						arr[k - 1] = Integer.parseInt(parts[k]);
-					}
-					int rpcId = requestIdGenerator.getAndIncrement();
-					outputWriter.println("RESPONSE: " + rpcId);
-
-					// Asynchronously sort
-					new Thread(() -> {
-						Arrays.sort(arr);
-						rpcIDHashMap.put(rpcId, Arrays.toString(arr));
-					}).start();
-
-					break;
+	// Non-blocking mode: requests only hand out rpcIds, so they can be answered on a small pool
+	private static void startNio(ServerOptions options) {
+		configureJobs(options);
+		ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			new NioServer(PORT, new RpcNioHandler(nioDispatcher, workers),
+					options.getInt("io-threads", Constants.Config.IO_THREADS)).start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			workers.shutdown();
+			jobExecutor.shutdown();
+		}
+	}
+
+	private static void handleClient(Socket socket) {
+		try (Socket clientSocket = socket) {
+			// An optional compression handshake, then the first byte decides between the text and the binary protocol
+			Compression.Streams streams = Compression.accept(clientSocket.getInputStream(),
+					clientSocket.getOutputStream(), compression);
+			Codec codec = Codec.open(streams.in(), streams.out());
+			boolean subscribed = false;
+			RpcRequest request;
+			while ((request = codec.readRequest()) != null) {
+				if (request.methodId() == MethodRegistry.SUBSCRIBE) {
+					subscribed = true;
+					reply(codec, RpcResponse.ofText(request.requestId(), "SUBSCRIBED"));
+					continue;
 				}
-				case "getResult": {
-					// "getResult <rpcId>"
-					int queryId = Integer.parseInt(parts[1]);
-					String result = rpcIDHashMap.get(queryId);
-					if (result == null) {
-						outputWriter.println("RESPONSE: NOT_READY");
-					} else {
-						outputWriter.println("RESPONSE: " + result);
-					}
-					break;
+				// Not tied to the connection: jobs outlive it and are fetched by rpcId
+				RpcResponse response = execute(request, CancellationToken.forRequest(null, request));
+				// The rpcId goes out before any push, so the client always knows the id first
+				reply(codec, response);
+				if (watchesResult(request, response, subscribed)) {
+					int rpcId = response.values()[0];
+					watch(rpcId, result -> reply(codec, RpcResponse.ofPushedResult(rpcId, result)));
 				}
-				default:
-					outputWriter.println("RESPONSE: ERROR - Unknown method");
 			}
-
-		} catch (IOException | NumberFormatException e) {
+			if (!streams.encoding().isIdentity()) {
+				System.out.println("[AsyncRPCServer] Connection closed, " + streams.stats());
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	// Simulated "foo" that returns a dummy sum for demonstration
-	private static long foo(int iterations) {
+	// Job threads push results on the same connection, so writes are serialized
+	private static void reply(Codec codec, RpcResponse response) {
+		synchronized (codec) {
+			try {
+				codec.writeResponse(response);
+			} catch (IOException e) {
+				System.err.println("[AsyncRPCServer] Could not deliver response: " + e.getMessage());
+			}
+		}
+	}
+
+	// Run a job on the bounded pool: "<rpcId>" if accepted, "BUSY" if the queue is full
+	private static RpcResponse submitJob(int requestId, Supplier<String> job) {
+		int rpcId = requestIdGenerator.getAndIncrement();
+		// The submitting request's token, so its deadline covers the time spent queued
+		CancellationToken token = CancellationToken.current();
+		runningJobs.add(rpcId);
+		jobTokens.put(rpcId, token);
+		try {
+			jobExecutor.execute(() -> complete(rpcId, runJob(token, job)));
+		} catch (RejectedExecutionException e) {
+			runningJobs.remove(rpcId);
+			jobTokens.remove(rpcId);
+			rejectedJobs.incrementAndGet();
+			return RpcResponse.ofText(requestId, "BUSY");
+		}
+		return RpcResponse.ofValue(requestId, rpcId);
+	}
+
+	// Like submitJob, but run in the next micro-batch when batching is on
+	private static RpcResponse submitSmallJob(int requestId, Supplier<String> job) {
+		if (batcher == null) {
+			return submitJob(requestId, job);
+		}
+		int rpcId = requestIdGenerator.getAndIncrement();
+		CancellationToken token = CancellationToken.current();
+		runningJobs.add(rpcId);
+		jobTokens.put(rpcId, token);
+		if (!batcher.submit(new SmallJob(rpcId, job, token))) {
+			runningJobs.remove(rpcId);
+			jobTokens.remove(rpcId);
+			return submitJob(requestId, job);
+		}
+		return RpcResponse.ofValue(requestId, rpcId);
+	}
+
+	// A job cancelled before or while it runs finishes with "ERROR - <reason>"
+	private static String runJob(CancellationToken token, Supplier<String> job) {
+		try {
+			token.throwIfCancelled();
+			return token.call(job);
+		} catch (CancellationException e) {
+			return "ERROR - " + e.getMessage();
+		}
+	}
+
+	// Store a finished job's result and push it to everyone watching it
+	private static void complete(int rpcId, String result) {
+		resultStore.put(rpcId, result);
+		runningJobs.remove(rpcId);
+		jobTokens.remove(rpcId);
+		List<Consumer<String>> listeners = watchers.remove(rpcId);
+		if (listeners != null && !listeners.isEmpty()) {
+			listeners.forEach(listener -> listener.accept(result));
+			// Delivered, so nobody needs to fetch it any more
+			resultStore.take(rpcId);
+		}
+	}
+
+	// Call the listener exactly once with the job's result, now if it is already done
+	private static void watch(int rpcId, Consumer<String> listener) {
+		AtomicBoolean delivered = new AtomicBoolean(false);
+		Consumer<String> once = result -> {
+			if (delivered.compareAndSet(false, true)) {
+				listener.accept(result);
+			}
+		};
+		watchers.computeIfAbsent(rpcId, id -> new CopyOnWriteArrayList<>()).add(once);
+		// The job may have finished before we registered
+		String result = resultStore.peek(rpcId);
+		if (result != null) {
+			watchers.remove(rpcId);
+			once.accept(result);
+			resultStore.take(rpcId);
+		}
+	}
+
+	// Entry point for the NIO handler: the same calls, pushes and "subscribe" as a blocking connection
+	private static final RpcNioHandler.Dispatcher nioDispatcher = new RpcNioHandler.Dispatcher() {
+		@Override
+		public RpcResponse dispatch(RpcRequest request, RpcNioHandler.Session session) {
+			if (request.methodId() == MethodRegistry.SUBSCRIBE) {
+				session.attach(Boolean.TRUE);
+				return RpcResponse.ofText(request.requestId(), "SUBSCRIBED");
+			}
+			return execute(request, CancellationToken.forRequest(null, request));
+		}
+
+		@Override
+		public void replied(RpcRequest request, RpcResponse response, RpcNioHandler.Session session) {
+			if (watchesResult(request, response, Boolean.TRUE.equals(session.attachment()))) {
+				int rpcId = response.values()[0];
+				watch(rpcId, result -> session.push(RpcResponse.ofPushedResult(rpcId, result)));
+			}
+		}
+	};
+
+	// "watch", or a job submitted on a subscribed connection; errors and "BUSY" (a full pool) carry no rpcId
+	private static boolean watchesResult(RpcRequest request, RpcResponse response, boolean subscribed) {
+		int methodId = request.methodId();
+		return response.values() != null
+				&& (methodId == MethodRegistry.WATCH || subscribed && jobMethods.get(methodId));
+	}
+
+	// e.g. foo(100000) -> <rpcId>, getResult(<rpcId>) -> "<result>" or "NOT_READY"
+	private static RpcResponse execute(RpcRequest request, CancellationToken token) {
+		return token.call(() -> methods.dispatch(request));
+	}
+
+	// "cancel <rpcId>": the job stops at its next checkpoint and finishes with "ERROR - Cancelled"
+	private static RpcResponse cancel(int requestId, int rpcId) {
+		CancellationToken token = jobTokens.get(rpcId);
+		if (token == null) {
+			return RpcResponse.ofText(requestId, "ERROR - Unknown or already finished rpcId");
+		}
+		token.cancel(CancellationToken.CANCELLED);
+		return RpcResponse.ofText(requestId, "CANCELLED");
+	}
+
+	// "getResult <rpcId>"
+	private static RpcResponse getResult(int requestId, int rpcId) {
+		// Fetching removes the result from the store
+		String result = resultStore.take(rpcId);
+		if (result != null) {
+			return RpcResponse.ofText(requestId, result);
+		}
+		if (runningJobs.contains(rpcId)) {
+			return RpcResponse.ofText(requestId, "NOT_READY");
+		}
+		return RpcResponse.ofText(requestId, "ERROR - Unknown, expired or already fetched rpcId");
+	}
+
+	// "watch <rpcId>", the push itself is registered by the connection loop
+	private static RpcResponse watchable(int requestId, int rpcId) {
+		if (!runningJobs.contains(rpcId) && resultStore.peek(rpcId) == null) {
+			return RpcResponse.ofText(requestId, "ERROR - Unknown, expired or already fetched rpcId");
+		}
+		return RpcResponse.ofValue(requestId, rpcId);
+	}
+
+	// e.g. "queue=3 active=4 running=7 rejected=0 live=12 fetched=40 expired=1 evicted=0"
+	private static String stats() {
+		return "queue=" + jobExecutor.getQueue().size()
+				+ " active=" + jobExecutor.getActiveCount()
+				+ " running=" + runningJobs.size()
+				+ " rejected=" + rejectedJobs.get()
+				+ " " + resultStore.stats()
+				+ (memo != null ? " " + memo.stats() : "")
+				+ (batcher != null ? " " + batcher.stats() : "")
+				+ (splitter != null ? " " + splitter.stats() : "")
+				+ " " + CancellationToken.stats();
+	}
+
+	// foo is pure: a repeated or concurrent foo(iterations) is computed once
+	private static long memoFoo(int iterations) {
+		return MemoCache.get(memo, MemoCache.Key.of(MethodRegistry.FOO, iterations),
+				() -> foo(iterations, CancellationToken.current()));
+	}
+
+	// Simulated "foo" that returns a dummy sum for demonstration; large ones are summed piecewise on several cores
+	private static long foo(int iterations, CancellationToken token) {
+		return RangeSplitter.compute(splitter, iterations, token, AsyncRPCServer::sum, Long::sum);
+	}
+
+	// from + ... + (to-1)
+	private static long sum(long from, long to, CancellationToken.Work work) {
 		long sum = 0;
-		for (int i = 0; i < iterations; i++) {
+		for (long i = from; i < to; i++) {
+			if (((i - from) & CancellationToken.CHECKPOINT_MASK) == 0) {
+				work.checkpoint(i - from); // stop if the job was cancelled or ran out of time
+			}
 			sum += i;
 		}
 		return sum;
@@ -13,14 +13,31 @@ public class BatchRpcClient {
 	public static final int SORT_MAX_LEN = 30000;
 	public static final int SORT_VAL_RANGE = 100000;
 
+	// Accepted encodings from "compress=lz,deflate-6", or null for an uncompressed connection
+	private static String encodings;
+
+	// Usage: java BatchRpcClient [stream] [compress=<encodings>]
 	public static void main(String[] args) {
+		boolean stream = false;
+		for (String arg : args) {
+			stream |= "stream".equals(arg);
+			if (arg.startsWith("compress=")) {
+				encodings = arg.substring("compress=".length());
+			}
+		}
+		if (stream) {
+			runStreaming();
+			return;
+		}
 		Socket socket = null;
 		try {
 			socket = new Socket(SERVER_IP, SERVER_PORT);
+			Compression.Streams streams = Compression.offer(socket.getInputStream(), socket.getOutputStream(),
+					encodings);
 			BufferedWriter out = new BufferedWriter(
-					new OutputStreamWriter(socket.getOutputStream()));
+					new OutputStreamWriter(streams.out()));
 			BufferedReader in = new BufferedReader(
-					new InputStreamReader(socket.getInputStream()));
+					new InputStreamReader(streams.in()));
 
 			// Build the batch request
 			String batch = generateBatch();
@@ -34,6 +51,9 @@ public class BatchRpcClient {
 				response.append(line).append("\n");
 			}
 			System.out.println("[BatchClient] Server Response:\n" + response.toString());
+			if (!streams.encoding().isIdentity()) {
+				System.out.println("[BatchClient] " + streams.stats());
+			}
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -44,35 +64,91 @@ public class BatchRpcClient {
 		}
 	}
 
+	/**
+	 * Streaming mode: write the batch one call at a time while a reader thread
+	 * prints each "<index> <result>" line as soon as the server sends it.
+	 */
+	private static void runStreaming() {
+		try (Socket socket = new Socket(SERVER_IP, SERVER_PORT)) {
+			Compression.Streams streams = Compression.offer(socket.getInputStream(), socket.getOutputStream(),
+					encodings);
+			BufferedWriter out = new BufferedWriter(
+					new OutputStreamWriter(streams.out()));
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(streams.in()));
+
+			long start = System.currentTimeMillis();
+			Thread reader = new Thread(() -> {
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						System.out.println("[BatchClient] +" + (System.currentTimeMillis() - start)
+								+ " ms: " + line);
+						if (line.startsWith("END")) {
+							break;
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			reader.start();
+
+			out.write(BatchRpcServer.STREAM_HEADER + "\n");
+			Random rand = new Random();
+			for (int i = 0; i < NUM_CALLS; i++) {
+				out.write(generateCall(rand));
+				out.flush();
+			}
+			out.write("END\n");
+			out.flush();
+			reader.join();
+			if (!streams.encoding().isIdentity()) {
+				System.out.println("[BatchClient] " + streams.stats());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	private static String generateBatch() {
 		StringBuilder batch = new StringBuilder();
 		batch.append("REQUEST: BATCH\n");
 		Random rand = new Random();
 		for (int i = 0; i < NUM_CALLS; i++) {
-			int callType = rand.nextInt(3); // 0 = foo, 1 = add, 2 = sort
-			if (callType == 0) {
-				// Generate a foo call
-				long iters = FOO_MIN_ITERS +
-						(long) rand.nextInt((int)(FOO_MAX_ITERS - FOO_MIN_ITERS + 1));
-				batch.append("foo ").append(iters).append("\n");
-			} else if (callType == 1) {
-				// Generate an add call
-				int a = rand.nextInt(ADD_MAX_VAL);
-				int b = rand.nextInt(ADD_MAX_VAL);
-				batch.append("add ").append(a).append(" ").append(b).append("\n");
-			} else {
-				// Generate a sort call
-				int length = SORT_MIN_LEN +
-						rand.nextInt(SORT_MAX_LEN - SORT_MIN_LEN + 1);
-				batch.append("sort ").append(length);
-				for (int j = 0; j < length; j++) {
-					int val = rand.nextInt(SORT_VAL_RANGE);
-					batch.append(" ").append(val);
-				}
-				batch.append("\n");
-			}
+			batch.append(generateCall(rand));
 		}
 		batch.append("END\n");
 		return batch.toString();
 	}
+
+	// One random batch line, including its trailing newline
+	private static String generateCall(Random rand) {
+		StringBuilder call = new StringBuilder();
+		int callType = rand.nextInt(3); // 0 = foo, 1 = add, 2 = sort
+		if (callType == 0) {
+			// Generate a foo call
+			long iters = FOO_MIN_ITERS +
+					(long) rand.nextInt((int)(FOO_MAX_ITERS - FOO_MIN_ITERS + 1));
+			call.append("foo ").append(iters).append("\n");
+		} else if (callType == 1) {
+			// Generate an add call
+			int a = rand.nextInt(ADD_MAX_VAL);
+			int b = rand.nextInt(ADD_MAX_VAL);
+			call.append("add ").append(a).append(" ").append(b).append("\n");
+		} else {
+			// Generate a sort call
+			int length = SORT_MIN_LEN +
+					rand.nextInt(SORT_MAX_LEN - SORT_MIN_LEN + 1);
+			call.append("sort ").append(length);
+			for (int j = 0; j < length; j++) {
+				int val = rand.nextInt(SORT_VAL_RANGE);
+				call.append(" ").append(val);
+			}
+			call.append("\n");
+		}
+		return call.toString();
+	}
 }
@@ -1,21 +1,124 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
+/**
+ * BatchRpcServer - runs a whole "REQUEST: BATCH ... END" of foo/add/sort calls per connection
+ * <p>
+ * By default clients are served one at a time and each batch runs line by line.
+ * With --parallel, clients are served concurrently (see --executor) and the
+ * calls of a batch are independent tasks on a shared ForkJoinPool
+ * (--parallelism=N, default: all cores); responses are still written in
+ * request order, so a batch takes about as long as its slowest call.
+ * </p>
+ * <p>
+ * Streaming mode: a request that starts with "REQUEST: BATCH STREAM" is not
+ * buffered. Each line is dispatched as soon as it is read, and each result
+ * is written as soon as it is ready, tagged with its line index:
+ * <pre>
+ *  RESPONSE: STREAM
+ *  2 add(3,5) = 8
+ *  0 foo(100000) = 4999950000
+ *  1 sort => [1,2,3]
+ *  END 3
+ * </pre>
+ * At most --max-inflight calls (default Constants.Config.STREAM_MAX_INFLIGHT)
+ * are running or waiting to be written; beyond that the server stops
+ * reading, so memory stays bounded however long the batch is. Results are
+ * written by a writer thread of the connection, so a client that reads
+ * slowly never parks the pool's workers.
+ * </p>
+ * <p>
+ * A foo of more than --split-threshold=N iterations is split into at most
+ * --split-parallelism=N pieces (default: all cores, 1 to disable) that are
+ * summed on a fork-join pool, the --parallel one if there is one, so even
+ * a batch holding a single huge foo uses several cores.
+ * </p>
+ * <p>
+ * Deadlines: the header ("REQUEST: BATCH DEADLINE:500") or a single line
+ * ("foo 1000000000 DEADLINE:100") may end with a timeout in ms. Calls
+ * still running after that stop and answer "ERROR(foo): Deadline exceeded";
+ * in streaming mode the same happens once the client has gone away.
+ * </p>
+ * <p>
+ * Both modes accept the {@link Compression} handshake, which pays off for
+ * long sort batches; --compress=<list> limits the encodings the server agrees to.
+ * </p>
+ */
 public class BatchRpcServer {
 	public static final int SERVER_PORT = 9000;
+	public static final String STREAM_HEADER = "REQUEST: BATCH STREAM";
+
+	// Pool for the calls of a batch, or null for the sequential mode
+	private static ForkJoinPool callPool;
+	// Splits a large foo over several cores, or null with --split-parallelism=1
+	private static RangeSplitter splitter;
+	// Streaming mode: calls read but not yet answered
+	private static int maxInFlight;
+	// Encodings allowed with --compress, or null for any the client asks for
+	private static List<Compression.Encoding> compression;
+
+	// Batch lines answer with a result line instead of an RpcResponse. foo is not here: its
+	// iterations are a long, and the registry only carries int arguments (see fooCall)
+	private static final MethodRegistry<String> methods = new MethodRegistry<String>(new MethodRegistry.Errors<>() {
+		@Override
+		public String invalidRequest(int requestId) {
+			return "ERROR: Malformed call\n";
+		}
+
+		@Override
+		public String invalidArguments(int requestId, String method) {
+			return "ERROR(" + method + "): invalid number format\n";
+		}
+
+		@Override
+		public String missingArguments(int requestId, String method) {
+			return "ERROR(" + method + "): missing operands\n";
+		}
+
+		@Override
+		public String unknownMethod(int requestId, String method) {
+			return "ERROR: Unknown command\n";
+		}
+	})
+			.registerIntInt("add", (requestId, a, b) -> String.format("add(%d,%d) = %d\n", a, b, add(a, b)))
+			.registerIntArray("sort", (requestId, args) -> sortCall(args));
 
 	public static void main(String[] args) {
+		ServerOptions options = ServerOptions.parse(args);
+		ExecutorService connectionExecutor = null;
+		compression = Compression.forOptions(options);
+		maxInFlight = Math.max(1, options.getInt("max-inflight", Constants.Config.STREAM_MAX_INFLIGHT));
+		if (options.has("parallel")) {
+			callPool = new ForkJoinPool(options.getInt("parallelism", Runtime.getRuntime().availableProcessors()));
+			connectionExecutor = ExecutionStrategy.executorFor(options);
+		}
+		// With --parallel, the pieces of a foo share the pool with the other calls
+		splitter = RangeSplitter.forOptions(options, callPool);
 		ServerSocket serverSocket = null;
 		try {
 			serverSocket = new ServerSocket(SERVER_PORT);
-			System.out.println("[BatchServer] Listening on port " + SERVER_PORT + "...");
+			System.out.println("[BatchServer] Listening on port " + SERVER_PORT + "..."
+					+ (callPool != null ? " (parallel, " + callPool.getParallelism() + " workers)" : "")
+					+ (splitter != null ? " " + splitter.stats() : ""));
 			while (true) {
 				Socket clientSocket = serverSocket.accept();
 				System.out.println("[BatchServer] Client connected.");
-				handleClient(clientSocket);
-				clientSocket.close();
-				System.out.println("[BatchServer] Client disconnected.");
+				if (connectionExecutor != null) {
+					connectionExecutor.execute(() -> serveAndClose(clientSocket));
+				} else {
+					serveAndClose(clientSocket);
+				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -23,25 +126,45 @@ public class BatchRpcServer {
 			if (serverSocket != null) {
 				try { serverSocket.close(); } catch(IOException e) { }
 			}
+			if (connectionExecutor != null) {
+				connectionExecutor.shutdown();
+			}
 		}
 	}
 
+	private static void serveAndClose(Socket clientSocket) {
+		handleClient(clientSocket);
+		try { clientSocket.close(); } catch (IOException e) { }
+		System.out.println("[BatchServer] Client disconnected. " + CancellationToken.stats());
+	}
+
 	private static void handleClient(Socket clientSocket) {
+		Compression.Streams streams = null;
 		try {
+			streams = Compression.accept(clientSocket.getInputStream(), clientSocket.getOutputStream(), compression);
 			BufferedReader in = new BufferedReader(
-					new InputStreamReader(clientSocket.getInputStream()));
+					new InputStreamReader(streams.in()));
 			BufferedWriter out = new BufferedWriter(
-					new OutputStreamWriter(clientSocket.getOutputStream()));
+					new OutputStreamWriter(streams.out()));
+
+			String line = in.readLine();
+			// One token for the whole batch, with the header's deadline if it has one
+			CancellationToken batchToken = CancellationToken.forTimeout(null,
+					line != null ? TextCodec.parseBody(0, line).timeoutMillis() : 0);
+			if (line != null && line.trim().startsWith(STREAM_HEADER)) {
+				streamBatch(in, out, batchToken);
+				return;
+			}
 
 			// Read the entire batch request
 			StringBuilder requestBuilder = new StringBuilder();
-			String line;
-			while ((line = in.readLine()) != null) {
+			while (line != null) {
 				requestBuilder.append(line).append("\n");
 				// Stop reading once the "END" line is received
 				if (line.trim().equals("END")) {
 					break;
 				}
+				line = in.readLine();
 			}
 			String request = requestBuilder.toString();
 
@@ -52,15 +175,129 @@ public class BatchRpcServer {
 				return;
 			}
 
-			String response = processBatch(request);
+			String response = processBatch(request, batchToken);
 			out.write(response);
 			out.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			if (streams != null && !streams.encoding().isIdentity()) {
+				System.out.println("[BatchServer] " + streams.stats());
+			}
 		}
 	}
 
-	private static String processBatch(String batch) {
+	// Dispatch each line as it arrives and write "<index> <result>" as each call finishes
+	private static void streamBatch(BufferedReader in, BufferedWriter out, CancellationToken batchToken)
+			throws IOException {
+		ForkJoinPool pool = callPool != null ? callPool : ForkJoinPool.commonPool();
+		// Taken per call, given back once its result is written, not merely computed
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		out.write("RESPONSE: STREAM\n");
+		out.flush();
+		// The pool's workers only queue results; the socket is written by this connection's own thread
+		StreamWriter writer = new StreamWriter(out, inFlight, batchToken);
+		Thread writerThread = new Thread(writer, "batch-stream-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		int index = 0;
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) continue;
+				if (line.equals("END")) break;
+
+				String call = line;
+				int lineIndex = index++;
+				// Backpressure: stop reading while too many results are still running or unwritten
+				inFlight.acquireUninterruptibly();
+				pool.execute(() -> writer.add(lineIndex + " " + streamCall(call, batchToken)));
+			}
+			// Wait for the stragglers before closing the stream
+			inFlight.acquireUninterruptibly(maxInFlight);
+		} finally {
+			writer.add(StreamWriter.STOP);
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (writer.failed()) {
+			return; // the client is gone, nobody to tell
+		}
+		out.write("END " + index + "\n");
+		out.flush();
+	}
+
+	// Every line gets a result, even a failed call's, so its permit comes back and no index is missing
+	private static String streamCall(String call, CancellationToken batchToken) {
+		try {
+			return batchToken.call(() -> executeCall(call));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return "ERROR(" + call.split("\\s+")[0] + "): " + e + "\n";
+		}
+	}
+
+	/**
+	 * Writes a stream's results in the order they finish, so a client that
+	 * reads slowly only holds up this thread, never a pool worker.
+	 */
+	private static final class StreamWriter implements Runnable {
+		// Compared by identity, so no result can be mistaken for it
+		static final String STOP = new String("STOP");
+
+		private final BufferedWriter out;
+		private final Semaphore inFlight;
+		private final CancellationToken batchToken;
+		private final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+		private volatile boolean failed = false;
+
+		StreamWriter(BufferedWriter out, Semaphore inFlight, CancellationToken batchToken) {
+			this.out = out;
+			this.inFlight = inFlight;
+			this.batchToken = batchToken;
+		}
+
+		void add(String result) {
+			results.add(result);
+		}
+
+		boolean failed() {
+			return failed;
+		}
+
+		@Override
+		public void run() {
+			try {
+				String result;
+				while ((result = results.take()) != STOP) {
+					if (!failed) {
+						try {
+							out.write(result);
+							// Several results finished at once go out in one flush
+							if (results.isEmpty()) {
+								out.flush();
+							}
+						} catch (IOException e) {
+							// The client is gone, so stop the calls still running; later results are dropped
+							failed = true;
+							batchToken.cancel(CancellationToken.DISCONNECTED);
+							System.err.println("[BatchServer] Could not stream result: " + e.getMessage());
+						}
+					}
+					inFlight.release();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static String processBatch(String batch, CancellationToken batchToken) {
 		StringBuilder response = new StringBuilder();
 		response.append("RESPONSE:\n");
 
@@ -70,88 +307,111 @@ public class BatchRpcServer {
 			response.append("ERROR: Malformed batch request (no newline)\n");
 			return response.toString();
 		}
+		List<String> calls = new ArrayList<>();
 		for (int i = 1; i < lines.length; i++) {
 			String line = lines[i].trim();
 			if (line.isEmpty()) continue;
 			if (line.equals("END")) break;
+			calls.add(line);
+		}
 
-			// Tokenize the line
-			String[] tokens = line.split("\\s+");
-			if (tokens.length == 0) continue;
-
-			String command = tokens[0];
-			if ("foo".equals(command)) {
-				if (tokens.length < 2) {
-					response.append("ERROR(foo): missing iterations\n");
-				} else {
-					try {
-						long iterations = Long.parseLong(tokens[1]);
-						long result = foo(iterations);
-						response.append(String.format("foo(%d) = %d\n", iterations, result));
-					} catch (NumberFormatException e) {
-						response.append("ERROR(foo): invalid number format\n");
-					}
-				}
-			} else if ("add".equals(command)) {
-				if (tokens.length < 3) {
-					response.append("ERROR(add): missing operands\n");
-				} else {
-					try {
-						int a = Integer.parseInt(tokens[1]);
-						int b = Integer.parseInt(tokens[2]);
-						int sum = add(a, b);
-						response.append(String.format("add(%d,%d) = %d\n", a, b, sum));
-					} catch (NumberFormatException e) {
-						response.append("ERROR(add): invalid number format\n");
-					}
-				}
-			} else if ("sort".equals(command)) {
-				if (tokens.length < 2) {
-					response.append("ERROR(sort): missing array size\n");
-				} else {
-					try {
-						int n = Integer.parseInt(tokens[1]);
-						if (n < 1 || tokens.length - 2 < n) {
-							response.append("ERROR(sort): array size mismatch\n");
-						} else {
-							int[] arr = new int[n];
-							boolean valid = true;
-							for (int j = 0; j < n; j++) {
-								try {
-									arr[j] = Integer.parseInt(tokens[j + 2]);
-								} catch (NumberFormatException e) {
-									response.append("ERROR(sort): invalid number format\n");
-									valid = false;
-									break;
-								}
-							}
-							if (valid) {
-								sortArray(arr);
-								response.append("sort => [");
-								for (int j = 0; j < n; j++) {
-									response.append(arr[j]);
-									if (j < n - 1) {
-										response.append(",");
-									}
-								}
-								response.append("]\n");
-							}
-						}
-					} catch (NumberFormatException e) {
-						response.append("ERROR(sort): invalid array size\n");
-					}
-				}
-			} else {
-				response.append("ERROR: Unknown command\n");
+		if (callPool == null) {
+			for (String call : calls) {
+				response.append(batchToken.call(() -> executeCall(call)));
+			}
+		} else {
+			// Fork every call, then join in request order
+			List<ForkJoinTask<String>> tasks = new ArrayList<>(calls.size());
+			for (String call : calls) {
+				tasks.add(callPool.submit(() -> batchToken.call(() -> executeCall(call))));
+			}
+			for (ForkJoinTask<String> task : tasks) {
+				response.append(task.join());
 			}
 		}
 		return response.toString();
 	}
 
-	// CPU‐intensive function: computes the sum 0 + 1 + ... + (iterations-1)
+	// One batch line, e.g. "add 3 5" -> "add(3,5) = 8\n"
+	static String executeCall(String line) {
+		RpcRequest request = TextCodec.parseBody(0, line);
+		// A line may carry its own "DEADLINE:<ms>" on top of the batch's
+		CancellationToken token = CancellationToken.forRequest(CancellationToken.current(), request);
+		try {
+			token.throwIfCancelled();
+			return token.call(() -> request.methodId() == MethodRegistry.FOO ? fooCall(line)
+					: request.methodId() == MethodRegistry.SORT && request.args() == null ? invalidSortCall(line)
+					: methods.dispatch(request));
+		} catch (CancellationException e) {
+			return "ERROR(" + request.method() + "): " + e.getMessage() + "\n";
+		}
+	}
+
+	// "foo <iterations>", where iterations may be beyond int range
+	private static String fooCall(String line) {
+		String[] tokens = line.trim().split("\\s+");
+		if (tokens.length < 2) {
+			return "ERROR(foo): missing iterations\n";
+		}
+		long iterations;
+		try {
+			iterations = Long.parseLong(tokens[1]);
+		} catch (NumberFormatException e) {
+			return "ERROR(foo): invalid number format\n";
+		}
+		return String.format("foo(%d) = %d\n", iterations, foo(iterations));
+	}
+
+	// "sort <n> <a1> ... <an>", the size comes first
+	private static String sortCall(int[] args) {
+		if (args.length < 1) {
+			return "ERROR(sort): missing array size\n";
+		}
+		int n = args[0];
+		if (n < 1 || args.length - 1 < n) {
+			return "ERROR(sort): array size mismatch\n";
+		}
+		int[] arr = Arrays.copyOfRange(args, 1, n + 1);
+		sortArray(arr);
+		StringBuilder response = new StringBuilder("sort => [");
+		for (int j = 0; j < n; j++) {
+			response.append(arr[j]);
+			if (j < n - 1) {
+				response.append(",");
+			}
+		}
+		return response.append("]\n").toString();
+	}
+
+	// A sort line with a non-numeric token: say which part is wrong, the size first
+	private static String invalidSortCall(String line) {
+		String[] tokens = line.trim().split("\\s+");
+		int count = tokens.length > 2 && tokens[tokens.length - 1].startsWith(TextCodec.DEADLINE)
+				? tokens.length - 1 : tokens.length;
+		int n;
+		try {
+			n = Integer.parseInt(tokens[1]);
+		} catch (NumberFormatException e) {
+			return "ERROR(sort): invalid array size\n";
+		}
+		if (n < 1 || count - 2 < n) {
+			return "ERROR(sort): array size mismatch\n";
+		}
+		return "ERROR(sort): invalid number format\n";
+	}
+
+	// CPU‐intensive function: computes the sum 0 + 1 + ... + (iterations-1), in pieces on several cores if large
 	private static long foo(long iterations) {
+		return RangeSplitter.compute(splitter, iterations, CancellationToken.current(), BatchRpcServer::sum, Long::sum);
+	}
+
+	// from + ... + (to-1)
+	private static long sum(long from, long to, CancellationToken.Work work) {
 		long sum = 0;
-		for (long i = 0; i < iterations; i++) {
+		for (long i = from; i < to; i++) {
+			if (((i - from) & CancellationToken.CHECKPOINT_MASK) == 0) {
+				work.checkpoint(i - from); // stop once the batch is past its deadline or the client is gone
+			}
 			sum += i;
 		}
 		return sum;
@@ -162,17 +422,7 @@ public class BatchRpcServer {
 		return a + b;
 	}
 
-	// Simple bubble sort
 	private static void sortArray(int[] arr) {
-		int n = arr.length;
-		for (int i = 0; i < n - 1; i++) {
-			for (int j = 0; j < n - i - 1; j++) {
-				if (arr[j] > arr[j + 1]) {
-					int tmp = arr[j];
-					arr[j] = arr[j + 1];
-					arr[j + 1] = tmp;
-				}
-			}
-		}
+		SortEngine.sort(arr);
 	}
 }
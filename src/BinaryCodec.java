@@ -0,0 +1,214 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * BinaryCodec - length-prefixed binary RPC frames
+ * <p>
+ * Every frame has a fixed 12-byte header, all integers big-endian:
+ * <pre>
+ *  byte 0     magic (0xB7, never a valid first byte of the text protocol)
+ *  byte 1     version
+ *  byte 2     request: method id (see MethodRegistry) / response: status (0 = text, 1 = int32 array)
+ *  byte 3     flags (bit 0: pushed result, request id is then the job's rpcId;
+ *             bit 1: request with a deadline, the payload then starts with its timeout in ms)
+ *  bytes 4-7  request id (0 = untagged)
+ *  bytes 8-11 payload length in bytes
+ * </pre>
+ * Request payloads are the int arguments as raw int32s. Response payloads
+ * are either UTF-8 text or raw int32s, so a 30,000-element sort travels as
+ * 120 KB of ints with no parsing or formatting.
+ * </p>
+ */
+public class BinaryCodec implements Codec {
+	public static final int MAGIC = 0xB7;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 12;
+
+	static final int STATUS_TEXT = 0;
+	static final int STATUS_INTS = 1;
+	static final int FLAG_PUSH = 1;
+	static final int FLAG_DEADLINE = 2;
+
+	private static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	// Reused for payloads to avoid a fresh array per frame
+	private byte[] readScratch = new byte[Constants.Config.BUFFER_SIZE];
+	private byte[] writeScratch = new byte[Constants.Config.BUFFER_SIZE];
+	private int lastFlags;
+
+	public BinaryCodec(InputStream in, OutputStream out) {
+		this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+		this.out = new DataOutputStream(new BufferedOutputStream(out, Constants.Config.BUFFER_SIZE));
+	}
+
+	@Override
+	public RpcRequest readRequest() throws IOException {
+		int magic = in.read();
+		if (magic == -1) {
+			return null;
+		}
+		int methodId = readHeader(magic);
+		int requestId = in.readInt();
+		int length = readLength();
+		if (length % 4 != 0) {
+			throw new IOException("Request payload is not a whole number of int32s: " + length);
+		}
+		int timeoutMillis = 0;
+		if ((lastFlags & FLAG_DEADLINE) != 0 && length >= 4) {
+			timeoutMillis = in.readInt();
+			length -= 4;
+		}
+		RpcRequest request = new RpcRequest(requestId, methodId, readInts(length));
+		return timeoutMillis > 0 ? request.withTimeout(timeoutMillis) : request;
+	}
+
+	@Override
+	public void writeRequest(RpcRequest request) throws IOException {
+		encodeRequest(request);
+		out.flush();
+	}
+
+	@Override
+	public void writeRequests(List<RpcRequest> requests) throws IOException {
+		for (RpcRequest request : requests) {
+			encodeRequest(request);
+		}
+		out.flush();
+	}
+
+	private void encodeRequest(RpcRequest request) throws IOException {
+		int methodId = request.methodId();
+		if (methodId == MethodRegistry.UNKNOWN) {
+			throw new IOException("Method not supported by the binary protocol: " + request.method());
+		}
+		int[] args = request.args() == null ? new int[0] : request.args();
+		if (request.timeoutMillis() > 0) {
+			writeHeader(methodId, FLAG_DEADLINE, request.requestId(), 4 + args.length * 4);
+			out.writeInt(request.timeoutMillis());
+		} else {
+			writeHeader(methodId, 0, request.requestId(), args.length * 4);
+		}
+		writeInts(args);
+	}
+
+	@Override
+	public RpcResponse readResponse() throws IOException {
+		int magic = in.read();
+		if (magic == -1) {
+			return null;
+		}
+		int status = readHeader(magic);
+		int requestId = in.readInt();
+		int length = readLength();
+		if ((lastFlags & FLAG_PUSH) != 0) {
+			ensureReadScratch(length);
+			in.readFully(readScratch, 0, length);
+			return RpcResponse.ofPushedResult(requestId, new String(readScratch, 0, length, StandardCharsets.UTF_8));
+		}
+		if (status == STATUS_INTS) {
+			int[] values = readInts(length);
+			return values.length == 1 ? RpcResponse.ofValue(requestId, values[0]) : RpcResponse.ofValues(requestId, values);
+		}
+		ensureReadScratch(length);
+		in.readFully(readScratch, 0, length);
+		return RpcResponse.ofText(requestId, new String(readScratch, 0, length, StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void writeResponse(RpcResponse response) throws IOException {
+		encodeResponse(response);
+		out.flush();
+	}
+
+	@Override
+	public void writeResponses(List<RpcResponse> responses) throws IOException {
+		for (RpcResponse response : responses) {
+			encodeResponse(response);
+		}
+		out.flush();
+	}
+
+	private void encodeResponse(RpcResponse response) throws IOException {
+		if (response.isPushedResult()) {
+			byte[] text = response.payload().getBytes(StandardCharsets.UTF_8);
+			writeHeader(STATUS_TEXT, FLAG_PUSH, response.requestId(), text.length);
+			out.write(text);
+		} else if (response.values() != null) {
+			writeHeader(STATUS_INTS, 0, response.requestId(), response.values().length * 4);
+			writeInts(response.values());
+		} else {
+			byte[] text = response.text().getBytes(StandardCharsets.UTF_8);
+			writeHeader(STATUS_TEXT, 0, response.requestId(), text.length);
+			out.write(text);
+		}
+	}
+
+	// Validates magic/version and returns byte 2 (method id or status)
+	private int readHeader(int magic) throws IOException {
+		if (magic != MAGIC) {
+			throw new IOException("Bad frame magic: " + magic);
+		}
+		int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported frame version: " + version);
+		}
+		int kind = in.readUnsignedByte();
+		lastFlags = in.readUnsignedByte();
+		return kind;
+	}
+
+	private int readLength() throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		return length;
+	}
+
+	private void writeHeader(int kind, int flags, int requestId, int length) throws IOException {
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(kind);
+		out.writeByte(flags);
+		out.writeInt(requestId);
+		out.writeInt(length);
+	}
+
+	private int[] readInts(int length) throws IOException {
+		ensureReadScratch(length);
+		try {
+			in.readFully(readScratch, 0, length);
+		} catch (EOFException e) {
+			throw new IOException("Connection closed mid-frame", e);
+		}
+		int[] values = new int[length / 4];
+		ByteBuffer.wrap(readScratch, 0, length).asIntBuffer().get(values);
+		return values;
+	}
+
+	private void writeInts(int[] values) throws IOException {
+		int length = values.length * 4;
+		if (writeScratch.length < length) {
+			writeScratch = new byte[length];
+		}
+		ByteBuffer.wrap(writeScratch, 0, length).asIntBuffer().put(values);
+		out.write(writeScratch, 0, length);
+	}
+
+	private void ensureReadScratch(int length) {
+		if (readScratch.length < length) {
+			readScratch = new byte[length];
+		}
+	}
+}
@@ -0,0 +1,221 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * CancellationToken - tells a long computation that nobody wants its result any more
+ * <p>
+ * A token is cancelled explicitly ("cancel &lt;rpcId&gt;", a client that
+ * disconnected), by its deadline passing, or by its parent being cancelled:
+ * a server gives each connection a token and each request a child of it
+ * carrying the request's deadline. Long loops such as foo call
+ * {@link Work#checkpoint} every so many iterations, which throws a
+ * {@link CancellationException} once the token is cancelled, so dead work
+ * stops and frees its core.
+ * </p>
+ * <p>
+ * The token of the request being executed is available through
+ * {@link #current()} while it runs inside {@link #call}. When a computation
+ * stops early, the CPU time it would still have needed is estimated from the
+ * CPU time spent so far and the fraction done, and added to {@link #stats()}.
+ * </p>
+ */
+public final class CancellationToken {
+	public static final String CANCELLED = "Cancelled";
+	public static final String DEADLINE_EXCEEDED = "Deadline exceeded";
+	public static final String DISCONNECTED = "Client disconnected";
+	// Loops check in when (i & CHECKPOINT_MASK) == 0, i.e. every 65536 iterations
+	public static final int CHECKPOINT_MASK = (1 << 16) - 1;
+
+	private static final CancellationToken NONE = new CancellationToken(null, 0);
+	private static final ThreadLocal<CancellationToken> CURRENT = new ThreadLocal<>();
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private static final AtomicLong cancelled = new AtomicLong();
+	private static final AtomicLong deadlinesExceeded = new AtomicLong();
+	private static final AtomicLong disconnected = new AtomicLong();
+	private static final AtomicLong cpuSavedNanos = new AtomicLong();
+
+	private final CancellationToken parent;
+	// System.nanoTime() deadline, or 0 for none
+	private final long deadline;
+	private volatile String reason;
+	// Counted in the stats once, however many loops (e.g. RangeSplitter pieces) notice it
+	private final AtomicBoolean counted = new AtomicBoolean();
+
+	private CancellationToken(CancellationToken parent, long deadline) {
+		this.parent = parent;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * A token that is only cancelled explicitly, e.g. one per connection.
+	 */
+	public static CancellationToken create() {
+		return new CancellationToken(null, 0);
+	}
+
+	/**
+	 * A token for one request: cancelled with its parent (may be null) or
+	 * once the request's timeout, counted from now, has passed.
+	 */
+	public static CancellationToken forRequest(CancellationToken parent, RpcRequest request) {
+		return forTimeout(parent, request.timeoutMillis());
+	}
+
+	/**
+	 * @param timeoutMillis counted from now, 0 for no deadline
+	 */
+	public static CancellationToken forTimeout(CancellationToken parent, long timeoutMillis) {
+		long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+		return new CancellationToken(parent, deadline);
+	}
+
+	/**
+	 * @return the token of the request running on this thread, or one that is never cancelled
+	 */
+	public static CancellationToken current() {
+		CancellationToken token = CURRENT.get();
+		return token != null ? token : NONE;
+	}
+
+	/**
+	 * Run task with this token as {@link #current()}.
+	 */
+	public <T> T call(Supplier<T> task) {
+		CancellationToken previous = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			return task.get();
+		} finally {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * @param reason e.g. {@link #CANCELLED} or {@link #DISCONNECTED}
+	 * @return false if it was already cancelled
+	 */
+	public boolean cancel(String reason) {
+		if (this == NONE || this.reason != null) {
+			return false;
+		}
+		synchronized (this) {
+			if (this.reason != null) {
+				return false;
+			}
+			this.reason = reason;
+		}
+		return true;
+	}
+
+	public boolean isCancelled() {
+		return reason() != null;
+	}
+
+	/**
+	 * @return why the token is cancelled, or null if it is not
+	 */
+	public String reason() {
+		if (reason != null) {
+			return reason;
+		}
+		if (deadline != 0 && System.nanoTime() - deadline > 0) {
+			cancel(DEADLINE_EXCEEDED);
+			return reason;
+		}
+		if (parent != null) {
+			String inherited = parent.reason();
+			if (inherited != null) {
+				cancel(inherited);
+				return reason;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @throws CancellationException if the token is cancelled, e.g. before a queued job starts
+	 */
+	public void throwIfCancelled() {
+		String why = reason();
+		if (why != null) {
+			countOnce(why);
+			throw new CancellationException(why);
+		}
+	}
+
+	/**
+	 * Start a computation of total steps on the current thread.
+	 */
+	public Work begin(long total) {
+		return new Work(this, total);
+	}
+
+	/**
+	 * One computation's progress, for checkpoints and the saved-CPU estimate.
+	 */
+	public static final class Work {
+		private final CancellationToken token;
+		private final long total;
+		private final long cpuStart;
+
+		private Work(CancellationToken token, long total) {
+			this.token = token;
+			this.total = total;
+			this.cpuStart = token == NONE ? 0 : cpuNanos();
+		}
+
+		/**
+		 * @param done steps finished so far
+		 * @throws CancellationException if the token is cancelled
+		 */
+		public void checkpoint(long done) {
+			if (token == NONE) {
+				return;
+			}
+			String why = token.reason();
+			if (why == null) {
+				return;
+			}
+			long spent = cpuNanos() - cpuStart;
+			if (done > 0 && total > done) {
+				cpuSavedNanos.addAndGet((long) (spent * ((double) (total - done) / done)));
+			}
+			token.countOnce(why);
+			throw new CancellationException(why);
+		}
+	}
+
+	private void countOnce(String reason) {
+		if (!counted.compareAndSet(false, true)) {
+			return;
+		}
+		switch (reason) {
+			case DEADLINE_EXCEEDED:
+				deadlinesExceeded.incrementAndGet();
+				break;
+			case DISCONNECTED:
+				disconnected.incrementAndGet();
+				break;
+			default:
+				cancelled.incrementAndGet();
+		}
+	}
+
+	private static long cpuNanos() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * e.g. "cancelled=2 deadlines=5 disconnects=1 cpuSaved=5321.4ms", counting computations that stopped early
+	 */
+	public static String stats() {
+		return String.format("cancelled=%d deadlines=%d disconnects=%d cpuSaved=%.1fms", cancelled.get(),
+				deadlinesExceeded.get(), disconnected.get(), cpuSavedNanos.get() / 1_000_000.0);
+	}
+}
@@ -0,0 +1,68 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Codec - reads and writes RPC messages on one connection
+ * <p>
+ * Two wire formats are supported side by side on the same port:
+ *  - {@link TextCodec}:   "REQUEST: sort 5 9 1" / "RESPONSE: [1, 5, 9]"
+ *  - {@link BinaryCodec}: length-prefixed frames with raw int32 arrays
+ * A server calls {@link #open} and the first byte the client sends decides
+ * which one the connection uses.
+ * </p>
+ * <p>
+ * A codec instance belongs to one connection. Reads and writes may happen
+ * on different threads, but concurrent writers must synchronize on the codec.
+ * </p>
+ */
+public interface Codec {
+
+	/**
+	 * @return the next request, or null once the peer has closed the connection
+	 */
+	RpcRequest readRequest() throws IOException;
+
+	void writeRequest(RpcRequest request) throws IOException;
+
+	/**
+	 * Write several requests back-to-back and flush once, e.g. for a pipeline.
+	 */
+	default void writeRequests(List<RpcRequest> requests) throws IOException {
+		for (RpcRequest request : requests) {
+			writeRequest(request);
+		}
+	}
+
+	/**
+	 * @return the next response, or null once the peer has closed the connection
+	 */
+	RpcResponse readResponse() throws IOException;
+
+	void writeResponse(RpcResponse response) throws IOException;
+
+	/**
+	 * Write several responses back-to-back and flush once, e.g. for a micro-batch.
+	 */
+	default void writeResponses(List<RpcResponse> responses) throws IOException {
+		for (RpcResponse response : responses) {
+			writeResponse(response);
+		}
+	}
+
+	/**
+	 * Server side: peek at the first byte to pick the codec for this connection.
+	 */
+	static Codec open(InputStream in, OutputStream out) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in, Constants.Config.BUFFER_SIZE);
+		buffered.mark(1);
+		int first = buffered.read();
+		buffered.reset();
+		if (first == BinaryCodec.MAGIC) {
+			return new BinaryCodec(buffered, out);
+		}
+		return new TextCodec(buffered, out);
+	}
+}
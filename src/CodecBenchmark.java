@@ -0,0 +1,99 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+/**
+ * CodecBenchmark - in-memory encode/decode throughput of the text and binary codecs
+ * <p>
+ * Encodes a stream of "sort" requests and their sorted responses (the largest
+ * payloads the clients send, BatchRpcClient.SORT_MAX_LEN ints each), then
+ * decodes them again. No sockets are involved, so the numbers are pure
+ * formatting/parsing cost.
+ * </p>
+ * Usage: java CodecBenchmark [messages] [arrayLength]
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int messages = 200, length = BatchRpcClient.SORT_MAX_LEN;
+		if (args.length != 0) {
+			messages = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			length = Integer.parseInt(args[1]);
+		}
+		Random rand = new Random(42);
+		int[] data = new int[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = rand.nextInt(BatchRpcClient.SORT_VAL_RANGE);
+		}
+
+		// Warm up the JIT on both codecs before measuring
+		for (int round = 0; round < 3; round++) {
+			run("text", TextCodec::new, data, messages / 4 + 1, false);
+			run("binary", BinaryCodec::new, data, messages / 4 + 1, false);
+		}
+		System.out.println("[CodecBenchmark] " + messages + " messages of " + length + " ints");
+		run("text", TextCodec::new, data, messages, true);
+		run("binary", BinaryCodec::new, data, messages, true);
+	}
+
+	private static void run(String name, BiFunction<InputStream, OutputStream, Codec> codecs,
+	                        int[] data, int messages, boolean print) throws IOException {
+		InputStream none = new ByteArrayInputStream(new byte[0]);
+
+		// Encode requests
+		ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+		Codec encoder = codecs.apply(none, requestBytes);
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			encoder.writeRequest(new RpcRequest(i + 1, "sort", data));
+		}
+		long encodeRequests = System.nanoTime() - start;
+
+		// Decode requests
+		Codec decoder = codecs.apply(new ByteArrayInputStream(requestBytes.toByteArray()), OutputStream.nullOutputStream());
+		start = System.nanoTime();
+		long checksum = 0;
+		for (int i = 0; i < messages; i++) {
+			checksum += decoder.readRequest().args()[data.length - 1];
+		}
+		long decodeRequests = System.nanoTime() - start;
+
+		// Encode responses
+		ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
+		encoder = codecs.apply(none, responseBytes);
+		start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			encoder.writeResponse(RpcResponse.ofValues(i + 1, data));
+		}
+		long encodeResponses = System.nanoTime() - start;
+
+		// Decode responses
+		decoder = codecs.apply(new ByteArrayInputStream(responseBytes.toByteArray()), OutputStream.nullOutputStream());
+		start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			checksum += decoder.readResponse().values()[0];
+		}
+		long decodeResponses = System.nanoTime() - start;
+
+		if (print) {
+			System.out.printf("[CodecBenchmark] %-6s wire size: request %,d B, response %,d B (checksum %d)%n", name,
+					requestBytes.size() / messages, responseBytes.size() / messages, checksum);
+			report(name, "encode request ", encodeRequests, messages, requestBytes.size());
+			report(name, "decode request ", decodeRequests, messages, requestBytes.size());
+			report(name, "encode response", encodeResponses, messages, responseBytes.size());
+			report(name, "decode response", decodeResponses, messages, responseBytes.size());
+		}
+	}
+
+	private static void report(String name, String phase, long nanos, int messages, long bytes) {
+		double seconds = nanos / 1_000_000_000.0;
+		System.out.printf("[CodecBenchmark] %-6s %s: %,10.0f msgs/sec %,10.1f MB/sec%n",
+				name, phase, messages / seconds, bytes / seconds / (1024 * 1024));
+	}
+}
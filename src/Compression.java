@@ -0,0 +1,589 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression - negotiated streaming compression for the TCP file and RPC protocols
+ * <p>
+ * Encodings: "identity", "deflate-1" ... "deflate-9" (Deflater levels,
+ * plain "deflate" is level 6) and "lz" ({@link FastLz}, much cheaper than
+ * any Deflater level for a worse ratio). A client lists the encodings it
+ * accepts in order of preference, e.g. "lz,deflate-6"; the server picks the
+ * first one it allows (see {@link #forOptions}), or identity.
+ * </p>
+ * <p>
+ * File protocol: the client appends " ACCEPT-ENCODING:<list>" to its
+ * request line. After "FILENAME:" and "FILESIZE:" (still the uncompressed
+ * size) the server then adds "ENCODING:<chosen>" and sends the body in that
+ * encoding. Content that is already compressed (JPEG, PNG, GIF, gzip, zip)
+ * always goes out as identity.
+ * </p>
+ * <p>
+ * RPC handshake: the client sends the byte 0xC5 and "<list>\n" before
+ * anything else, the server answers "<chosen>\n", and from then on both
+ * directions of the connection are compressed with the usual text or binary
+ * protocol inside. Every message is flushed through the compressor (a
+ * Deflater SYNC_FLUSH, or one lz block), so nothing waits for a buffer to
+ * fill. Clients that skip the handshake are served uncompressed.
+ * </p>
+ * <p>
+ * An lz stream is a series of "[int rawLength][int storedLength][bytes]"
+ * blocks; a block that did not shrink is stored with storedLength == rawLength.
+ * </p>
+ */
+public final class Compression {
+	public static final String ACCEPT_ENCODING = " ACCEPT-ENCODING:";
+	public static final String ENCODING = "ENCODING:";
+	public static final int HANDSHAKE = 0xC5;
+
+	public static final Encoding IDENTITY = new Encoding("identity", 0);
+	public static final Encoding LZ = new Encoding("lz", 0);
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private Compression() {
+	}
+
+	/**
+	 * One encoding; level is the Deflater level for deflate and 0 otherwise.
+	 */
+	public record Encoding(String name, int level) {
+
+		/**
+		 * @return the encoding, or null if it is not supported
+		 */
+		public static Encoding parse(String token) {
+			String name = token.trim().toLowerCase(Locale.ROOT);
+			switch (name) {
+				case "identity":
+				case "none":
+					return IDENTITY;
+				case "lz":
+					return LZ;
+				case "deflate":
+					return new Encoding("deflate", 6);
+				default:
+					if (name.startsWith("deflate-")) {
+						try {
+							int level = Integer.parseInt(name.substring("deflate-".length()));
+							return level >= 1 && level <= 9 ? new Encoding("deflate", level) : null;
+						} catch (NumberFormatException e) {
+							return null;
+						}
+					}
+					return null;
+			}
+		}
+
+		public boolean isIdentity() {
+			return this.equals(IDENTITY);
+		}
+
+		@Override
+		public String toString() {
+			return level == 0 ? name : name + "-" + level;
+		}
+	}
+
+	/**
+	 * A file request line split into the plain request and the encodings the client accepts.
+	 */
+	public record Offer(String request, String encodings) {
+
+		public static Offer parse(String line) {
+			int at = line == null ? -1 : line.lastIndexOf(ACCEPT_ENCODING);
+			if (at < 0) {
+				return new Offer(line, null);
+			}
+			return new Offer(line.substring(0, at), line.substring(at + ACCEPT_ENCODING.length()).trim());
+		}
+	}
+
+	/**
+	 * @param encodings e.g. "lz,deflate-6", or null to ask for no compression
+	 */
+	public static String offer(String request, String encodings) {
+		return encodings == null ? request : request + ACCEPT_ENCODING + encodings;
+	}
+
+	/**
+	 * "a,b,c" -> the supported encodings among them, in order.
+	 */
+	public static List<Encoding> parseList(String encodings) {
+		List<Encoding> list = new ArrayList<>();
+		if (encodings != null) {
+			for (String token : encodings.split(",")) {
+				Encoding encoding = Encoding.parse(token);
+				if (encoding != null) {
+					list.add(encoding);
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Encodings a server allows with --compress=<list>, in its order of
+	 * preference, or null to take whatever the client prefers.
+	 */
+	public static List<Encoding> forOptions(ServerOptions options) {
+		String encodings = options.get("compress", null);
+		return encodings == null ? null : parseList(encodings);
+	}
+
+	/**
+	 * @param allowed the server's encodings, or null to allow all of them
+	 */
+	public static Encoding negotiate(String offered, List<Encoding> allowed) {
+		List<Encoding> accepted = parseList(offered);
+		if (allowed == null) {
+			return accepted.isEmpty() ? IDENTITY : accepted.get(0);
+		}
+		for (Encoding encoding : allowed) {
+			if (accepted.contains(encoding)) {
+				return encoding;
+			}
+		}
+		return IDENTITY;
+	}
+
+	/**
+	 * True for JPEG, PNG, GIF, gzip and zip content, which another pass cannot shrink.
+	 */
+	public static boolean alreadyCompressed(File file) throws IOException {
+		byte[] head = new byte[4];
+		try (InputStream in = new FileInputStream(file)) {
+			int length = in.readNBytes(head, 0, head.length);
+			return length == head.length && isCompressedFormat(head);
+		}
+	}
+
+	public static boolean alreadyCompressed(ByteBuffer content) {
+		if (content.remaining() < 4) {
+			return false;
+		}
+		byte[] head = new byte[4];
+		content.get(content.position(), head);
+		return isCompressedFormat(head);
+	}
+
+	private static boolean isCompressedFormat(byte[] head) {
+		int b0 = head[0] & 0xFF, b1 = head[1] & 0xFF, b2 = head[2] & 0xFF, b3 = head[3] & 0xFF;
+		return b0 == 0xFF && b1 == 0xD8 && b2 == 0xFF            // JPEG
+				|| b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G' // PNG
+				|| b0 == 'G' && b1 == 'I' && b2 == 'F'             // GIF
+				|| b0 == 0x1F && b1 == 0x8B                        // gzip
+				|| b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4;   // zip
+	}
+
+	/**
+	 * Wrap out so that everything written to it is sent in encoding. Closing
+	 * the stream finishes the encoding and closes out.
+	 */
+	public static OutputStream compress(OutputStream out, Encoding encoding, Meter meter) {
+		if (encoding.isIdentity()) {
+			return out;
+		}
+		return "lz".equals(encoding.name()) ? new LzOutputStream(out, meter)
+				: new DeflatingOutputStream(out, encoding.level(), meter);
+	}
+
+	public static InputStream decompress(InputStream in, Encoding encoding, Meter meter) {
+		if (encoding.isIdentity()) {
+			return in;
+		}
+		return "lz".equals(encoding.name()) ? new LzInputStream(in, meter) : new InflatingInputStream(in, meter);
+	}
+
+	/**
+	 * The two directions of a connection after the RPC handshake.
+	 */
+	public record Streams(InputStream in, OutputStream out, Encoding encoding, Meter sent, Meter received) {
+
+		public String stats() {
+			return encoding + ", sent " + sent.stats() + ", received " + received.stats();
+		}
+	}
+
+	/**
+	 * Client side of the RPC handshake.
+	 *
+	 * @param encodings the accepted encodings, or null to skip the handshake
+	 */
+	public static Streams offer(InputStream in, OutputStream out, String encodings) throws IOException {
+		if (encodings == null) {
+			return wrap(in, out, IDENTITY);
+		}
+		out.write(HANDSHAKE);
+		out.write((encodings + "\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		// Unbuffered, so nothing after the answer is read past
+		String answer = FileTransfer.readHeaderLine(in);
+		if (answer == null) {
+			throw new IOException("Connection closed during the compression handshake");
+		}
+		Encoding chosen = Encoding.parse(answer);
+		if (chosen == null) {
+			throw new IOException("Unsupported encoding from server: " + answer);
+		}
+		return wrap(in, out, chosen);
+	}
+
+	/**
+	 * Server side of the RPC handshake; connections without one are left uncompressed.
+	 *
+	 * @param allowed the server's encodings, or null to allow all of them
+	 */
+	public static Streams accept(InputStream in, OutputStream out, List<Encoding> allowed) throws IOException {
+		BufferedInputStream buffered = in instanceof BufferedInputStream
+				? (BufferedInputStream) in : new BufferedInputStream(in, Constants.Config.BUFFER_SIZE);
+		buffered.mark(1);
+		int first = buffered.read();
+		buffered.reset();
+		if (first != HANDSHAKE) {
+			return wrap(buffered, out, IDENTITY);
+		}
+		buffered.read();
+		Encoding chosen = negotiate(FileTransfer.readHeaderLine(buffered), allowed);
+		out.write((chosen + "\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		return wrap(buffered, out, chosen);
+	}
+
+	private static Streams wrap(InputStream in, OutputStream out, Encoding encoding) {
+		Meter sent = new Meter(encoding);
+		Meter received = new Meter(encoding);
+		return new Streams(decompress(in, encoding, received), compress(out, encoding, sent), encoding, sent, received);
+	}
+
+	/**
+	 * Bytes before and after compression and the CPU time spent compressing
+	 * or decompressing them. Safe to update from several threads.
+	 */
+	public static final class Meter {
+		private final Encoding encoding;
+		private final LongAdder rawBytes = new LongAdder();
+		private final LongAdder wireBytes = new LongAdder();
+		private final LongAdder cpuNanos = new LongAdder();
+
+		public Meter(Encoding encoding) {
+			this.encoding = encoding;
+		}
+
+		void add(long raw, long wire, long cpu) {
+			rawBytes.add(raw);
+			wireBytes.add(wire);
+			cpuNanos.add(cpu);
+		}
+
+		public long rawBytes() {
+			return rawBytes.sum();
+		}
+
+		public long wireBytes() {
+			return wireBytes.sum();
+		}
+
+		/**
+		 * @return compressed size / original size, 1 if nothing went through yet
+		 */
+		public double ratio() {
+			long raw = rawBytes();
+			return raw == 0 ? 1 : wireBytes() / (double) raw;
+		}
+
+		public double cpuMillis() {
+			return cpuNanos.sum() / 1_000_000.0;
+		}
+
+		public String stats() {
+			return String.format(Locale.ROOT, "%s %d -> %d bytes (%.1f%%), %.2f ms CPU", encoding, rawBytes(),
+					wireBytes(), ratio() * 100, cpuMillis());
+		}
+	}
+
+	// CPU time of this thread, so time spent blocked in socket writes is not counted
+	static long cpuNanos() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	private static final class DeflatingOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final Deflater deflater;
+		private final Meter meter;
+		private final byte[] buffer = new byte[BLOCK_SIZE];
+		private boolean finished;
+
+		DeflatingOutputStream(OutputStream out, int level, Meter meter) {
+			this.out = out;
+			this.deflater = new Deflater(level);
+			this.meter = meter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (finished) {
+				throw new IOException("Stream finished");
+			}
+			deflater.setInput(b, off, len);
+			meter.add(len, 0, 0);
+			// Take all of it now, the caller may reuse b
+			while (!deflater.needsInput()) {
+				deflate(Deflater.NO_FLUSH);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!finished) {
+				while (deflate(Deflater.SYNC_FLUSH) == buffer.length) {
+					// output buffer was full, there is more
+				}
+			}
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!finished) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					deflate(Deflater.NO_FLUSH);
+				}
+				finished = true;
+				deflater.end();
+			}
+			out.close();
+		}
+
+		private int deflate(int flush) throws IOException {
+			long start = cpuNanos();
+			int length = deflater.deflate(buffer, 0, buffer.length, flush);
+			meter.add(0, length, cpuNanos() - start);
+			if (length > 0) {
+				out.write(buffer, 0, length);
+			}
+			return length;
+		}
+	}
+
+	private static final class InflatingInputStream extends InputStream {
+		private final InputStream in;
+		private final Inflater inflater = new Inflater();
+		private final Meter meter;
+		private final byte[] input = new byte[BLOCK_SIZE];
+
+		InflatingInputStream(InputStream in, Meter meter) {
+			this.in = in;
+			this.meter = meter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (true) {
+					long start = cpuNanos();
+					int length = inflater.inflate(b, off, len);
+					meter.add(length, 0, cpuNanos() - start);
+					if (length > 0) {
+						return length;
+					}
+					if (inflater.finished() || inflater.needsDictionary()) {
+						return -1;
+					}
+					if (inflater.needsInput()) {
+						// Blocks until the peer sends more, e.g. the next RPC message
+						int read = in.read(input);
+						if (read == -1) {
+							return -1;
+						}
+						meter.add(0, read, 0);
+						inflater.setInput(input, 0, read);
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt deflate stream", e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+	}
+
+	private static final class LzOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final Meter meter;
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private final byte[] compressed = new byte[8 + FastLz.maxCompressedLength(BLOCK_SIZE)];
+		private int count;
+
+		LzOutputStream(OutputStream out, Meter meter) {
+			this.out = out;
+			this.meter = meter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == block.length) {
+				writeBlock();
+			}
+			block[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == block.length) {
+					writeBlock();
+				}
+				int chunk = Math.min(len, block.length - count);
+				System.arraycopy(b, off, block, count, chunk);
+				count += chunk;
+				off += chunk;
+				len -= chunk;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writeBlock();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			writeBlock();
+			out.close();
+		}
+
+		private void writeBlock() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			long start = cpuNanos();
+			int length = FastLz.compress(block, count, compressed);
+			long cpu = cpuNanos() - start;
+			ByteBuffer header = ByteBuffer.allocate(8).putInt(count);
+			if (length < count) {
+				out.write(header.putInt(length).array());
+				out.write(compressed, 0, length);
+			} else {
+				length = count; // did not shrink, store it
+				out.write(header.putInt(length).array());
+				out.write(block, 0, length);
+			}
+			meter.add(count, 8 + length, cpu);
+			count = 0;
+		}
+	}
+
+	private static final class LzInputStream extends InputStream {
+		private final DataInputStream in;
+		private final Meter meter;
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private final byte[] compressed = new byte[FastLz.maxCompressedLength(BLOCK_SIZE)];
+		private int position;
+		private int limit;
+
+		LzInputStream(InputStream in, Meter meter) {
+			this.in = new DataInputStream(in);
+			this.meter = meter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position == limit && !readBlock()) {
+				return -1;
+			}
+			return block[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position == limit && !readBlock()) {
+				return -1;
+			}
+			int length = Math.min(len, limit - position);
+			System.arraycopy(block, position, b, off, length);
+			position += length;
+			return length;
+		}
+
+		// false at the end of the stream
+		private boolean readBlock() throws IOException {
+			int rawLength;
+			try {
+				rawLength = in.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			int storedLength = in.readInt();
+			if (rawLength <= 0 || rawLength > BLOCK_SIZE || storedLength <= 0 || storedLength > rawLength) {
+				throw new IOException("Corrupt lz block header: " + rawLength + " " + storedLength);
+			}
+			long cpu = 0;
+			if (storedLength == rawLength) {
+				in.readFully(block, 0, rawLength);
+			} else {
+				in.readFully(compressed, 0, storedLength);
+				long start = cpuNanos();
+				int length;
+				try {
+					length = FastLz.decompress(compressed, storedLength, block);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+				cpu = cpuNanos() - start;
+				if (length != rawLength) {
+					throw new IOException("Corrupt lz block: " + length + " bytes, expected " + rawLength);
+				}
+			}
+			meter.add(rawLength, 8 + storedLength, cpu);
+			position = 0;
+			limit = rawLength;
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * CongestionController - AIMD window plus pacing rate for one reliable UDP transfer
+ * <p>
+ * The window (in chunks) grows by one per acked chunk in slow start and by
+ * about one per round trip after that (additive increase). A loss reported
+ * by a NACK cuts it to DECREASE times its size, at most once per window of
+ * data (multiplicative decrease); a retransmission timeout drops it to
+ * MIN_WINDOW. Sends are
+ * spread over the round trip by a {@link TokenBucket} running at
+ * PACING_GAIN * window / srtt, so a window is never blasted back-to-back
+ * into the client's socket buffer.
+ * </p>
+ */
+public class CongestionController {
+	// The receiver acks every ACK_EVERY in-order chunks, a smaller window would stall on its quiet timer
+	static final double MIN_WINDOW = 4;
+	static final double INITIAL_WINDOW = 10;
+	static final double MAX_WINDOW = 512;
+	// Gentler than halving (as in CUBIC), so random loss does not starve the transfer
+	static final double DECREASE = 0.7;
+	// Pace slightly faster than window/RTT so the pacer itself never limits the window
+	static final double PACING_GAIN = 1.25;
+
+	private final int chunkBytes;
+	private final TokenBucket pacer;
+	private double window = INITIAL_WINDOW;
+	private double slowStartThreshold = MAX_WINDOW;
+	// Losses of chunks sent before this seq belong to the loss event already handled
+	private int recoveryEnd = -1;
+
+	private long lossEvents;
+	private long timeouts;
+
+	public CongestionController(int chunkBytes) {
+		this.chunkBytes = chunkBytes;
+		// No RTT sample yet: unpaced, only the initial window limits the first burst
+		this.pacer = new TokenBucket(0, 4L * chunkBytes);
+	}
+
+	public int window() {
+		return (int) window;
+	}
+
+	public void onAcked(int chunks, long srttNanos) {
+		for (int i = 0; i < chunks; i++) {
+			if (window < slowStartThreshold) {
+				window += 1;
+			} else {
+				window += 1 / window;
+			}
+		}
+		window = Math.min(window, MAX_WINDOW);
+		updateRate(srttNanos);
+	}
+
+	/**
+	 * @param seq     the chunk reported missing
+	 * @param nextSeq the next chunk that has never been sent
+	 */
+	public void onLoss(int seq, int nextSeq, long srttNanos) {
+		if (seq < recoveryEnd) {
+			return; // same loss event
+		}
+		lossEvents++;
+		recoveryEnd = nextSeq;
+		window = Math.max(MIN_WINDOW, window * DECREASE);
+		slowStartThreshold = window;
+		updateRate(srttNanos);
+	}
+
+	public void onTimeout(int nextSeq, long srttNanos) {
+		timeouts++;
+		recoveryEnd = nextSeq;
+		slowStartThreshold = Math.max(MIN_WINDOW, window / 2);
+		window = MIN_WINDOW;
+		updateRate(srttNanos);
+	}
+
+	private void updateRate(long srttNanos) {
+		if (srttNanos > 0) {
+			pacer.setRate(PACING_GAIN * window * chunkBytes * 1_000_000_000.0 / srttNanos);
+		}
+	}
+
+	public long nanosUntilSend(int bytes, long now) {
+		return pacer.nanosUntil(bytes, now);
+	}
+
+	public void onSent(int bytes, long now) {
+		pacer.consume(bytes, now);
+	}
+
+	public double rateBytesPerSecond() {
+		return pacer.rateBytesPerSecond();
+	}
+
+	public long lossEvents() {
+		return lossEvents;
+	}
+
+	public long timeouts() {
+		return timeouts;
+	}
+}
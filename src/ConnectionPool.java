@@ -0,0 +1,400 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ConnectionPool - reusable client connections to the RPC servers, keyed by host:port
+ * <p>
+ * A connection is borrowed for one request/response exchange and returned
+ * afterwards, so back-to-back calls skip the TCP handshake and teardown.
+ * For each key:
+ *  - at most maxTotal connections are in use; a borrow beyond that waits in
+ *    FIFO order for up to borrowTimeout, then fails
+ *  - at most maxIdle connections are kept when returned, the rest are closed
+ *  - a background evictor closes connections idle for longer than
+ *    idleTimeout, but keeps (and reopens) minIdle of them
+ *  - a connection idle for more than VALIDATE_AFTER_IDLE_MILLIS is checked
+ *    before reuse, and dropped if the server has closed it
+ * A call that fails on a reused connection before any response arrived
+ * (the server went away while it sat idle) drops the key's idle
+ * connections. It is retried once on a fresh one if the request could not
+ * even be written, or if the caller marked it idempotent: a request that
+ * was written may have been acted on, e.g. an async job queued, so
+ * sending it again could run it twice.
+ * </p>
+ * <p>
+ * The servers answer untagged requests in order on the connection they
+ * arrived on, so every exchange on a borrowed connection is a plain
+ * write-then-read.
+ * </p>
+ */
+public class ConnectionPool implements Closeable {
+	static final long VALIDATE_AFTER_IDLE_MILLIS = 1000;
+	// How long a health check waits for an EOF from the server
+	private static final int PROBE_MILLIS = 1;
+
+	private static ConnectionPool shared;
+
+	private final int minIdle;
+	private final int maxIdle;
+	private final int maxTotal;
+	private final long borrowTimeoutMillis;
+	private final long idleTimeoutMillis;
+	private final ConcurrentHashMap<Key, Pool> pools = new ConcurrentHashMap<>();
+	private ScheduledExecutorService evictor;
+	private volatile boolean closed;
+
+	/**
+	 * Where to connect and how to talk once connected; each distinct key has its own connections.
+	 *
+	 * @param encodings encodings to offer in the {@link Compression} handshake, or null
+	 */
+	public record Key(String host, int port, boolean binary, String encodings) {
+
+		public static Key of(String host, int port) {
+			return new Key(host, port, false, null);
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port + (binary ? " binary" : "") + (encodings != null ? " " + encodings : "");
+		}
+	}
+
+	public ConnectionPool(int minIdle, int maxIdle, int maxTotal, long borrowTimeoutMillis, long idleTimeoutMillis) {
+		this.minIdle = minIdle;
+		this.maxIdle = Math.max(maxIdle, minIdle);
+		this.maxTotal = Math.max(1, maxTotal);
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * The pool SyncRPCClient and AsyncRPCClient use unless given another one.
+	 */
+	public static synchronized ConnectionPool shared() {
+		if (shared == null) {
+			shared = new ConnectionPool(Constants.Config.CLIENT_POOL_MIN_IDLE, Constants.Config.CLIENT_POOL_MAX_IDLE,
+					Constants.Config.CLIENT_POOL_MAX, Constants.Config.CLIENT_POOL_BORROW_TIMEOUT_MS,
+					Constants.Config.CLIENT_POOL_IDLE_TIMEOUT_MS);
+		}
+		return shared;
+	}
+
+	/**
+	 * Send one request on a pooled connection and wait for its response;
+	 * only retried on a stale connection if the request was not written.
+	 */
+	public RpcResponse call(Key key, RpcRequest request) throws IOException {
+		return call(key, request, false);
+	}
+
+	/**
+	 * @param idempotent running the request twice does no harm (e.g. add, sort), so it is
+	 *                   retried on a stale connection even after it was written
+	 */
+	public RpcResponse call(Key key, RpcRequest request, boolean idempotent) throws IOException {
+		Pool pool = pool(key);
+		Connection connection = pool.borrow();
+		try {
+			return connection.call(request);
+		} catch (IOException e) {
+			if (!connection.reused || connection.answered || connection.written && !idempotent) {
+				throw e;
+			}
+			// Stale: the others that sat idle as long are likely dead too
+			pool.retries.increment();
+			pool.clearIdle();
+		} finally {
+			connection.close();
+		}
+		try (Connection fresh = pool.borrow()) {
+			return fresh.call(request);
+		}
+	}
+
+	/**
+	 * Borrow a connection for several exchanges; close it to give it back.
+	 */
+	public Connection borrow(Key key) throws IOException {
+		return pool(key).borrow();
+	}
+
+	private Pool pool(Key key) throws IOException {
+		if (closed) {
+			throw new IOException("Connection pool closed");
+		}
+		Pool pool = pools.get(key);
+		if (pool == null) {
+			pool = pools.computeIfAbsent(key, Pool::new);
+			startEvictor();
+		}
+		return pool;
+	}
+
+	private synchronized void startEvictor() {
+		if (evictor != null || closed) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "connection-pool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(100, Math.min(idleTimeoutMillis / 2, 5000));
+		evictor.scheduleWithFixedDelay(() -> pools.values().forEach(Pool::evict), period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Per key: "3 idle, 1 in use, 10 opened, ..." including the wait-queue counters.
+	 */
+	public String stats() {
+		StringBuilder sb = new StringBuilder();
+		for (Pool pool : pools.values()) {
+			sb.append(sb.length() == 0 ? "" : "\n").append(pool.stats());
+		}
+		return sb.length() == 0 ? "no connections" : sb.toString();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			if (evictor != null) {
+				evictor.shutdownNow();
+			}
+		}
+		pools.values().forEach(Pool::clearIdle);
+	}
+
+	/**
+	 * One pooled connection. Closing it returns it to the pool, or closes
+	 * the socket if it broke while borrowed.
+	 */
+	public static final class Connection implements Closeable {
+		private final Pool pool;
+		private final Socket socket;
+		private final InputStream socketIn;
+		private final Codec codec;
+		private long idleSince;
+		// Borrowed before, so it may have gone stale while idle
+		private boolean reused;
+		// At least one response came back during the current borrow
+		private boolean answered;
+		// The last request went out in full, so the server may have acted on it
+		private boolean written;
+		private boolean broken;
+
+		private Connection(Pool pool, Socket socket, InputStream socketIn, Codec codec) {
+			this.pool = pool;
+			this.socket = socket;
+			this.socketIn = socketIn;
+			this.codec = codec;
+		}
+
+		public RpcResponse call(RpcRequest request) throws IOException {
+			written = false;
+			try {
+				codec.writeRequest(request);
+				written = true;
+				RpcResponse response = codec.readResponse();
+				if (response == null) {
+					throw new IOException("Connection closed by server");
+				}
+				answered = true;
+				return response;
+			} catch (IOException e) {
+				broken = true;
+				throw e;
+			}
+		}
+
+		// Idle connections get no data, so EOF or any byte means the connection is unusable
+		private boolean isHealthy() {
+			if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+				return false;
+			}
+			try {
+				socket.setSoTimeout(PROBE_MILLIS);
+				socketIn.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				try {
+					socket.setSoTimeout(0);
+				} catch (IOException e) {
+					broken = true;
+				}
+			}
+		}
+
+		private void destroy() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+
+		@Override
+		public void close() {
+			pool.release(this);
+		}
+	}
+
+	private final class Pool {
+		private final Key key;
+		// One permit per connection that may be in use; fair, so waiters are served in order
+		private final Semaphore permits = new Semaphore(maxTotal, true);
+		// Most recently returned first, so the evictor finds the oldest at the end
+		private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+		private final AtomicInteger waiting = new AtomicInteger();
+		private final AtomicInteger maxWaiting = new AtomicInteger();
+		private final LongAdder opened = new LongAdder();
+		private final LongAdder destroyed = new LongAdder();
+		private final LongAdder borrows = new LongAdder();
+		private final LongAdder waits = new LongAdder();
+		private final LongAdder waitNanos = new LongAdder();
+		private final LongAdder timeouts = new LongAdder();
+		private final LongAdder evicted = new LongAdder();
+		private final LongAdder failedChecks = new LongAdder();
+		private final LongAdder retries = new LongAdder();
+
+		Pool(Key key) {
+			this.key = key;
+		}
+
+		Connection borrow() throws IOException {
+			if (!permits.tryAcquire()) {
+				waitForPermit();
+			}
+			try {
+				Connection connection;
+				while ((connection = idle.pollFirst()) != null) {
+					long idleMillis = (System.nanoTime() - connection.idleSince) / 1_000_000;
+					if (idleMillis < VALIDATE_AFTER_IDLE_MILLIS || connection.isHealthy()) {
+						break;
+					}
+					failedChecks.increment();
+					destroy(connection);
+				}
+				if (connection == null) {
+					connection = open();
+				} else {
+					connection.reused = true;
+				}
+				connection.answered = false;
+				borrows.increment();
+				return connection;
+			} catch (IOException | RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+		}
+
+		private void waitForPermit() throws IOException {
+			long start = System.nanoTime();
+			maxWaiting.accumulateAndGet(waiting.incrementAndGet(), Math::max);
+			try {
+				if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+					timeouts.increment();
+					throw new IOException("Timed out after " + borrowTimeoutMillis + " ms waiting for a connection to "
+							+ key);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a connection to " + key, e);
+			} finally {
+				waiting.decrementAndGet();
+			}
+			waits.increment();
+			waitNanos.add(System.nanoTime() - start);
+		}
+
+		void release(Connection connection) {
+			if (connection.broken || closed || idle.size() >= maxIdle) {
+				destroy(connection);
+			} else {
+				connection.idleSince = System.nanoTime();
+				idle.addFirst(connection);
+			}
+			permits.release();
+		}
+
+		private Connection open() throws IOException {
+			Socket socket = new Socket(key.host(), key.port());
+			try {
+				socket.setTcpNoDelay(true);
+				InputStream in = socket.getInputStream();
+				Compression.Streams streams = Compression.offer(in, socket.getOutputStream(), key.encodings());
+				Codec codec = key.binary()
+						? new BinaryCodec(streams.in(), streams.out())
+						: new TextCodec(streams.in(), streams.out());
+				opened.increment();
+				return new Connection(this, socket, in, codec);
+			} catch (IOException | RuntimeException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		private void destroy(Connection connection) {
+			connection.destroy();
+			destroyed.increment();
+		}
+
+		// Evictor: close the oldest idle connections past idleTimeout, then top up to minIdle
+		void evict() {
+			long now = System.nanoTime();
+			Connection oldest;
+			while (idle.size() > minIdle && (oldest = idle.peekLast()) != null
+					&& (now - oldest.idleSince) / 1_000_000 > idleTimeoutMillis) {
+				if (idle.removeLastOccurrence(oldest)) {
+					evicted.increment();
+					destroy(oldest);
+				}
+			}
+			while (!closed && idle.size() < minIdle && permits.tryAcquire()) {
+				try {
+					Connection connection = open();
+					connection.idleSince = System.nanoTime();
+					idle.addLast(connection);
+				} catch (IOException e) {
+					break; // server down, try again next round
+				} finally {
+					permits.release();
+				}
+			}
+		}
+
+		void clearIdle() {
+			Connection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				destroy(connection);
+			}
+		}
+
+		String stats() {
+			long waited = waits.sum();
+			return String.format("[ConnectionPool] %s: %d idle, %d in use, %d opened, %d closed, %d borrows, "
+							+ "%d waited (avg %.2f ms, max queue %d), %d timeouts, %d evicted, %d failed checks, %d retries",
+					key, idle.size(), maxTotal - permits.availablePermits(), opened.sum(), destroyed.sum(), borrows.sum(),
+					waited, waited == 0 ? 0.0 : waitNanos.sum() / 1_000_000.0 / waited, maxWaiting.get(),
+					timeouts.sum(), evicted.sum(), failedChecks.sum(), retries.sum());
+		}
+	}
+}
@@ -30,5 +30,28 @@ public interface Constants {
 	interface Config {
 		int BUFFER_SIZE = 4096;
 		int RPC_ID = 1583;
+		int IO_THREADS = 2;
+		int POOL_SIZE = 64;
+		int JOB_QUEUE_SIZE = 1000;
+		int RESULT_TTL_SECONDS = 300;
+		int MAX_RESULTS = 10000;
+		// Cached results of pure RPC methods (MemoCache), per server
+		int MEMO_ENTRIES = 1024;
+		// Micro-batching of small requests (--batch): how long to collect, and at most how many
+		int BATCH_WINDOW_MICROS = 200;
+		int BATCH_MAX = 64;
+		// Streaming batches: calls running or waiting to be written, per client
+		int STREAM_MAX_INFLIGHT = 64;
+		// Loops shorter than this run on one core (RangeSplitter), in iterations
+		int SPLIT_THRESHOLD = 1 << 22;
+		int FILE_CACHE_MB = 64;
+		// Pacing rate of a legacy (unacknowledged) UDP download, MB/s per client
+		int UDP_RATE_MB = 32;
+		// Client connection pool (ConnectionPool.shared), per host:port
+		int CLIENT_POOL_MIN_IDLE = 1;
+		int CLIENT_POOL_MAX_IDLE = 8;
+		int CLIENT_POOL_MAX = 32;
+		long CLIENT_POOL_BORROW_TIMEOUT_MS = 5000;
+		long CLIENT_POOL_IDLE_TIMEOUT_MS = 60000;
 	}
 }
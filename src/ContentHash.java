@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ContentHash - SHA-256 of file contents, and the conditional-fetch protocol built on it
+ * <p>
+ * Protocol: a client that already holds a copy appends
+ * " IF-NONE-MATCH:<hex sha-256>" to its request line or datagram. If the
+ * server's file has that hash, the reply is "NOT_MODIFIED FILENAME:<renamed>"
+ * and no body; otherwise the request is served as if unconditional.
+ * </p>
+ * <p>
+ * Servers look hashes up with {@link #of}, which computes each file's hash
+ * once and keeps it until the file's size or modification time changes.
+ * </p>
+ */
+public final class ContentHash {
+	public static final String IF_NONE_MATCH = " IF-NONE-MATCH:";
+	public static final String NOT_MODIFIED = "NOT_MODIFIED";
+
+	private static final ConcurrentHashMap<String, Entry> HASHES = new ConcurrentHashMap<>();
+
+	private record Entry(long lastModified, long size, String hash) {
+	}
+
+	private ContentHash() {
+	}
+
+	/**
+	 * A request line split into the plain request and the client's hash.
+	 */
+	public record Conditional(String request, String hash) {
+
+		public static Conditional parse(String line) {
+			int at = line == null ? -1 : line.lastIndexOf(IF_NONE_MATCH);
+			if (at < 0) {
+				return new Conditional(line, null);
+			}
+			return new Conditional(line.substring(0, at), line.substring(at + IF_NONE_MATCH.length()).trim());
+		}
+
+		/**
+		 * @return true if the client's copy has the same content as file
+		 */
+		public boolean notModified(File file) {
+			if (hash == null || !file.isFile()) {
+				return false;
+			}
+			try {
+				return hash.equals(of(file));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @param hash the hash of the client's copy, or null to fetch unconditionally
+	 */
+	public static String conditional(String request, String hash) {
+		return hash == null ? request : request + IF_NONE_MATCH + hash;
+	}
+
+	public static String notModified(String renamedFile) {
+		return NOT_MODIFIED + " FILENAME:" + renamedFile;
+	}
+
+	/**
+	 * @return the renamed file of a "NOT_MODIFIED FILENAME:x" reply, or null for any other reply
+	 */
+	public static String parseNotModified(String reply) {
+		if (reply == null || !reply.startsWith(NOT_MODIFIED)) {
+			return null;
+		}
+		int at = reply.indexOf("FILENAME:");
+		return at < 0 ? "" : reply.substring(at + "FILENAME:".length()).trim();
+	}
+
+	/**
+	 * Hash of the file's current contents, cached per file version.
+	 */
+	public static String of(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		long lastModified = file.lastModified();
+		long size = file.length();
+		Entry entry = HASHES.get(key);
+		if (entry == null || entry.lastModified != lastModified || entry.size != size) {
+			entry = new Entry(lastModified, size, compute(file));
+			HASHES.put(key, entry);
+		}
+		return entry.hash;
+	}
+
+	/**
+	 * Hash the file without caching, e.g. a download that was just written.
+	 */
+	public static String compute(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is required of every Java platform", e);
+		}
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+}
@@ -0,0 +1,112 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * ContentStore - client-side content-addressed store for downloaded files
+ * <p>
+ * Every download is kept once under "<folder>/.store/objects/<sha-256>", and
+ * the renamed file the client reports is a hard link to that object, so
+ * downloading the same image again costs a directory entry instead of a
+ * full copy. "<folder>/.store/names/<requested name>" remembers the hash
+ * of the latest copy of each requested file, which the clients send along
+ * as {@link ContentHash#IF_NONE_MATCH}. Where a hard link cannot be made
+ * (no support for them, another device, too many links) the object is
+ * copied instead.
+ * </p>
+ */
+public class ContentStore {
+	private final File objects;
+	private final File names;
+
+	public ContentStore(String folder) {
+		File root = new File(folder, ".store");
+		this.objects = new File(root, "objects");
+		this.names = new File(root, "names");
+		objects.mkdirs();
+		names.mkdirs();
+	}
+
+	/**
+	 * @return the hash of the stored copy of requestedFile, or null if there is none
+	 */
+	public String hashOf(String requestedFile) {
+		File name = new File(names, requestedFile);
+		if (!name.isFile()) {
+			return null;
+		}
+		try {
+			String hash = Files.readString(name.toPath(), StandardCharsets.UTF_8).trim();
+			return new File(objects, hash).isFile() ? hash : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Move a finished download into the store and leave a hard link in its place.
+	 *
+	 * @return the hash of its content
+	 */
+	public String store(File downloaded, String requestedFile) throws IOException {
+		String hash = ContentHash.compute(downloaded);
+		Path object = new File(objects, hash).toPath();
+		try {
+			// The download becomes the object; nothing is copied
+			Files.createLink(object, downloaded.toPath());
+		} catch (FileAlreadyExistsException e) {
+			// Already stored: swap the duplicate for a link to the existing object
+			Files.delete(downloaded.toPath());
+			link(object, downloaded.toPath());
+		} catch (FileSystemException | UnsupportedOperationException e) {
+			Files.copy(downloaded.toPath(), object, StandardCopyOption.REPLACE_EXISTING);
+		}
+		remember(requestedFile, hash);
+		return hash;
+	}
+
+	/**
+	 * Materialize a stored object as target, e.g. after a NOT_MODIFIED reply.
+	 *
+	 * @return false if the object is no longer in the store
+	 */
+	public boolean checkout(String hash, File target) throws IOException {
+		Path object = new File(objects, hash).toPath();
+		if (!Files.isRegularFile(object)) {
+			return false;
+		}
+		Files.deleteIfExists(target.toPath());
+		link(object, target.toPath());
+		return true;
+	}
+
+	/**
+	 * Remove target before a new download is written to it. If it is a link
+	 * into the store, writing through it would change the stored object too.
+	 */
+	public static void detach(File target) throws IOException {
+		Files.deleteIfExists(target.toPath());
+	}
+
+	private static void link(Path object, Path target) throws IOException {
+		try {
+			Files.createLink(target, object);
+		} catch (FileAlreadyExistsException e) {
+			throw e; // a copy could not replace it either
+		} catch (FileSystemException | UnsupportedOperationException e) {
+			Files.copy(object, target);
+		}
+	}
+
+	private void remember(String requestedFile, String hash) throws IOException {
+		Path name = new File(names, requestedFile).toPath();
+		Path temp = Files.createTempFile(names.toPath(), "name", ".tmp");
+		Files.writeString(temp, hash, StandardCharsets.UTF_8);
+		Files.move(temp, name, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
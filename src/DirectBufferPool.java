@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DirectBufferPool - reusable direct ByteBuffers of one size
+ * <p>
+ * Direct buffers are expensive to allocate and only freed by the GC, so
+ * they are recycled instead of allocated per datagram. At most maxPooled
+ * idle buffers are kept; buffers released beyond that are left to the GC.
+ * Safe to use from any thread.
+ * </p>
+ */
+public class DirectBufferPool {
+	private final int bufferSize;
+	private final ArrayBlockingQueue<ByteBuffer> free;
+	private final AtomicLong allocated = new AtomicLong();
+
+	public DirectBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.free = new ArrayBlockingQueue<>(maxPooled);
+	}
+
+	/**
+	 * @return a cleared buffer of bufferSize bytes
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		return buffer.clear();
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer.isDirect() && buffer.capacity() == bufferSize) {
+			free.offer(buffer);
+		}
+	}
+
+	/**
+	 * Buffers allocated over the pool's lifetime, i.e. how many it ever needed at once (plus overflow).
+	 */
+	public long allocated() {
+		return allocated.get();
+	}
+}
@@ -0,0 +1,123 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * ExecutionStrategy - how the blocking servers run their handlers
+ * <p>
+ *  - thread  : a new platform thread per connection/request (the original behaviour)
+ *  - pool    : a bounded pool of platform threads, sized with --pool-size=N
+ *  - virtual : a new virtual thread per task (needs Java 21+; falls back to "thread")
+ * Selected on the command line with --executor=thread|pool|virtual.
+ * </p>
+ * <p>
+ * Virtual threads are cheap to block on I/O but should not sit on a CPU-bound
+ * loop, since that pins their carrier thread. CPU-heavy methods such as "foo"
+ * therefore go through {@link #offloadCpu}, which moves them onto a fixed pool
+ * of platform threads when called from a virtual thread.
+ * </p>
+ */
+public enum ExecutionStrategy {
+	THREAD, POOL, VIRTUAL;
+
+	private static final Method NEW_VIRTUAL_EXECUTOR = lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+	private static final Method IS_VIRTUAL = lookup(Thread.class, "isVirtual");
+
+	// Platform threads for CPU-bound work submitted from virtual threads
+	private static final ExecutorService CPU_POOL = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), runnable -> {
+				Thread thread = new Thread(runnable, "cpu-worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	public static ExecutionStrategy fromOptions(ServerOptions options) {
+		String name = options.get("executor", "thread");
+		try {
+			return valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("[Executor] Unknown executor '" + name + "', using thread-per-connection");
+			return THREAD;
+		}
+	}
+
+	/**
+	 * Shortcut for {@code fromOptions(options).newExecutor(--pool-size)}.
+	 */
+	public static ExecutorService executorFor(ServerOptions options) {
+		return fromOptions(options).newExecutor(options.getInt("pool-size", Constants.Config.POOL_SIZE));
+	}
+
+	public ExecutorService newExecutor(int poolSize) {
+		switch (this) {
+			case POOL:
+				return Executors.newFixedThreadPool(poolSize);
+			case VIRTUAL:
+				if (NEW_VIRTUAL_EXECUTOR != null) {
+					try {
+						return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+					} catch (ReflectiveOperationException e) {
+						e.printStackTrace();
+					}
+				}
+				System.err.println("[Executor] Virtual threads need Java 21+, using thread-per-connection");
+				return Executors.newCachedThreadPool();
+			case THREAD:
+			default:
+				// Same as "new Thread(...).start()", but reuses threads that have finished
+				return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Run a CPU-bound task. On a virtual thread it is handed to the platform CPU
+	 * pool and the virtual thread parks (unmounts) until it finishes; on a
+	 * platform thread it simply runs inline.
+	 */
+	public static <T> T offloadCpu(Supplier<T> task) {
+		if (!isVirtualThread()) {
+			return task.get();
+		}
+		try {
+			return CompletableFuture.supplyAsync(task, CPU_POOL).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for CPU task", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	public static void offloadCpu(Runnable task) {
+		offloadCpu(() -> {
+			task.run();
+			return null;
+		});
+	}
+
+	private static boolean isVirtualThread() {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	// Looked up reflectively so the project still compiles and runs on Java 17
+	private static Method lookup(Class<?> type, String name) {
+		try {
+			return type.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
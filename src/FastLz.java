@@ -0,0 +1,158 @@
+/**
+ * FastLz - a small LZ77 block compressor in the style of LZ4
+ * <p>
+ * Much faster than Deflater at any level, at the cost of a worse ratio:
+ * matches are found through a single hash table of 4-byte sequences and
+ * written without entropy coding. Runs of incompressible input are skipped
+ * over in growing steps, so already-compressed data costs little CPU.
+ * </p>
+ * <p>
+ * Block format, a list of sequences:
+ * <pre>
+ *  token           high nibble: literal count, low nibble: match length - 4 (15 = more follows)
+ *  [255 ... n]     extra literal count, while the token nibble was 15
+ *  literals
+ *  offset          2 bytes, little-endian, back from the current position
+ *  [255 ... n]     extra match length, while the token nibble was 15
+ * </pre>
+ * The last sequence has literals only and ends the block.
+ * </p>
+ */
+public final class FastLz {
+	static final int MIN_MATCH = 4;
+	static final int MAX_OFFSET = 65535;
+	private static final int HASH_BITS = 14;
+	// Skip ahead faster the longer no match has been found
+	private static final int SKIP_SHIFT = 6;
+
+	private FastLz() {
+	}
+
+	/**
+	 * @return the largest compressed size of length input bytes
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compress src[0, length) into dst, which must hold maxCompressedLength(length) bytes.
+	 *
+	 * @return the compressed size
+	 */
+	public static int compress(byte[] src, int length, byte[] dst) {
+		// position + 1 of the last occurrence of each hash, 0 = none
+		int[] table = new int[1 << HASH_BITS];
+		int anchor = 0;
+		int ip = 0;
+		int op = 0;
+		int limit = length - MIN_MATCH;
+		while (ip <= limit) {
+			int sequence = readInt(src, ip);
+			int hash = hash(sequence);
+			int ref = table[hash] - 1;
+			table[hash] = ip + 1;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+				ip += 1 + ((ip - anchor) >>> SKIP_SHIFT);
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < length && src[ref + matchLength] == src[ip + matchLength]) {
+				matchLength++;
+			}
+			op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLength);
+			ip += matchLength;
+			anchor = ip;
+		}
+		return writeSequence(dst, op, src, anchor, length - anchor, 0, 0);
+	}
+
+	/**
+	 * Decompress src[0, length) into dst.
+	 *
+	 * @return the decompressed size
+	 * @throws IllegalArgumentException if the block is corrupt or does not fit into dst
+	 */
+	public static int decompress(byte[] src, int length, byte[] dst) {
+		int ip = 0;
+		int op = 0;
+		try {
+			while (ip < length) {
+				int token = src[ip++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int extra;
+					do {
+						extra = src[ip++] & 0xFF;
+						literals += extra;
+					} while (extra == 255);
+				}
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+				if (ip == length) {
+					break; // last sequence
+				}
+				int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+				ip += 2;
+				int matchLength = (token & 15) + MIN_MATCH;
+				if ((token & 15) == 15) {
+					int extra;
+					do {
+						extra = src[ip++] & 0xFF;
+						matchLength += extra;
+					} while (extra == 255);
+				}
+				int ref = op - offset;
+				if (offset == 0 || ref < 0 || op + matchLength > dst.length) {
+					throw new IllegalArgumentException("Corrupt block at " + ip);
+				}
+				// Byte by byte: a match may overlap the bytes it produces
+				for (int end = op + matchLength; op < end; op++, ref++) {
+					dst[op] = dst[ref];
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Corrupt block at " + ip, e);
+		}
+		return op;
+	}
+
+	private static int writeSequence(byte[] dst, int op, byte[] src, int start, int literals, int offset,
+	                                 int matchLength) {
+		int tokenAt = op++;
+		int token = Math.min(literals, 15) << 4;
+		op = writeLength(dst, op, literals - 15);
+		System.arraycopy(src, start, dst, op, literals);
+		op += literals;
+		if (matchLength > 0) {
+			token |= Math.min(matchLength - MIN_MATCH, 15);
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			op = writeLength(dst, op, matchLength - MIN_MATCH - 15);
+		}
+		dst[tokenAt] = (byte) token;
+		return op;
+	}
+
+	// The part of a length beyond its token nibble: 255s, then the remainder
+	private static int writeLength(byte[] dst, int op, int extra) {
+		if (extra < 0) {
+			return op;
+		}
+		while (extra >= 255) {
+			dst[op++] = (byte) 255;
+			extra -= 255;
+		}
+		dst[op++] = (byte) extra;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int at) {
+		return (b[at] & 0xFF) | (b[at + 1] & 0xFF) << 8 | (b[at + 2] & 0xFF) << 16 | (b[at + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_BITS);
+	}
+}
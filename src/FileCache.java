@@ -0,0 +1,229 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileCache - hot files of one folder, held in off-heap direct buffers
+ * <p>
+ * {@link #get(String)} serves a cached file without touching the file
+ * system. On a miss the file is read once into a direct ByteBuffer; the
+ * least recently used files are evicted once the total exceeds maxBytes.
+ * Files larger than maxBytes are never loaded: {@link #get(String)} returns
+ * {@link #NOT_CACHEABLE} for them, and the caller sends them from disk.
+ * </p>
+ * <p>
+ * A WatchService on the folder drops an entry as soon as its file is
+ * created, modified or deleted, so the next request reloads it. Contents are
+ * copied rather than memory-mapped: a mapping would change under a client
+ * mid-transfer (or fault if the file is truncated) when the file is
+ * rewritten.
+ * </p>
+ */
+public class FileCache implements Closeable {
+
+	/**
+	 * One cached file. The content buffer is shared, so always send from
+	 * {@link #content()}, which returns an independent read-only view.
+	 */
+	public static final class CachedFile {
+		private final String name;
+		private final ByteBuffer content;
+
+		CachedFile(String name, ByteBuffer content) {
+			this.name = name;
+			this.content = content;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public long size() {
+			return content.remaining();
+		}
+
+		public ByteBuffer content() {
+			return content.duplicate();
+		}
+	}
+
+	/**
+	 * Returned by {@link #get(String)} for a file too large to cache; it has no
+	 * content, so serve the file from disk (transferTo or a mapping) instead.
+	 */
+	public static final CachedFile NOT_CACHEABLE = new CachedFile(null, null);
+
+	private final Path folder;
+	private final long maxBytes;
+	private final WatchService watcher;
+	// Cleared if the folder can no longer be watched; entries could then go stale
+	private volatile boolean watching = true;
+
+	// Access-ordered, so iteration starts at the least recently used file
+	private final LinkedHashMap<String, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+	private long cachedBytes;
+	// Bumped by every invalidation; a load that raced with one is not cached
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public FileCache(String folder, long maxBytes) throws IOException {
+		this.folder = Paths.get(folder).toAbsolutePath().normalize();
+		this.maxBytes = maxBytes;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+		Thread thread = new Thread(this::watch, "file-cache-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Cache for a server's image folder, sized by --cache-size=<MB>
+	 * (default Constants.Config.FILE_CACHE_MB).
+	 *
+	 * @return null if --cache-size=0 or the folder cannot be watched
+	 */
+	public static FileCache forOptions(String folder, ServerOptions options) {
+		long megabytes = options.getInt("cache-size", Constants.Config.FILE_CACHE_MB);
+		if (megabytes <= 0) {
+			return null;
+		}
+		try {
+			return new FileCache(folder, megabytes * 1024 * 1024);
+		} catch (IOException e) {
+			System.err.println("[FileCache] Serving from disk, cannot watch " + folder + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the file's contents, {@link #NOT_CACHEABLE} if it is larger than
+	 *         maxBytes, or null if it does not exist, is not a regular file or
+	 *         lies outside the folder
+	 */
+	public CachedFile get(String name) throws IOException {
+		long loadGeneration;
+		synchronized (this) {
+			CachedFile cached = files.get(name);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return cached;
+			}
+			loadGeneration = generation;
+		}
+		misses.incrementAndGet();
+
+		Path path = folder.resolve(name).normalize();
+		if (!path.startsWith(folder) || !Files.isRegularFile(path)) {
+			return null;
+		}
+		if (Files.size(path) > Math.min(maxBytes, Integer.MAX_VALUE)) {
+			return NOT_CACHEABLE;
+		}
+		CachedFile loaded = new CachedFile(name, load(path));
+
+		synchronized (this) {
+			if (watching && generation == loadGeneration && loaded.size() <= maxBytes && !files.containsKey(name)) {
+				files.put(name, loaded);
+				cachedBytes += loaded.size();
+				evictOverflow();
+			}
+		}
+		return loaded;
+	}
+
+	public synchronized void invalidate(String name) {
+		generation++;
+		CachedFile removed = files.remove(name);
+		if (removed != null) {
+			cachedBytes -= removed.size();
+			invalidations.incrementAndGet();
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		generation++;
+		invalidations.addAndGet(files.size());
+		files.clear();
+		cachedBytes = 0;
+	}
+
+	public synchronized String stats() {
+		return "files=" + files.size() + " bytes=" + cachedBytes + " hits=" + hits.get() + " misses=" + misses.get()
+				+ " evictions=" + evictions.get() + " invalidations=" + invalidations.get();
+	}
+
+	private void evictOverflow() {
+		Iterator<Map.Entry<String, CachedFile>> eldest = files.entrySet().iterator();
+		while (cachedBytes > maxBytes && eldest.hasNext()) {
+			cachedBytes -= eldest.next().getValue().size();
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static ByteBuffer load(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File too large to cache: " + path); // grew since it was checked
+			}
+			ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+			while (content.hasRemaining() && channel.read(content) != -1) {
+				// keep reading until full
+			}
+			content.flip();
+			return content.asReadOnlyBuffer();
+		}
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						invalidateAll(); // events were lost, so trust nothing
+					} else {
+						invalidate(event.context().toString());
+					}
+				}
+				if (!key.reset()) {
+					System.err.println("[FileCache] Folder no longer watchable, disabling cache: " + folder);
+					watching = false;
+					invalidateAll();
+					return;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watching = false;
+		watcher.close();
+		invalidateAll();
+	}
+}
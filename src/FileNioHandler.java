@@ -0,0 +1,194 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+
+/**
+ * FileNioHandler - the "FILENAME:/FILESIZE:" file-transfer protocol on top of {@link NioServer}
+ * <p>
+ * The client sends one file name per connection. The reply is the same as
+ * MultiThreadedTCPServer's: "FILENAME:<renamed>", "FILESIZE:<size>", then the
+ * raw bytes. File contents are memory-mapped and written straight from the
+ * mapping, so the I/O thread never blocks on a disk read loop. What does
+ * read whole files, hashing a conditional request (see {@link ContentHash})
+ * and loading a {@link FileCache} miss, runs on the worker executor, and
+ * the reply is then sent from the I/O thread.
+ * </p>
+ * <p>
+ * A client that offers compression (see {@link Compression}) is answered
+ * with "ENCODING:identity": compressing would put CPU work on the I/O threads.
+ * </p>
+ */
+public class FileNioHandler extends LineNioHandler {
+	// Keep each mapping well under the 2 GB MappedByteBuffer limit
+	private static final long MAX_MAPPING = 1L << 30;
+
+	private final String folder;
+	private final BiFunction<String, Integer, String> renamer;
+	private final FileCache cache;
+	private final Executor workers;
+
+	/**
+	 * @param renamer (requestedFile, clientPort) -> file name reported to the client
+	 */
+	public FileNioHandler(String folder, BiFunction<String, Integer, String> renamer, Executor workers) {
+		this(folder, renamer, null, workers);
+	}
+
+	/**
+	 * @param cache   serve hot files from memory, or null to map every file from disk
+	 * @param workers runs what may block on the disk, e.g. hashing a file for a conditional request
+	 */
+	public FileNioHandler(String folder, BiFunction<String, Integer, String> renamer, FileCache cache,
+			Executor workers) {
+		this.folder = folder;
+		this.renamer = renamer;
+		this.cache = cache;
+		this.workers = workers;
+	}
+
+	@Override
+	protected void onLine(NioConnection connection, String line) {
+		if (connection.attachment() != null) {
+			return; // one request per connection
+		}
+		ContentHash.Conditional request = ContentHash.Conditional.parse(line);
+		Compression.Offer offer = Compression.Offer.parse(request.request());
+		String requestedFile = offer.request();
+		String encoding = offer.encodings() == null ? "" : Compression.ENCODING + Compression.IDENTITY + "\n";
+		connection.attach(requestedFile);
+		System.out.println("[NioFileServer] Received: " + requestedFile + " from " + connection.remoteAddress());
+
+		if (request.hash() == null && cache == null) {
+			serve(connection, requestedFile, encoding, null);
+			return;
+		}
+		// Hashing and cache misses read the whole file, so they must not run on the I/O thread
+		workers.execute(() -> {
+			boolean notModified = request.notModified(new File(folder, requestedFile));
+			FileCache.CachedFile cached;
+			try {
+				cached = notModified ? null : lookup(requestedFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				connection.close();
+				return;
+			}
+			connection.execute(() -> {
+				if (!connection.isOpen()) {
+					return;
+				}
+				if (notModified) {
+					connection.write(ContentHash.notModified(renamer.apply(requestedFile, connection.remotePort())) + "\n");
+					connection.closeAfterWrite();
+				} else {
+					serve(connection, requestedFile, encoding, cached);
+				}
+			});
+		});
+	}
+
+	// Worker: what FileCache.get returns for the request, or null without a cache
+	private FileCache.CachedFile lookup(String requestedFile) throws IOException {
+		if (cache == null) {
+			return null;
+		}
+		if (requestedFile.startsWith(FileTransfer.RANGE_PREFIX)) {
+			FileTransfer.RangeRequest range = FileTransfer.RangeRequest.parse(requestedFile);
+			return range == null ? null : cache.get(range.fileName());
+		}
+		return cache.get(requestedFile);
+	}
+
+	// I/O thread: the reply to a request that needs the file's content, cached already looked up by a worker
+	private void serve(NioConnection connection, String requestedFile, String encoding, FileCache.CachedFile cached) {
+		if (requestedFile.startsWith(FileTransfer.RANGE_PREFIX)) {
+			sendRange(connection, FileTransfer.RangeRequest.parse(requestedFile), cached);
+			return;
+		}
+		// Files too large to cache are mapped from disk like with no cache at all
+		if (cache != null && cached != FileCache.NOT_CACHEABLE) {
+			sendCached(connection, requestedFile, encoding, cached);
+			return;
+		}
+
+		File file = new File(folder, requestedFile);
+		if (!file.isFile()) {
+			connection.write("ERROR: File not found\n");
+			connection.closeAfterWrite();
+			return;
+		}
+
+		String renamedFile = renamer.apply(requestedFile, connection.remotePort());
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long fileSize = fileChannel.size();
+			connection.write("FILENAME:" + renamedFile + "\n" + "FILESIZE:" + fileSize + "\n" + encoding);
+			for (long offset = 0; offset < fileSize; offset += MAX_MAPPING) {
+				long length = Math.min(MAX_MAPPING, fileSize - offset);
+				connection.write(fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			connection.close();
+			return;
+		}
+		connection.closeAfterWrite();
+	}
+
+	// Same reply as MultiThreadedTCPServer: FILENAME, FILESIZE, RANGE and the bytes of the range
+	private void sendRange(NioConnection connection, FileTransfer.RangeRequest range, FileCache.CachedFile cached) {
+		if (range == null) {
+			connection.write("ERROR: Invalid range request\n");
+			connection.closeAfterWrite();
+			return;
+		}
+		try {
+			boolean fromDisk = cache == null || cached == FileCache.NOT_CACHEABLE;
+			File file = new File(folder, range.fileName());
+			if (fromDisk ? !file.isFile() : cached == null) {
+				connection.write("ERROR: File not found\n");
+				connection.closeAfterWrite();
+				return;
+			}
+			long fileSize = fromDisk ? file.length() : cached.size();
+			long length = range.lengthWithin(fileSize);
+			if (length < 0) {
+				connection.write("ERROR: Invalid range " + range.offset() + " for size " + fileSize + "\n");
+				connection.closeAfterWrite();
+				return;
+			}
+			String renamedFile = renamer.apply(range.fileName(), connection.remotePort());
+			connection.write("FILENAME:" + renamedFile + "\n" + "FILESIZE:" + fileSize + "\n"
+					+ "RANGE:" + range.offset() + " " + length + "\n");
+			if (fromDisk) {
+				try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					for (long offset = 0; offset < length; offset += MAX_MAPPING) {
+						connection.write(fileChannel.map(FileChannel.MapMode.READ_ONLY, range.offset() + offset,
+								Math.min(MAX_MAPPING, length - offset)));
+					}
+				}
+			} else {
+				connection.write(FileTransfer.slice(cached.content(), range.offset(), length));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			connection.close();
+			return;
+		}
+		connection.closeAfterWrite();
+	}
+
+	private void sendCached(NioConnection connection, String requestedFile, String encoding,
+			FileCache.CachedFile cached) {
+		if (cached == null) {
+			connection.write("ERROR: File not found\n");
+		} else {
+			String renamedFile = renamer.apply(requestedFile, connection.remotePort());
+			connection.write("FILENAME:" + renamedFile + "\n" + "FILESIZE:" + cached.size() + "\n" + encoding);
+			connection.write(cached.content());
+		}
+		connection.closeAfterWrite();
+	}
+}
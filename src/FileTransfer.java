@@ -0,0 +1,194 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileTransfer - sends file bodies for the "FILENAME:/FILESIZE:" TCP protocol
+ * <p>
+ * Two send paths:
+ *  - zero-copy : FileChannel.transferTo straight into the socket's channel, so
+ *                the kernel copies page cache to socket (sendfile on Linux)
+ *                and the bytes never enter the Java heap
+ *  - buffered  : the original BufferedInputStream -> byte[] -> socket stream loop
+ * Zero-copy needs a socket accepted from a ServerSocketChannel; sockets
+ * without a channel fall back to the buffered path. Files from a
+ * {@link FileCache} are written from their direct buffer the same way.
+ * </p>
+ * <p>
+ * Ranged requests: "GET <name> <offset> <length>" is answered with
+ * "FILENAME:", "FILESIZE:<whole file>", "RANGE:<offset> <length>" and then
+ * exactly that many bytes; a range running past the end is cut short there.
+ * </p>
+ */
+public final class FileTransfer {
+	public static final String RANGE_PREFIX = "GET ";
+
+	private FileTransfer() {
+	}
+
+	/**
+	 * A parsed "GET <name> <offset> <length>" request.
+	 */
+	public record RangeRequest(String fileName, long offset, long length) {
+
+		/**
+		 * @return the request, or null if the line is not a well-formed GET
+		 */
+		public static RangeRequest parse(String line) {
+			if (line == null || !line.startsWith(RANGE_PREFIX)) {
+				return null;
+			}
+			String[] parts = line.substring(RANGE_PREFIX.length()).trim().split("\\s+");
+			if (parts.length != 3) {
+				return null;
+			}
+			try {
+				long offset = Long.parseLong(parts[1]);
+				long length = Long.parseLong(parts[2]);
+				return offset < 0 || length < 0 ? null : new RangeRequest(parts[0], offset, length);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return the bytes of this range that exist in a file of fileSize, or -1 if it starts past the end
+		 */
+		public long lengthWithin(long fileSize) {
+			return offset > fileSize ? -1 : Math.min(length, fileSize - offset);
+		}
+	}
+
+	/**
+	 * Send the whole file with transferTo if the socket has a channel, else buffered.
+	 * The header lines must already be flushed to the socket.
+	 */
+	public static void send(File file, Socket socket, boolean zeroCopy) throws IOException {
+		send(file, socket, zeroCopy, 0, file.length());
+	}
+
+	/**
+	 * Send length bytes of the file starting at offset.
+	 */
+	public static void send(File file, Socket socket, boolean zeroCopy, long offset, long length) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (zeroCopy && channel != null) {
+			sendZeroCopy(file, channel, offset, length);
+		} else {
+			sendBuffered(file, socket.getOutputStream(), offset, length);
+		}
+	}
+
+	/**
+	 * Send a cached file. With a channel the direct buffer goes straight to
+	 * the socket; otherwise it is copied out in BUFFER_SIZE chunks.
+	 */
+	public static void send(FileCache.CachedFile file, Socket socket, boolean zeroCopy) throws IOException {
+		send(file, socket, zeroCopy, 0, file.size());
+	}
+
+	public static void send(FileCache.CachedFile file, Socket socket, boolean zeroCopy, long offset, long length)
+			throws IOException {
+		ByteBuffer content = slice(file.content(), offset, length);
+		SocketChannel channel = socket.getChannel();
+		if (zeroCopy && channel != null) {
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+			return;
+		}
+		write(content, socket.getOutputStream());
+	}
+
+	/**
+	 * Copy a (possibly direct) buffer to a stream in BUFFER_SIZE chunks.
+	 */
+	public static void write(ByteBuffer content, OutputStream out) throws IOException {
+		byte[] buffer = new byte[Constants.Config.BUFFER_SIZE];
+		while (content.hasRemaining()) {
+			int chunk = Math.min(buffer.length, content.remaining());
+			content.get(buffer, 0, chunk);
+			out.write(buffer, 0, chunk);
+		}
+		out.flush();
+	}
+
+	/**
+	 * The part [offset, offset + length) of a cached file's content.
+	 */
+	public static ByteBuffer slice(ByteBuffer content, long offset, long length) {
+		int start = content.position() + (int) offset;
+		content.limit(start + (int) length);
+		content.position(start);
+		return content;
+	}
+
+	public static void sendZeroCopy(File file, WritableByteChannel target) throws IOException {
+		sendZeroCopy(file, target, 0, file.length());
+	}
+
+	public static void sendZeroCopy(File file, WritableByteChannel target, long offset, long length)
+			throws IOException {
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long position = offset;
+			long end = offset + length;
+			// transferTo may send less than asked (e.g. capped at 2 GB per call), so loop
+			while (position < end) {
+				long sent = fileChannel.transferTo(position, end - position, target);
+				if (sent <= 0 && fileChannel.size() <= position) {
+					throw new IOException("File shrank while sending: " + file);
+				}
+				position += sent;
+			}
+		}
+	}
+
+	public static void sendBuffered(File file, OutputStream out) throws IOException {
+		sendBuffered(file, out, 0, file.length());
+	}
+
+	public static void sendBuffered(File file, OutputStream out, long offset, long length) throws IOException {
+		try (FileInputStream fileStream = new FileInputStream(file);
+		     BufferedInputStream fileIn = new BufferedInputStream(fileStream)) {
+			fileStream.getChannel().position(offset);
+			byte[] buffer = new byte[Constants.Config.BUFFER_SIZE];
+			long remaining = length;
+			int bytesRead;
+			while (remaining > 0 && (bytesRead = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+				out.write(buffer, 0, bytesRead);
+				remaining -= bytesRead;
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Read one header line ("FILENAME:..." or "FILESIZE:...") a byte at a time.
+	 * A BufferedReader would read ahead into the file body that follows the
+	 * header, and those bytes would then be missing from the saved file.
+	 *
+	 * @return the line without its line terminator, or null at end of stream
+	 */
+	public static String readHeaderLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		if (b == -1 && line.length() == 0) {
+			return null;
+		}
+		return line.toString();
+	}
+}
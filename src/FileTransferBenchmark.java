@@ -0,0 +1,117 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Random;
+
+/**
+ * FileTransferBenchmark - zero-copy (transferTo) vs buffered file sending over loopback
+ * <p>
+ * For each size a temporary file is created and downloaded repeatedly from
+ * an in-process server speaking the same "FILENAME:/FILESIZE:" protocol as
+ * MultiThreadedTCPServer, once per send path. Sizes accept k/m/g suffixes.
+ * </p>
+ * Usage: java FileTransferBenchmark [size,size,...]   e.g. 4k,256k,16m,256m,1g
+ */
+public class FileTransferBenchmark {
+	// Each size is downloaded about this many bytes' worth (at least 3 times)
+	private static final long BYTES_PER_SIZE = 2L << 30;
+
+	public static void main(String[] args) throws Exception {
+		String sizes = args.length != 0 ? args[0] : "4k,256k,16m,256m";
+		System.out.println("[FileTransferBenchmark] sizes=" + sizes);
+		for (String size : sizes.split(",")) {
+			long bytes = parseSize(size.trim());
+			File file = createFile(bytes);
+			try {
+				int downloads = (int) Math.max(3, Math.min(2000, BYTES_PER_SIZE / bytes));
+				// Warm up both paths (JIT, page cache)
+				run(file, false, downloads / 10 + 1);
+				run(file, true, downloads / 10 + 1);
+				report(size, bytes, "buffered", run(file, false, downloads));
+				report(size, bytes, "zero-copy", run(file, true, downloads));
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	// Download the file repeatedly; returns per-download latencies
+	private static LatencyHistogram run(File file, boolean zeroCopy, int downloads) throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			int port = serverChannel.socket().getLocalPort();
+
+			Thread server = new Thread(() -> {
+				for (int i = 0; i < downloads; i++) {
+					try (Socket socket = serverChannel.socket().accept()) {
+						PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+						out.println("FILENAME:" + file.getName());
+						out.println("FILESIZE:" + file.length());
+						FileTransfer.send(file, socket, zeroCopy);
+					} catch (IOException e) {
+						e.printStackTrace();
+						return;
+					}
+				}
+			}, "benchmark-file-server");
+			server.start();
+
+			byte[] buffer = new byte[64 * 1024];
+			for (int i = 0; i < downloads; i++) {
+				long start = System.nanoTime();
+				try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+					InputStream in = socket.getInputStream();
+					FileTransfer.readHeaderLine(in);
+					long fileSize = Long.parseLong(FileTransfer.readHeaderLine(in).split(":", 2)[1]);
+					long received = 0;
+					int n;
+					while (received < fileSize && (n = in.read(buffer)) != -1) {
+						received += n;
+					}
+					if (received != fileSize) {
+						throw new IOException("Received " + received + " of " + fileSize + " bytes");
+					}
+				}
+				histogram.record(System.nanoTime() - start);
+			}
+			server.join();
+		}
+		return histogram;
+	}
+
+	private static void report(String size, long bytes, String path, LatencyHistogram histogram) {
+		// Throughput from the median, so one slow outlier does not skew it
+		double seconds = histogram.percentile(50) / 1_000_000_000.0;
+		System.out.printf("[FileTransferBenchmark] %-6s %-9s %,10.1f MB/sec  %s%n",
+				size, path, bytes / seconds / (1024 * 1024), histogram.summary());
+	}
+
+	private static File createFile(long bytes) throws IOException {
+		File file = File.createTempFile("transfer-benchmark", ".bin");
+		file.deleteOnExit();
+		byte[] chunk = new byte[1 << 20];
+		new Random(42).nextBytes(chunk);
+		try (OutputStream out = new FileOutputStream(file)) {
+			for (long written = 0; written < bytes; written += chunk.length) {
+				out.write(chunk, 0, (int) Math.min(chunk.length, bytes - written));
+			}
+		}
+		return file;
+	}
+
+	// "4k" -> 4096, "16m" -> 16777216, "1g" -> 1073741824
+	private static long parseSize(String size) {
+		char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+		long multiplier = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1;
+		String digits = multiplier == 1 ? size : size.substring(0, size.length() - 1);
+		return Long.parseLong(digits) * multiplier;
+	}
+}
@@ -0,0 +1,80 @@
+import java.util.Arrays;
+
+/**
+ * LatencyHistogram - records latencies in nanoseconds and reports percentiles
+ * <p>
+ * Every sample is kept, so percentiles are exact; fine for benchmark runs of
+ * up to a few million operations. A long-running server should bound it with
+ * maxSamples, which keeps only the most recent samples. Safe to record from
+ * several threads.
+ * </p>
+ */
+public class LatencyHistogram {
+	// 0 = unbounded
+	private final int maxSamples;
+	private long[] samples = new long[1024];
+	private int count;
+	// Samples ever recorded; once bounded and full, the next one overwrites index total % maxSamples
+	private long total;
+
+	public LatencyHistogram() {
+		this(0);
+	}
+
+	/**
+	 * @param maxSamples keep only the most recent maxSamples samples, 0 for all
+	 */
+	public LatencyHistogram(int maxSamples) {
+		this.maxSamples = maxSamples;
+	}
+
+	public synchronized void record(long nanos) {
+		if (maxSamples > 0 && count == maxSamples) {
+			samples[(int) (total++ % maxSamples)] = nanos;
+			return;
+		}
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, maxSamples > 0 ? Math.min(count * 2, maxSamples) : count * 2);
+		}
+		samples[count++] = nanos;
+		total++;
+	}
+
+	public synchronized int count() {
+		return count;
+	}
+
+	/**
+	 * @param percentile 0-100, e.g. 99 for p99
+	 * @return the latency in nanoseconds, or 0 if nothing was recorded
+	 */
+	public synchronized long percentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	public synchronized void reset() {
+		count = 0;
+		total = 0;
+	}
+
+	/**
+	 * "n=1000 p50=12.3us p90=15.0us p99=40.1us max=90.2us"
+	 */
+	public synchronized String summary() {
+		return String.format("n=%d p50=%s p90=%s p99=%s max=%s", count, format(percentile(50)),
+				format(percentile(90)), format(percentile(99)), format(percentile(100)));
+	}
+
+	private static String format(long nanos) {
+		if (nanos >= 10_000_000) {
+			return String.format("%.1fms", nanos / 1_000_000.0);
+		}
+		return String.format("%.1fus", nanos / 1000.0);
+	}
+}
@@ -0,0 +1,33 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * LineNioHandler - base class for the newline-delimited text protocols
+ * (RPC "REQUEST: ..." lines and file-name requests).
+ */
+public abstract class LineNioHandler implements NioHandler {
+
+	@Override
+	public void onRead(NioConnection connection, ByteBuffer data) {
+		int lineStart = data.position();
+		for (int i = lineStart; i < data.limit(); i++) {
+			if (data.get(i) != '\n') {
+				continue;
+			}
+			int end = i;
+			if (end > lineStart && data.get(end - 1) == '\r') {
+				end--;
+			}
+			byte[] bytes = new byte[end - lineStart];
+			data.get(lineStart, bytes);
+			lineStart = i + 1;
+			data.position(lineStart);
+			onLine(connection, new String(bytes, StandardCharsets.UTF_8));
+			if (!connection.isOpen()) {
+				return;
+			}
+		}
+	}
+
+	protected abstract void onLine(NioConnection connection, String line);
+}
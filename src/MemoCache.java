@@ -0,0 +1,190 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * MemoCache - results of pure RPC methods, keyed by method id and arguments
+ * <p>
+ * A server marks a method as pure by computing it through
+ * {@link #get(Key, Supplier)}, as the RPC servers do for foo(iterations),
+ * whose result depends on nothing but its argument. A method that is pure
+ * but cheap, like add(i, j), is not worth an entry. The least recently used
+ * results are evicted once there are more than maxEntries.
+ * </p>
+ * <p>
+ * Identical calls that miss at the same time are coalesced: the first one
+ * computes, the others wait for its result instead of burning the same CPU
+ * again (counted as "coalesced"). A computation that throws is not cached,
+ * and its waiters get the same exception, except that a cancelled one (see
+ * {@link CancellationToken}) makes them compute it themselves. A waiter
+ * still keeps its own deadline: it gives up once its current token is
+ * cancelled, however long the computing call has left.
+ * </p>
+ */
+public class MemoCache {
+
+	/**
+	 * A call: method id plus its int arguments.
+	 */
+	public static final class Key {
+		private final int methodId;
+		private final int[] args;
+		private final int hash;
+
+		private Key(int methodId, int[] args) {
+			this.methodId = methodId;
+			this.args = args;
+			this.hash = 31 * methodId + Arrays.hashCode(args);
+		}
+
+		/**
+		 * @param args copied, so the caller may modify them afterwards
+		 */
+		public static Key of(int methodId, int... args) {
+			return new Key(methodId, args.clone());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key other && methodId == other.methodId && Arrays.equals(args, other.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return MethodRegistry.nameOf(methodId) + Arrays.toString(args);
+		}
+	}
+
+	// How often a waiting caller checks its own deadline or cancellation
+	private static final long WAIT_SLICE_MILLIS = 10;
+
+	private final int maxEntries;
+	// Access-ordered, so iteration starts at the least recently used result
+	private final LinkedHashMap<Key, Object> results = new LinkedHashMap<>(16, 0.75f, true);
+	// Calls being computed right now; later identical calls wait on these
+	private final ConcurrentHashMap<Key, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public MemoCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Cache for a server's pure methods, sized by --memo-size=<entries>
+	 * (default Constants.Config.MEMO_ENTRIES).
+	 *
+	 * @return null if --memo-size=0
+	 */
+	public static MemoCache forOptions(ServerOptions options) {
+		int entries = options.getInt("memo-size", Constants.Config.MEMO_ENTRIES);
+		return entries > 0 ? new MemoCache(entries) : null;
+	}
+
+	/**
+	 * Compute through the cache, or directly if there is none.
+	 */
+	public static <V> V get(MemoCache cache, Key key, Supplier<V> compute) {
+		return cache != null ? cache.get(key, compute) : compute.get();
+	}
+
+	/**
+	 * @return the cached result, the result of an identical call in progress, or a fresh one
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> V get(Key key, Supplier<V> compute) {
+		synchronized (this) {
+			Object cached = results.get(key);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return (V) cached;
+			}
+		}
+		CompletableFuture<Object> mine = new CompletableFuture<>();
+		CompletableFuture<Object> running = inFlight.putIfAbsent(key, mine);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			return (V) await(running, key, compute);
+		}
+		try {
+			// It may have been stored between the lookup and putIfAbsent
+			Object result;
+			synchronized (this) {
+				result = results.get(key);
+			}
+			if (result != null) {
+				hits.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+				result = compute.get();
+				if (result != null) {
+					put(key, result);
+				}
+			}
+			mine.complete(result);
+			return (V) result;
+		} catch (RuntimeException | Error e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, mine);
+		}
+	}
+
+	// Wait for an identical call, but only as long as this caller's own token allows
+	private Object await(CompletableFuture<Object> running, Key key, Supplier<?> compute) {
+		CancellationToken token = CancellationToken.current();
+		while (true) {
+			token.throwIfCancelled();
+			try {
+				return running.get(WAIT_SLICE_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// still computing, check the token again
+			} catch (CancellationException e) {
+				// The computing call was cancelled, not this one: try again
+				return get(key, compute);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new CompletionException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException(CancellationToken.CANCELLED);
+			}
+		}
+	}
+
+	private synchronized void put(Key key, Object result) {
+		results.put(key, result);
+		Iterator<Map.Entry<Key, Object>> eldest = results.entrySet().iterator();
+		while (results.size() > maxEntries && eldest.hasNext()) {
+			eldest.next();
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized String stats() {
+		return "memo=" + results.size() + " hits=" + hits.get() + " misses=" + misses.get()
+				+ " coalesced=" + coalesced.get() + " evictions=" + evictions.get();
+	}
+}
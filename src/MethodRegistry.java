@@ -0,0 +1,213 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MethodRegistry - the RPC methods a server offers, dispatched by integer method id
+ * <p>
+ * Every method name has one process-wide id, which is also its id in
+ * {@link BinaryCodec} frames: the built-in methods keep the ids 1-8, and a
+ * name registered for the first time gets the next free one. An
+ * {@link RpcRequest} resolves its id once when it is decoded, so dispatch is
+ * a single array index however many methods are registered.
+ * </p>
+ * <p>
+ * Handlers are registered once at startup, before the server starts
+ * serving, with the signature they take (no args, one int, two ints or an
+ * int array). Each signature wraps the handler in an invoker that checks the
+ * argument count and unpacks the ints, so nothing is looked up or reflected
+ * on per call. Extra arguments are ignored, like the old switch statements did.
+ * </p>
+ *
+ * @param <R> what a call produces, e.g. {@link RpcResponse} or a batch result line
+ */
+public final class MethodRegistry<R> {
+	// Method ids on the wire
+	public static final int UNKNOWN = 0;
+	public static final int FOO = 1;
+	public static final int ADD = 2;
+	public static final int SORT = 3;
+	public static final int GET_RESULT = 4;
+	public static final int WATCH = 5;
+	public static final int SUBSCRIBE = 6;
+	public static final int STATS = 7;
+	public static final int CANCEL = 8;
+
+	private static final ConcurrentHashMap<String, Integer> IDS = new ConcurrentHashMap<>();
+	// Index = method id; replaced as a whole when a new name is defined
+	private static volatile String[] names = {null, "foo", "add", "sort", "getResult", "watch", "subscribe", "stats",
+			"cancel"};
+
+	static {
+		for (int id = 1; id < names.length; id++) {
+			IDS.put(names[id], id);
+		}
+	}
+
+	public interface NoArgs<R> {
+		R call(int requestId);
+	}
+
+	public interface IntArg<R> {
+		R call(int requestId, int a);
+	}
+
+	public interface IntIntArgs<R> {
+		R call(int requestId, int a, int b);
+	}
+
+	public interface IntArrayArg<R> {
+		R call(int requestId, int[] args);
+	}
+
+	/**
+	 * What to answer when a request cannot be dispatched.
+	 */
+	public interface Errors<R> {
+		R invalidRequest(int requestId);
+
+		/**
+		 * Arguments that are not ints.
+		 */
+		R invalidArguments(int requestId, String method);
+
+		/**
+		 * Fewer arguments than the method's signature takes; the same answer as invalid ones by default.
+		 */
+		default R missingArguments(int requestId, String method) {
+			return invalidArguments(requestId, method);
+		}
+
+		R unknownMethod(int requestId, String method);
+	}
+
+	// A handler together with the argument decoding for its signature
+	private interface Invoker<R> {
+		R invoke(int requestId, int[] args);
+	}
+
+	private final Errors<R> errors;
+	private Invoker<R>[] invokers = newTable(names.length);
+	private int[] minArgs = new int[names.length];
+
+	public MethodRegistry(Errors<R> errors) {
+		this.errors = errors;
+	}
+
+	/**
+	 * A registry answering with the usual "ERROR - ..." texts of the RPC servers.
+	 */
+	public static MethodRegistry<RpcResponse> forResponses() {
+		return new MethodRegistry<>(new Errors<>() {
+			@Override
+			public RpcResponse invalidRequest(int requestId) {
+				return RpcResponse.ofText(requestId, "ERROR - Invalid request");
+			}
+
+			@Override
+			public RpcResponse invalidArguments(int requestId, String method) {
+				return RpcResponse.ofText(requestId, "ERROR - Invalid arguments");
+			}
+
+			@Override
+			public RpcResponse unknownMethod(int requestId, String method) {
+				return RpcResponse.ofText(requestId, "ERROR - Unknown method");
+			}
+		});
+	}
+
+	/**
+	 * @return the id of a method name, or {@link #UNKNOWN} if no server has registered it
+	 */
+	public static int idOf(String method) {
+		if (method == null) {
+			return UNKNOWN;
+		}
+		Integer id = IDS.get(method);
+		return id == null ? UNKNOWN : id;
+	}
+
+	/**
+	 * @return the name of a method id, or "#<id>" if there is none
+	 */
+	public static String nameOf(int methodId) {
+		String[] current = names;
+		if (methodId > 0 && methodId < current.length) {
+			return current[methodId];
+		}
+		return "#" + methodId;
+	}
+
+	// The id of a name, assigning the next free one the first time
+	private static synchronized int define(String method) {
+		Integer id = IDS.get(method);
+		if (id != null) {
+			return id;
+		}
+		String[] grown = Arrays.copyOf(names, names.length + 1);
+		grown[names.length] = method;
+		names = grown;
+		IDS.put(method, names.length - 1);
+		return names.length - 1;
+	}
+
+	public MethodRegistry<R> registerNoArgs(String method, NoArgs<R> handler) {
+		return register(method, 0, (requestId, args) -> handler.call(requestId));
+	}
+
+	public MethodRegistry<R> registerInt(String method, IntArg<R> handler) {
+		return register(method, 1, (requestId, args) -> handler.call(requestId, args[0]));
+	}
+
+	public MethodRegistry<R> registerIntInt(String method, IntIntArgs<R> handler) {
+		return register(method, 2, (requestId, args) -> handler.call(requestId, args[0], args[1]));
+	}
+
+	/**
+	 * The handler gets the decoded array itself, fresh per request, so it may modify it.
+	 */
+	public MethodRegistry<R> registerIntArray(String method, IntArrayArg<R> handler) {
+		return register(method, 0, handler::call);
+	}
+
+	private synchronized MethodRegistry<R> register(String method, int requiredArgs, Invoker<R> invoker) {
+		int id = define(method);
+		if (id >= invokers.length) {
+			invokers = Arrays.copyOf(invokers, id + 1);
+			minArgs = Arrays.copyOf(minArgs, id + 1);
+		}
+		invokers[id] = invoker;
+		minArgs[id] = requiredArgs;
+		return this;
+	}
+
+	public boolean isRegistered(int methodId) {
+		return methodId > 0 && methodId < invokers.length && invokers[methodId] != null;
+	}
+
+	/**
+	 * Run the handler registered for the request's method id.
+	 */
+	public R dispatch(RpcRequest request) {
+		int requestId = request.requestId();
+		if (request.method() == null) {
+			return errors.invalidRequest(requestId);
+		}
+		int id = request.methodId();
+		if (!isRegistered(id)) {
+			return errors.unknownMethod(requestId, request.method());
+		}
+		int[] args = request.args();
+		if (args == null) {
+			return errors.invalidArguments(requestId, request.method());
+		}
+		if (args.length < minArgs[id]) {
+			return errors.missingArguments(requestId, request.method());
+		}
+		return invokers[id].invoke(requestId, args);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <R> Invoker<R>[] newTable(int size) {
+		return (Invoker<R>[]) new Invoker<?>[size];
+	}
+}
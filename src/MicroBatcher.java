@@ -0,0 +1,164 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * MicroBatcher - collects small requests and runs them as one batch
+ * <p>
+ * Submitted items wait on a bounded queue. A single batcher thread takes
+ * the first one, then keeps collecting until maxBatch items are there or
+ * the window (counted from the first item) has passed, and hands the whole
+ * list to the flush callback. A lone request therefore waits at most one
+ * window, while a burst is executed and answered in one go: one thread hop
+ * and one write per connection instead of one per request.
+ * </p>
+ * <p>
+ * Two histograms show what the window buys: how long each batch actually
+ * waited for more items (the window used) and how many items it carried.
+ * A full queue makes {@link #submit} return false so the caller can fall
+ * back to its unbatched path.
+ * </p>
+ */
+public class MicroBatcher<T> implements Closeable {
+	// Enough recent batches for stable percentiles without growing forever
+	private static final int HISTOGRAM_SAMPLES = 100_000;
+
+	private final String name;
+	private final long windowNanos;
+	private final int maxBatch;
+	private final Consumer<List<T>> flush;
+	private final BlockingQueue<T> queue;
+	private final Thread thread;
+	private volatile boolean closed;
+
+	private final LatencyHistogram windows = new LatencyHistogram(HISTOGRAM_SAMPLES);
+	// Index = batch size, 1..maxBatch
+	private final AtomicLongArray sizes;
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong items = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param flush runs on the batcher thread with each batch, in submission order
+	 */
+	public MicroBatcher(String name, long windowMicros, int maxBatch, int queueSize, Consumer<List<T>> flush) {
+		this.name = name;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBatch = Math.max(1, maxBatch);
+		this.flush = flush;
+		this.queue = new ArrayBlockingQueue<>(Math.max(this.maxBatch, queueSize));
+		this.sizes = new AtomicLongArray(this.maxBatch + 1);
+		this.thread = new Thread(this::run, name + "-batcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Batcher for a server started with --batch, tuned with --batch-window-us=N
+	 * and --batch-max=N.
+	 *
+	 * @return null if batching is not enabled
+	 */
+	public static <T> MicroBatcher<T> forOptions(String name, ServerOptions options, Consumer<List<T>> flush) {
+		if (!options.has("batch")) {
+			return null;
+		}
+		int windowMicros = options.getInt("batch-window-us", Constants.Config.BATCH_WINDOW_MICROS);
+		int maxBatch = options.getInt("batch-max", Constants.Config.BATCH_MAX);
+		return new MicroBatcher<>(name, windowMicros, maxBatch, Constants.Config.JOB_QUEUE_SIZE, flush);
+	}
+
+	/**
+	 * @return false if the queue is full or the batcher is closed
+	 */
+	public boolean submit(T item) {
+		if (closed || !queue.offer(item)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private void run() {
+		List<T> batch = new ArrayList<>(maxBatch);
+		try {
+			while (!closed) {
+				batch.add(queue.take());
+				long start = System.nanoTime();
+				long deadline = start + windowNanos;
+				// Take whatever is already queued, then wait out the window for more
+				queue.drainTo(batch, maxBatch - batch.size());
+				while (batch.size() < maxBatch) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					T next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+					queue.drainTo(batch, maxBatch - batch.size());
+				}
+				windows.record(System.nanoTime() - start);
+				sizes.incrementAndGet(batch.size());
+				batches.incrementAndGet();
+				items.addAndGet(batch.size());
+				try {
+					flush.accept(batch);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * e.g. "add-batcher: 120 batches, 3400 items, 0 rejected, window n=120 p50=210.3us ..., size p50=32 p90=64 p99=64 max=64"
+	 */
+	public String stats() {
+		return String.format("%s-batcher: %d batches, %d items, %d rejected, window %s, size %s", name,
+				batches.get(), items.get(), rejected.get(), windows.summary(), sizeSummary());
+	}
+
+	private String sizeSummary() {
+		long[] counts = new long[sizes.length()];
+		long total = 0;
+		for (int size = 1; size < counts.length; size++) {
+			counts[size] = sizes.get(size);
+			total += counts[size];
+		}
+		if (total == 0) {
+			return "n=0";
+		}
+		return "p50=" + sizePercentile(counts, total, 50) + " p90=" + sizePercentile(counts, total, 90)
+				+ " p99=" + sizePercentile(counts, total, 99) + " max=" + sizePercentile(counts, total, 100);
+	}
+
+	private static int sizePercentile(long[] counts, long total, double percentile) {
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int size = 1; size < counts.length; size++) {
+			seen += counts[size];
+			if (seen >= rank) {
+				return size;
+			}
+		}
+		return counts.length - 1;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		thread.interrupt();
+	}
+}
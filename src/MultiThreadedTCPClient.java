@@ -12,20 +12,34 @@ public class MultiThreadedTCPClient {
 	final static String SERVER_IP = Constants.IP.LOCALHOST;
 	final static int PORT = Constants.Ports.SERVER_PORT;
 	final static int BUFFER_SIZE = Constants.Config.BUFFER_SIZE;
+	// Downloads are kept once by content and hard-linked under their renamed names
+	private static final ContentStore store = new ContentStore(IMAGE_FOLDER);
+	// Accepted encodings, e.g. "lz,deflate-6", or null for uncompressed bodies
+	private static String encodings;
 
 	private static final List<Long> responseTimes = Collections.synchronizedList(new ArrayList<>());
 
+	// Usage: java MultiThreadedTCPClient [loops] [segments] [encodings]
 	public static void main(String[] args) {
 		int totalLoop = 1;
 		if (args.length != 0) {
 			totalLoop = Integer.parseInt(args[0]);
 		}
+		// More than one: ranged GETs on parallel connections (see SegmentedDownloader)
+		int segments = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		encodings = args.length > 2 ? args[2] : null;
 		// run for totalLoop times
 		List<Thread> threads = new ArrayList<>();
 		for (int i = 0; i < totalLoop; i++) {
 			for (String fileName : fileList) {
 				// Each request in a separate thread
-				Thread thread = new Thread(() -> fetchFile(fileName));
+				Thread thread = new Thread(() -> {
+					if (segments > 1) {
+						fetchFileSegmented(fileName, segments);
+					} else {
+						fetchFile(fileName);
+					}
+				});
 				thread.start();
 				threads.add(thread);
 			}
@@ -51,39 +65,45 @@ public class MultiThreadedTCPClient {
 		}
 	}
 
+	private static void fetchFileSegmented(String fileName, int segments) {
+		long startTime = System.nanoTime();
+		SegmentedDownloader downloader = new SegmentedDownloader(SERVER_IP, PORT, segments);
+		try {
+			File outFile = downloader.download(fileName, IMAGE_FOLDER);
+			store.store(outFile, fileName);
+			System.out.println("[Client] Downloaded " + fileName + " as " + outFile.getName() + " in up to " + segments
+					+ " segments" + (downloader.resumedBytes() > 0 ? ", resumed after " + downloader.resumedBytes()
+					+ " bytes" : ""));
+		} catch (IOException e) {
+			System.err.println("[Client] " + e.getMessage());
+			return;
+		}
+		long elapsedTimeInNano = System.nanoTime() - startTime;
+		responseTimes.add(elapsedTimeInNano);
+		System.out.println("[Client] Elapsed time: " + elapsedTimeInNano + " ns");
+	}
+
 	private static void fetchFile(String fileName) {
 		long startTime = System.nanoTime();
+		String hash = store.hashOf(fileName);
 		try (Socket socket = new Socket(SERVER_IP, PORT)) {
 			PrintWriter outWriter = new PrintWriter(socket.getOutputStream(), true);
-			outWriter.println(fileName);  // request
+			outWriter.println(ContentHash.conditional(Compression.offer(fileName, encodings), hash));  // request
 
-			BufferedReader inputFromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			String line = inputFromServer.readLine();
-			if (line.startsWith("ERROR")) {
+			// Read the header unbuffered so no file bytes are lost to read-ahead
+			InputStream socketInputFromServer = socket.getInputStream();
+			String line = FileTransfer.readHeaderLine(socketInputFromServer);
+			if (line == null || line.startsWith("ERROR")) {
 				System.err.println("[Client] " + line);
 				return;
 			}
-
-			// Parse renamed filename
-			String renamedFile = line.split(":", 2)[1];
-			// Parse: "FILESIZE:<size>"
-			line = inputFromServer.readLine();
-			long fileSize = Long.parseLong(line.split(":", 2)[1]);
-
-			File outputFile = new File(IMAGE_FOLDER, renamedFile);
-			FileOutputStream fos = new FileOutputStream(outputFile);
-			InputStream socketInputFromServer = socket.getInputStream();
-
-			byte[] buffer = new byte[BUFFER_SIZE];
-			long totalRead = 0;
-			int bytesRead;
-			while (totalRead < fileSize && (bytesRead = socketInputFromServer.read(buffer)) != -1) {
-				fos.write(buffer, 0, bytesRead);
-				totalRead += bytesRead;
+			String unchanged = ContentHash.parseNotModified(line);
+			if (unchanged != null) {
+				store.checkout(hash, new File(IMAGE_FOLDER, unchanged));
+				System.out.println("[Client] Not modified: " + fileName + " linked as " + unchanged);
+			} else {
+				receiveFile(fileName, line, socketInputFromServer);
 			}
-			fos.flush();
-			System.out.println("[Client] Downloaded " + fileName + " as " + renamedFile +
-					" in thread: " + Thread.currentThread().getName());
 			outWriter.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -93,4 +113,42 @@ public class MultiThreadedTCPClient {
 		responseTimes.add(elapsedTimeInNano);
 		System.out.println("[Client] Elapsed time: " + elapsedTimeInNano + " ns");
 	}
+
+	private static void receiveFile(String fileName, String line, InputStream socketInputFromServer)
+			throws IOException {
+		// Parse renamed filename
+		String renamedFile = line.split(":", 2)[1];
+		// Parse: "FILESIZE:<size>"
+		line = FileTransfer.readHeaderLine(socketInputFromServer);
+		long fileSize = Long.parseLong(line.split(":", 2)[1]);
+		// "ENCODING:<chosen>" follows when compression was offered
+		Compression.Encoding encoding = Compression.IDENTITY;
+		if (encodings != null) {
+			line = FileTransfer.readHeaderLine(socketInputFromServer);
+			encoding = line == null ? null : Compression.Encoding.parse(line.substring(line.indexOf(':') + 1));
+			if (encoding == null) {
+				throw new IOException("Invalid encoding header: " + line);
+			}
+		}
+		Compression.Meter meter = new Compression.Meter(encoding);
+		InputStream body = Compression.decompress(socketInputFromServer, encoding, meter);
+
+		File outputFile = new File(IMAGE_FOLDER, renamedFile);
+		ContentStore.detach(outputFile);
+		FileOutputStream fos = new FileOutputStream(outputFile);
+
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long totalRead = 0;
+		int bytesRead;
+		while (totalRead < fileSize
+				&& (bytesRead = body.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead))) != -1) {
+			fos.write(buffer, 0, bytesRead);
+			totalRead += bytesRead;
+		}
+		fos.close();
+		store.store(outputFile, fileName);
+		System.out.println("[Client] Downloaded " + fileName + " as " + renamedFile +
+				" in thread: " + Thread.currentThread().getName()
+				+ (encoding.isIdentity() ? "" : " (" + meter.stats() + ")"));
+	}
 }
@@ -1,39 +1,106 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MultiThreadedTCPServer {
 
 	final static int PORT = Constants.Ports.SERVER_PORT;
 	final static String IMAGE_FOLDER = Constants.FilePath.SERVER_IMAGE_FOLDER;
 
+	// false with --buffered: copy through a byte[] instead of FileChannel.transferTo
+	private static boolean zeroCopy = true;
+	// Hot images in memory, or null with --cache-size=0
+	private static FileCache cache;
+	// Encodings allowed with --compress, or null for any the client asks for
+	private static List<Compression.Encoding> compression;
+
 	public static void main(String[] args) {
-		try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-			System.out.println("[Server] Multi-Threaded TCP Server on port " + PORT + "...");
+		ServerOptions options = ServerOptions.parse(args);
+		cache = FileCache.forOptions(IMAGE_FOLDER, options);
+		compression = Compression.forOptions(options);
+		if (options.has("nio")) {
+			// Disk reads the I/O threads must not wait for
+			ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			try {
+				new NioServer(PORT, new FileNioHandler(IMAGE_FOLDER, MultiThreadedTCPServer::appendPortToFileName, cache,
+						workers), options.getInt("io-threads", Constants.Config.IO_THREADS)).start();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				workers.shutdown();
+			}
+			return;
+		}
+		zeroCopy = !options.has("buffered");
+		ExecutorService executor = ExecutionStrategy.executorFor(options);
+		// Accepting through a channel gives every client socket a SocketChannel for transferTo
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			ServerSocket serverSocket = serverChannel.socket();
+			serverSocket.bind(new InetSocketAddress(PORT));
+			System.out.println("[Server] Multi-Threaded TCP Server on port " + PORT + " (executor: "
+					+ ExecutionStrategy.fromOptions(options) + ", " + (zeroCopy ? "zero-copy" : "buffered") + ")...");
 			while (true) {
 				// 1. Block until a new client connects
 				Socket clientSocket = serverSocket.accept();
 				System.out.println("[Server] Accepted a client: " + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
 
-				// 2. Spawn a thread to handle this client
-				new Thread(() -> handleClient(clientSocket)).start();
+				// 2. Hand this client to the configured executor
+				executor.execute(() -> handleClient(clientSocket));
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			executor.shutdown();
 		}
 	}
 
 	private static void handleClient(Socket clientSocket) {
 		try (Socket socket = clientSocket) {
 			BufferedReader inputReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			String requestedFile = inputReader.readLine();
+			ContentHash.Conditional request = ContentHash.Conditional.parse(inputReader.readLine());
+			Compression.Offer offer = Compression.Offer.parse(request.request());
+			String requestedFile = offer.request();
 			System.out.println("[Worker] Received: " + requestedFile);
 
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			if (requestedFile != null && requestedFile.startsWith(FileTransfer.RANGE_PREFIX)) {
+				sendRange(socket, out, FileTransfer.RangeRequest.parse(requestedFile));
+				return;
+			}
 			String renamedFile = appendPortToFileName(requestedFile, socket.getPort());
+			if (request.notModified(new File(IMAGE_FOLDER, requestedFile))) {
+				out.println(ContentHash.notModified(renamedFile));
+				return;
+			}
+			// Hot path: no file system access on a cache hit; files too large to cache are sent from disk
+			FileCache.CachedFile cached = cache != null ? cache.get(requestedFile) : null;
+			if (cache != null && cached != FileCache.NOT_CACHEABLE) {
+				if (cached == null) {
+					out.println("ERROR: File not found");
+					return;
+				}
+				out.println("FILENAME:" + renamedFile);
+				out.println("FILESIZE:" + cached.size());
+				Compression.Encoding encoding = offer.encodings() == null || Compression.alreadyCompressed(cached.content())
+						? Compression.IDENTITY : Compression.negotiate(offer.encodings(), compression);
+				if (offer.encodings() != null) {
+					out.println(Compression.ENCODING + encoding);
+				}
+				if (encoding.isIdentity()) {
+					FileTransfer.send(cached, socket, zeroCopy);
+				} else {
+					sendCompressed(socket, requestedFile, encoding, cached, null);
+				}
+				System.out.println("[Worker] Finished client request in thread: " + Thread.currentThread().getName());
+				return;
+			}
 
 			File file = new File(IMAGE_FOLDER, requestedFile);
-			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
 			if (!file.exists()) {
 				out.println("ERROR: File not found");
 				return;
@@ -42,16 +109,16 @@ public class MultiThreadedTCPServer {
 			// Send file
 			out.println("FILENAME:" + renamedFile);
 			out.println("FILESIZE:" + file.length());
+			Compression.Encoding encoding = offer.encodings() == null || Compression.alreadyCompressed(file)
+					? Compression.IDENTITY : Compression.negotiate(offer.encodings(), compression);
+			if (offer.encodings() != null) {
+				out.println(Compression.ENCODING + encoding);
+			}
 
-			try (BufferedInputStream fileIn = new BufferedInputStream(new FileInputStream(file));
-			     OutputStream socketOut = socket.getOutputStream()) {
-
-				byte[] buffer = new byte[Constants.Config.BUFFER_SIZE];
-				int bytesRead;
-				while ((bytesRead = fileIn.read(buffer)) != -1) {
-					socketOut.write(buffer, 0, bytesRead);
-				}
-				socketOut.flush();
+			if (encoding.isIdentity()) {
+				FileTransfer.send(file, socket, zeroCopy);
+			} else {
+				sendCompressed(socket, requestedFile, encoding, null, file);
 			}
 			System.out.println("[Worker] Finished client request in thread: " + Thread.currentThread().getName());
 		} catch (IOException e) {
@@ -59,7 +126,51 @@ public class MultiThreadedTCPServer {
 		}
 	}
 
-	private static String appendPortToFileName(String filename, int port) {
+	// Compressed bodies go through the socket's stream; zero-copy cannot apply
+	private static void sendCompressed(Socket socket, String requestedFile, Compression.Encoding encoding,
+	                                   FileCache.CachedFile cached, File file) throws IOException {
+		Compression.Meter meter = new Compression.Meter(encoding);
+		OutputStream body = Compression.compress(socket.getOutputStream(), encoding, meter);
+		if (cached != null) {
+			FileTransfer.write(cached.content(), body);
+		} else {
+			FileTransfer.sendBuffered(file, body);
+		}
+		body.close();
+		System.out.println("[Worker] Sent " + requestedFile + ": " + meter.stats());
+	}
+
+	// "GET <name> <offset> <length>": one segment of a parallel or resumed download
+	private static void sendRange(Socket socket, PrintWriter out, FileTransfer.RangeRequest range) throws IOException {
+		if (range == null) {
+			out.println("ERROR: Invalid range request");
+			return;
+		}
+		FileCache.CachedFile cached = cache != null ? cache.get(range.fileName()) : null;
+		// Without a cache, or for a file too large to cache, the range is sent from disk
+		boolean fromDisk = cache == null || cached == FileCache.NOT_CACHEABLE;
+		File file = new File(IMAGE_FOLDER, range.fileName());
+		if (fromDisk ? !file.isFile() : cached == null) {
+			out.println("ERROR: File not found");
+			return;
+		}
+		long fileSize = fromDisk ? file.length() : cached.size();
+		long length = range.lengthWithin(fileSize);
+		if (length < 0) {
+			out.println("ERROR: Invalid range " + range.offset() + " for size " + fileSize);
+			return;
+		}
+		out.println("FILENAME:" + appendPortToFileName(range.fileName(), socket.getPort()));
+		out.println("FILESIZE:" + fileSize);
+		out.println("RANGE:" + range.offset() + " " + length);
+		if (fromDisk) {
+			FileTransfer.send(file, socket, zeroCopy, range.offset(), length);
+		} else {
+			FileTransfer.send(cached, socket, zeroCopy, range.offset(), length);
+		}
+	}
+
+	static String appendPortToFileName(String filename, int port) {
 		int dotIndex = filename.lastIndexOf('.');
 		if (dotIndex == -1) {
 			return filename + "_" + Constants.Modules.MTCP + "_" + port;
@@ -16,17 +16,27 @@ public class MultiThreadedUDPClient {
 	private static final String IMAGE_FOLDER = Constants.FilePath.CLIENT_IMAGE_FOLDER;
 	private static final String[] fileList = {"my_image.jpg", "my_image2.jpg", "my_image3.jpg", "my_image4.jpg",
 			"my_image5.jpg"};
+	// Downloads are kept once by content and hard-linked under their renamed names
+	private static final ContentStore store = new ContentStore(IMAGE_FOLDER);
 	private static final List<Long> downloadTimesMs = Collections.synchronizedList(new ArrayList<>());
 
+	// Usage: java MultiThreadedUDPClient [loops] [reliable]
 	public static void main(String[] args) throws InterruptedException  {
 		int totalLoop = 1;
 		if (args.length != 0) {
 			totalLoop = Integer.parseInt(args[0]);
 		}
+		boolean reliable = args.length > 1 && "reliable".equals(args[1]);
 		List<Thread> threads = new ArrayList<>();
 		for (int i = 0; i < totalLoop; i++) {
 			for (String fileName : fileList) {
-				Thread thread = new Thread(() -> downloadFile(fileName));
+				Thread thread = new Thread(() -> {
+					if (reliable) {
+						downloadFileReliably(fileName);
+					} else {
+						downloadFile(fileName);
+					}
+				});
 				thread.start();
 				threads.add(thread);
 			}
@@ -48,13 +58,30 @@ public class MultiThreadedUDPClient {
 		}
 	}
 
+	// Sequenced, acknowledged transfer that survives loss and reordering (see ReliableUdp)
+	private static void downloadFileReliably(String fileName) {
+		long startTime = System.currentTimeMillis();
+		try {
+			File outFile = new ReliableUdpReceiver(SERVER_IP, SERVER_PORT).download(fileName, IMAGE_FOLDER, store);
+			System.out.println("[UDP Client] Downloaded " + outFile.getName() + " (" + outFile.length() +
+					" bytes) to " + outFile.getAbsolutePath());
+		} catch (IOException e) {
+			System.err.println("[UDP Client] " + fileName + ": " + e.getMessage());
+			return;
+		}
+		long elapsedTimeInMillis = System.currentTimeMillis() - startTime;
+		downloadTimesMs.add(elapsedTimeInMillis);
+		System.out.println("[UDP Client] " + fileName + " download time = " + elapsedTimeInMillis + " ms");
+	}
+
 	private static void downloadFile(String fileName) {
 		long startTime = System.currentTimeMillis();
+		String hash = store.hashOf(fileName);
 		try (DatagramSocket socket = new DatagramSocket()) {
 			InetAddress serverAddr = InetAddress.getByName(SERVER_IP);
 
-			// Send the file name as request
-			byte[] requestData = fileName.getBytes();
+			// Send the file name as request, with the hash of the copy we already have
+			byte[] requestData = ContentHash.conditional(fileName, hash).getBytes();
 			DatagramPacket requestPacket = new DatagramPacket(requestData, requestData.length, serverAddr, SERVER_PORT);
 			socket.send(requestPacket);
 
@@ -68,6 +95,12 @@ public class MultiThreadedUDPClient {
 				System.err.println("[UDP Client] " + header);
 				return;
 			}
+			String unchanged = ContentHash.parseNotModified(header);
+			if (unchanged != null) {
+				store.checkout(hash, new File(IMAGE_FOLDER, unchanged));
+				System.out.println("[UDP Client] Not modified: " + fileName + " linked as " + unchanged);
+				return;
+			}
 
 			// Expected header format: "FILENAME:<filename> FILESIZE:<filesize>"
 			String renamed = null;
@@ -90,6 +123,7 @@ public class MultiThreadedUDPClient {
 
 			// Prepare local file for saving
 			File outFile = new File(IMAGE_FOLDER, renamed);
+			ContentStore.detach(outFile);
 			try (FileOutputStream fos = new FileOutputStream(outFile)) {
 				long totalReceived = 0;
 				while (totalReceived < fileSize) {
@@ -102,6 +136,7 @@ public class MultiThreadedUDPClient {
 				System.out.println("[UDP Client] Downloaded " + renamed + " (" + totalReceived +
 						" bytes) to " + outFile.getAbsolutePath());
 			}
+			store.store(outFile, fileName);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -5,6 +5,12 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 public class MultiThreadedUDPServer {
 
@@ -12,9 +18,30 @@ public class MultiThreadedUDPServer {
 	public static final int BUFFER_SIZE = Constants.Config.BUFFER_SIZE;
 	public static final String IMAGE_FOLDER = Constants.FilePath.SERVER_IMAGE_FOLDER;
 
+	// Hot images in memory, or null with --cache-size=0
+	private static FileCache cache;
+	// Legacy downloads have no feedback, so they are paced at a fixed --udp-rate instead
+	private static ServerOptions serverOptions;
+	// Reliable transfers in progress, by client address, so ACKs reach their sender
+	private static final ConcurrentHashMap<SocketAddress, ReliableUdpSender> reliableSessions = new ConcurrentHashMap<>();
+
 	public static void main(String[] args) {
+		ServerOptions options = ServerOptions.parse(args);
+		cache = FileCache.forOptions(IMAGE_FOLDER, options);
+		serverOptions = options;
+		if (options.has("nio")) {
+			try {
+				new UdpNioServer(SERVER_PORT, IMAGE_FOLDER, MultiThreadedUDPServer::appendInfoToFileName, cache, options)
+						.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		ExecutorService executor = ExecutionStrategy.executorFor(options);
 		try (DatagramSocket socket = new DatagramSocket(SERVER_PORT)) {
-			System.out.println("[Server] Multi-Threaded UDP Server on port " + SERVER_PORT);
+			System.out.println("[Server] Multi-Threaded UDP Server on port " + SERVER_PORT + " (executor: "
+					+ ExecutionStrategy.fromOptions(options) + ")");
 
 			// Continuously listen for incoming packets
 			while (true) {
@@ -23,11 +50,22 @@ public class MultiThreadedUDPServer {
 				DatagramPacket requestPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
 				socket.receive(requestPacket);
 
-				// 2) Spawn a new thread to handle the request
-				new Thread(() -> handleRequest(socket, requestPacket)).start();
+				// ACKs of a reliable transfer are cheap, apply them right here
+				if (ReliableUdp.isAck(receiveBuffer, 0, requestPacket.getLength())) {
+					ReliableUdpSender sender = reliableSessions.get(requestPacket.getSocketAddress());
+					if (sender != null) {
+						sender.onAck(receiveBuffer, 0, requestPacket.getLength());
+					}
+					continue;
+				}
+
+				// 2) Hand the request to the configured executor
+				executor.execute(() -> handleRequest(socket, requestPacket));
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			executor.shutdown();
 		}
 	}
 
@@ -37,8 +75,27 @@ public class MultiThreadedUDPServer {
 		int clientPort = requestPacket.getPort();
 
 		// Extract the requested file name from the packet
-		String requestedFileName = new String(requestPacket.getData(), 0, requestPacket.getLength()).trim();
+		ContentHash.Conditional request = ContentHash.Conditional.parse(
+				new String(requestPacket.getData(), 0, requestPacket.getLength()).trim());
+		String requestedFileName = request.request();
 		System.out.println("[UDP Server] Client requests: " + requestedFileName);
+		String plainName = requestedFileName.startsWith(ReliableUdp.REQUEST_PREFIX)
+				? requestedFileName.substring(ReliableUdp.REQUEST_PREFIX.length()).trim() : requestedFileName;
+		if (request.notModified(new File(IMAGE_FOLDER, plainName))) {
+			sendUDP(socket, ContentHash.notModified(appendInfoToFileName(plainName, clientPort)).getBytes(),
+					clientAddr, clientPort);
+			System.out.println("[UDP Server] Not modified: " + plainName);
+			return;
+		}
+		if (requestedFileName.startsWith(ReliableUdp.REQUEST_PREFIX)) {
+			handleReliable(socket, requestedFileName.substring(ReliableUdp.REQUEST_PREFIX.length()).trim(),
+					requestPacket.getSocketAddress(), clientAddr, clientPort);
+			return;
+		}
+
+		if (cache != null && sendCached(socket, requestedFileName, clientAddr, clientPort)) {
+			return;
+		}
 
 		File file = new File(IMAGE_FOLDER, requestedFileName);
 		if (!file.exists()) {
@@ -56,18 +113,115 @@ public class MultiThreadedUDPServer {
 
 		// Send file contents in chunks
 		try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
+			TokenBucket pacer = TokenBucket.forOptions(serverOptions);
+			long start = System.nanoTime();
 			byte[] buffer = new byte[BUFFER_SIZE];
 			int bytesRead;
 			while ((bytesRead = bis.read(buffer)) != -1) {
+				pacer.acquire(bytesRead);
 				DatagramPacket dataPacket = new DatagramPacket(buffer, bytesRead, clientAddr, clientPort);
 				socket.send(dataPacket);
 			}
-			System.out.println("[UDP Server] File sent: " + renamedFileName);
+			System.out.println("[UDP Server] File sent: " + renamedFileName + " " + rate(fileSize, start));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Sequenced chunks with a sliding window and retransmission, see ReliableUdp
+	private static void handleReliable(DatagramSocket socket, String requestedFileName, SocketAddress client,
+	                                   InetAddress clientAddr, int clientPort) {
+		String renamedFileName = appendInfoToFileName(requestedFileName, clientPort);
+		ReliableUdpSender running = reliableSessions.get(client);
+		if (running != null) {
+			// The client resent its request because the header was lost; the running sender knows the file
+			sendUDP(socket, reliableHeader(renamedFileName, running).getBytes(), clientAddr, clientPort);
+			return;
+		}
+		try {
+			ByteBuffer content = reliableContent(requestedFileName);
+			if (content == null) {
+				sendUDP(socket, "ERROR: File not found".getBytes(), clientAddr, clientPort);
+				return;
+			}
+
+			ReliableUdpSender sender = new ReliableUdpSender(
+					(frame, length) -> socket.send(new DatagramPacket(frame, length, clientAddr, clientPort)), content);
+			running = reliableSessions.putIfAbsent(client, sender);
+			if (running != null) {
+				sendUDP(socket, reliableHeader(renamedFileName, running).getBytes(), clientAddr, clientPort);
+				return;
+			}
+			try {
+				sendUDP(socket, reliableHeader(renamedFileName, sender).getBytes(), clientAddr, clientPort);
+				boolean delivered = sender.run();
+				System.out.println("[UDP Server] Reliable " + (delivered ? "sent " : "gave up on ") + renamedFileName
+						+ ": " + sender.stats());
+			} finally {
+				reliableSessions.remove(client, sender);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	private static String reliableHeader(String renamedFileName, ReliableUdpSender sender) {
+		return "FILENAME:" + renamedFileName + " FILESIZE:" + sender.size() + " CHUNKS:" + sender.chunks();
+	}
+
+	// Whole file as a buffer: from the cache, or memory-mapped from disk if uncached or too large to cache
+	private static ByteBuffer reliableContent(String requestedFileName) throws IOException {
+		FileCache.CachedFile cached = cache != null ? cache.get(requestedFileName) : null;
+		if (cache != null && cached != FileCache.NOT_CACHEABLE) {
+			return cached == null ? null : cached.content();
+		}
+		File file = new File(IMAGE_FOLDER, requestedFileName);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	// Same replies as below, but the hot path never touches the file system; false if the file is too large to cache
+	private static boolean sendCached(DatagramSocket socket, String requestedFileName, InetAddress clientAddr, int clientPort) {
+		try {
+			FileCache.CachedFile cached = cache.get(requestedFileName);
+			if (cached == FileCache.NOT_CACHEABLE) {
+				return false;
+			}
+			if (cached == null) {
+				sendUDP(socket, "ERROR: File not found".getBytes(), clientAddr, clientPort);
+				return true;
+			}
+			String renamedFileName = appendInfoToFileName(requestedFileName, clientPort);
+			String header = "FILENAME:" + renamedFileName + " FILESIZE:" + cached.size();
+			sendUDP(socket, header.getBytes(), clientAddr, clientPort);
+
+			TokenBucket pacer = TokenBucket.forOptions(serverOptions);
+			long start = System.nanoTime();
+			ByteBuffer content = cached.content();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (content.hasRemaining()) {
+				int length = Math.min(buffer.length, content.remaining());
+				content.get(buffer, 0, length);
+				pacer.acquire(length);
+				socket.send(new DatagramPacket(buffer, length, clientAddr, clientPort));
+			}
+			System.out.println("[UDP Server] File sent: " + renamedFileName + " " + rate(cached.size(), start));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	// "(270976 bytes at 31.8MB/s)"
+	private static String rate(long bytes, long startNanos) {
+		double seconds = Math.max(1, System.nanoTime() - startNanos) / 1_000_000_000.0;
+		return String.format("(%d bytes at %.1fMB/s)", bytes, bytes / seconds / (1024 * 1024));
+	}
+
 	private static void sendUDP(DatagramSocket socket, byte[] data, InetAddress addr, int port) {
 		try {
 			DatagramPacket packet = new DatagramPacket(data, data.length, addr, port);
@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NioConnection - one client channel owned by a single {@link NioServer} I/O thread
+ * <p>
+ * Keeps a per-channel read buffer (grown on demand for long lines) and a
+ * queue of pending write buffers. {@link #write} and {@link #close} may be
+ * called from any thread; the actual channel I/O always happens on the
+ * owning I/O thread.
+ * </p>
+ */
+public class NioConnection {
+	// Upper bound for a single unconsumed message (e.g. one big "sort" line)
+	private static final int MAX_READ_BUFFER = 64 * 1024 * 1024;
+
+	private final SocketChannel channel;
+	private final NioServer.EventLoop loop;
+	private final NioHandler handler;
+	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+	private ByteBuffer readBuffer = ByteBuffer.allocate(Constants.Config.BUFFER_SIZE);
+	private SelectionKey key;
+	private volatile boolean closeAfterWrite = false;
+	private volatile boolean open = true;
+
+	// Per-connection protocol state, owned by the handler
+	private volatile Object attachment;
+
+	NioConnection(SocketChannel channel, NioServer.EventLoop loop, NioHandler handler) {
+		this.channel = channel;
+		this.loop = loop;
+		this.handler = handler;
+	}
+
+	public void write(String text) {
+		write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	public void write(ByteBuffer data) {
+		if (!open) {
+			return;
+		}
+		writeQueue.add(data);
+		loop.execute(this::flushQuietly);
+	}
+
+	/**
+	 * Close the connection once everything queued so far has been written.
+	 */
+	public void closeAfterWrite() {
+		closeAfterWrite = true;
+		loop.execute(this::flushQuietly);
+	}
+
+	public void close() {
+		loop.execute(this::closeNow);
+	}
+
+	/**
+	 * Run task on this connection's I/O thread, e.g. to reply once a worker
+	 * has done the blocking part of a request.
+	 */
+	public void execute(Runnable task) {
+		loop.execute(task);
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public int remotePort() {
+		try {
+			return ((InetSocketAddress) channel.getRemoteAddress()).getPort();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	public String remoteAddress() {
+		try {
+			return String.valueOf(channel.getRemoteAddress());
+		} catch (IOException e) {
+			return "unknown";
+		}
+	}
+
+	public Object attachment() {
+		return attachment;
+	}
+
+	public void attach(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	// ---- I/O thread only ----
+
+	void register(SelectionKey key) {
+		this.key = key;
+	}
+
+	void onReadable() throws IOException {
+		int n = channel.read(readBuffer);
+		if (n == -1) {
+			closeNow();
+			return;
+		}
+		readBuffer.flip();
+		handler.onRead(this, readBuffer);
+		readBuffer.compact();
+		if (!readBuffer.hasRemaining()) {
+			growReadBuffer();
+		}
+	}
+
+	void flush() throws IOException {
+		if (!open) {
+			return;
+		}
+		ByteBuffer head;
+		while ((head = writeQueue.peek()) != null) {
+			channel.write(head);
+			if (head.hasRemaining()) {
+				// Socket buffer is full; wait until the selector says it is writable again
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			writeQueue.poll();
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		if (closeAfterWrite) {
+			closeNow();
+		}
+	}
+
+	void closeNow() {
+		if (!open) {
+			return;
+		}
+		open = false;
+		writeQueue.clear();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		handler.onClose(this);
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException e) {
+			closeNow();
+		}
+	}
+
+	private void growReadBuffer() throws IOException {
+		if (readBuffer.capacity() >= MAX_READ_BUFFER) {
+			closeNow();
+			throw new IOException("Message exceeds " + MAX_READ_BUFFER + " bytes from " + remoteAddress());
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+		readBuffer.flip();
+		bigger.put(readBuffer);
+		readBuffer = bigger;
+	}
+}
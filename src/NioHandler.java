@@ -0,0 +1,25 @@
+import java.nio.ByteBuffer;
+
+/**
+ * NioHandler - protocol plug-in for {@link NioServer}
+ * <p>
+ * All callbacks run on the connection's I/O thread and must not block.
+ * Long-running work should be handed to an executor, which can then answer
+ * through the thread-safe {@link NioConnection#write} methods.
+ * </p>
+ */
+public interface NioHandler {
+
+	default void onConnect(NioConnection connection) {
+	}
+
+	/**
+	 * Called with the bytes read so far, in read mode. The handler consumes
+	 * what it can by advancing the buffer's position; whatever is left over
+	 * is kept and presented again, together with new data, on the next read.
+	 */
+	void onRead(NioConnection connection, ByteBuffer data);
+
+	default void onClose(NioConnection connection) {
+	}
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NioServer - non-blocking, selector-based server core
+ * <p>
+ * One acceptor selector hands new channels round-robin to a small fixed set
+ * of I/O threads ("event loops"), each with its own {@link Selector}. Every
+ * connection stays on its event loop for its whole life, so thousands of
+ * clients cost a buffer each instead of a thread each. The wire protocol is
+ * supplied by a {@link NioHandler}.
+ * </p>
+ */
+public class NioServer {
+	private final int port;
+	private final NioHandler handler;
+	private final EventLoop[] loops;
+	private volatile boolean running = true;
+
+	public NioServer(int port, NioHandler handler, int ioThreads) throws IOException {
+		this.port = port;
+		this.handler = handler;
+		this.loops = new EventLoop[Math.max(1, ioThreads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+		}
+	}
+
+	/**
+	 * Start the I/O threads and run the accept loop on the calling thread.
+	 */
+	public void start() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			Thread thread = new Thread(loops[i], "nio-io-" + i);
+			loops[i].thread = thread;
+			thread.start();
+		}
+		System.out.println("[NioServer] Listening on port " + port + " with " + loops.length + " I/O threads");
+
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		     Selector acceptSelector = Selector.open()) {
+			serverChannel.bind(new InetSocketAddress(port), 1024);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+			int next = 0;
+			while (running) {
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+				SocketChannel channel;
+				while ((channel = serverChannel.accept()) != null) {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					loops[next].register(channel);
+					next = (next + 1) % loops.length;
+				}
+			}
+		} finally {
+			stop();
+		}
+	}
+
+	public void stop() {
+		running = false;
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * One I/O thread: a selector plus a queue of tasks submitted from other threads.
+	 */
+	final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private volatile Thread thread;
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Run the task on this loop's thread: immediately if already on it, otherwise queued.
+		 */
+		void execute(Runnable task) {
+			if (Thread.currentThread() == thread) {
+				task.run();
+			} else {
+				tasks.add(task);
+				selector.wakeup();
+			}
+		}
+
+		void register(SocketChannel channel) {
+			execute(() -> {
+				NioConnection connection = new NioConnection(channel, this, handler);
+				try {
+					connection.register(channel.register(selector, SelectionKey.OP_READ, connection));
+					handler.onConnect(connection);
+				} catch (IOException e) {
+					e.printStackTrace();
+					connection.closeNow();
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException e) {
+						connection.closeNow();
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
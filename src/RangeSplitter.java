@@ -0,0 +1,141 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * RangeSplitter - runs a loop over 0..n as fork-join pieces on several cores
+ * <p>
+ * A loop such as foo's sum is split into at most {@code parallelism} pieces
+ * of at least {@code threshold} iterations each, the pieces run as
+ * {@link RecursiveTask}s on a shared {@link ForkJoinPool}, and their partial
+ * results are merged. Below the threshold the loop simply runs inline, since
+ * forking would cost more than it saves.
+ * </p>
+ * <p>
+ * The per-call parallelism bounds how many workers one call can occupy, so a
+ * single huge call leaves the rest of the pool to the other requests. The
+ * pieces check the caller's {@link CancellationToken} like the sequential
+ * loop did; a cancelled call stops all its pieces and throws the usual
+ * {@link CancellationException} on the calling thread.
+ * </p>
+ */
+public final class RangeSplitter {
+
+	/**
+	 * One piece of the loop: iterations from (inclusive) to to (exclusive).
+	 * Call {@code work.checkpoint(i - from)} every so many iterations.
+	 */
+	public interface Range {
+		long compute(long from, long to, CancellationToken.Work work);
+	}
+
+	private final ForkJoinPool pool;
+	private final int parallelism;
+	private final long threshold;
+
+	public RangeSplitter(ForkJoinPool pool, int parallelism, long threshold) {
+		this.pool = pool;
+		this.parallelism = Math.max(1, parallelism);
+		this.threshold = Math.max(1, threshold);
+	}
+
+	/**
+	 * Splitter for a server's CPU-heavy loops: --split-parallelism=N pieces per
+	 * call at most (default: all cores) of at least --split-threshold=N
+	 * iterations (default Constants.Config.SPLIT_THRESHOLD).
+	 *
+	 * @param pool the server's fork-join pool, or null for a new one with a worker per core
+	 * @return null if --split-parallelism=1
+	 */
+	public static RangeSplitter forOptions(ServerOptions options, ForkJoinPool pool) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int parallelism = options.getInt("split-parallelism", cores);
+		if (parallelism <= 1) {
+			return null;
+		}
+		int threshold = options.getInt("split-threshold", Constants.Config.SPLIT_THRESHOLD);
+		return new RangeSplitter(pool != null ? pool : new ForkJoinPool(cores), parallelism, threshold);
+	}
+
+	/**
+	 * Compute through the splitter, or as one sequential loop if there is none.
+	 */
+	public static long compute(RangeSplitter splitter, long n, CancellationToken token, Range range,
+			LongBinaryOperator merge) {
+		if (splitter != null) {
+			return splitter.compute(n, token, range, merge);
+		}
+		return range.compute(0, n, token.begin(n));
+	}
+
+	/**
+	 * @param merge combines the results of two adjacent pieces, e.g. Long::sum
+	 * @throws CancellationException if the token was cancelled before all pieces finished
+	 */
+	public long compute(long n, CancellationToken token, Range range, LongBinaryOperator merge) {
+		// Rounded up without n + threshold, which would overflow near Long.MAX_VALUE
+		long pieces = n <= 0 ? 0 : Math.min(parallelism, (n - 1) / threshold + 1);
+		if (pieces <= 1) {
+			return range.compute(0, n, token.begin(n));
+		}
+		Piece task = new Piece(0, n, (int) pieces, token, range, merge);
+		// A call made from one of the pool's own workers forks into its queue instead of blocking it
+		long result = Thread.currentThread() instanceof ForkJoinWorkerThread worker && worker.getPool() == pool
+				? task.invoke()
+				: pool.invoke(task);
+		token.throwIfCancelled();
+		return result;
+	}
+
+	public String stats() {
+		return "split=" + parallelism + "x" + threshold + " pool=" + pool.getParallelism()
+				+ " active=" + pool.getActiveThreadCount() + " steals=" + pool.getStealCount();
+	}
+
+	// A part of the range, split into pieces of (almost) equal size
+	private static final class Piece extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+
+		private final long from;
+		private final long to;
+		private final int pieces;
+		private final CancellationToken token;
+		private final Range range;
+		private final LongBinaryOperator merge;
+
+		Piece(long from, long to, int pieces, CancellationToken token, Range range, LongBinaryOperator merge) {
+			this.from = from;
+			this.to = to;
+			this.pieces = pieces;
+			this.token = token;
+			this.range = range;
+			this.merge = merge;
+		}
+
+		@Override
+		protected Long compute() {
+			if (pieces == 1) {
+				if (token.isCancelled()) {
+					return 0L;
+				}
+				try {
+					return range.compute(from, to, token.begin(to - from));
+				} catch (CancellationException e) {
+					// The caller sees the cancellation once all pieces are done
+					return 0L;
+				}
+			}
+			int leftPieces = pieces / 2;
+			// (to - from) * leftPieces / pieces, split so the product cannot overflow
+			long length = to - from;
+			long middle = from + length / pieces * leftPieces + length % pieces * leftPieces / pieces;
+			Piece left = new Piece(from, middle, leftPieces, token, range, merge);
+			Piece right = new Piece(middle, to, pieces - leftPieces, token, range, merge);
+			left.fork();
+			long rightResult = right.compute();
+			return merge.applyAsLong(left.join(), rightResult);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+import java.nio.ByteBuffer;
+
+/**
+ * ReliableUdp - wire format of the reliable UDP file-transfer mode
+ * <p>
+ * Protocol:
+ *  - client: "RELIABLE <filename>"                  (resent until the header arrives)
+ *  - server: "FILENAME:<renamed> FILESIZE:<size> CHUNKS:<n>" or "ERROR: File not found"
+ *  - server: DATA frames, chunk i covers bytes [i * CHUNK_SIZE, (i+1) * CHUNK_SIZE)
+ *  - client: ACK frames; the transfer is done once the cumulative ack reaches n
+ * </p>
+ * <pre>
+ *  DATA  byte TYPE_DATA | int seq | long offset | payload (up to CHUNK_SIZE bytes)
+ *  ACK   byte TYPE_ACK  | int cumulative (every seq below it has arrived)
+ *                       | long selective (bit i set: seq cumulative+1+i has arrived)
+ * </pre>
+ * <p>
+ * A clear bit below the highest set bit of the selective field is a NACK:
+ * later chunks got through, so that one was most likely lost and the sender
+ * retransmits it without waiting for its timer. Plain requests without the
+ * "RELIABLE " prefix still get the original unsequenced stream.
+ * </p>
+ */
+public final class ReliableUdp {
+	public static final String REQUEST_PREFIX = "RELIABLE ";
+	public static final byte TYPE_DATA = 1;
+	public static final byte TYPE_ACK = 2;
+
+	public static final int CHUNK_SIZE = Constants.Config.BUFFER_SIZE;
+	public static final int DATA_HEADER_SIZE = 1 + 4 + 8;
+	public static final int ACK_SIZE = 1 + 4 + 8;
+	// Chunks past the cumulative ack that one ACK can report
+	public static final int SELECTIVE_RANGE = 64;
+
+	private ReliableUdp() {
+	}
+
+	public static int chunkCount(long fileSize) {
+		return (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/**
+	 * Write a DATA frame for chunk seq of content into frame (at least
+	 * DATA_HEADER_SIZE + CHUNK_SIZE bytes) and return the frame length.
+	 */
+	public static int encodeData(byte[] frame, int seq, ByteBuffer content) {
+		long offset = (long) seq * CHUNK_SIZE;
+		int length = (int) Math.min(CHUNK_SIZE, content.limit() - offset);
+		ByteBuffer out = ByteBuffer.wrap(frame);
+		out.put(TYPE_DATA).putInt(seq).putLong(offset);
+		ByteBuffer chunk = content.duplicate();
+		chunk.position((int) offset).limit((int) offset + length);
+		out.put(chunk);
+		return DATA_HEADER_SIZE + length;
+	}
+
+	public static int encodeAck(byte[] frame, int cumulative, long selective) {
+		ByteBuffer.wrap(frame).put(TYPE_ACK).putInt(cumulative).putLong(selective);
+		return ACK_SIZE;
+	}
+
+	public static boolean isAck(byte[] data, int offset, int length) {
+		return length == ACK_SIZE && data[offset] == TYPE_ACK;
+	}
+
+	public static boolean isData(byte[] data, int offset, int length) {
+		return length >= DATA_HEADER_SIZE && data[offset] == TYPE_DATA;
+	}
+}
@@ -0,0 +1,196 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReliableUdpHarness - reliable UDP transfers over loopback with injected loss and reordering
+ * <p>
+ * An in-process server answers "RELIABLE <name>" with a random file through
+ * {@link ReliableUdpSender}; a {@link ReliableUdpReceiver} downloads it. The
+ * server drops each outgoing datagram (header or data) and each incoming ACK
+ * with the given loss probability, and holds back outgoing datagrams with the
+ * reorder probability so they arrive after the next one. Every download is
+ * compared byte for byte with the original, and goodput (file bytes per
+ * second of wall time) is reported.
+ * </p>
+ * Usage: java ReliableUdpHarness [fileSizeBytes] [downloadsPerScenario]
+ */
+public class ReliableUdpHarness {
+	private static final double[] LOSS = {0.0, 0.01, 0.05, 0.10, 0.20};
+	private static final double[] REORDER = {0.0, 0.05};
+
+	public static void main(String[] args) throws Exception {
+		int fileSize = args.length != 0 ? Integer.parseInt(args[0]) : 4 * 1024 * 1024;
+		int downloads = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		byte[] original = new byte[fileSize];
+		new Random(42).nextBytes(original);
+		File folder = Files.createTempDirectory("reliable-udp").toFile();
+		folder.deleteOnExit();
+
+		System.out.println("[ReliableUdpHarness] " + fileSize + " byte file, " + downloads + " downloads per scenario");
+		// Warm up the JIT
+		runScenario(original, folder, 0.0, 0.0, 2, false);
+		for (double reorder : REORDER) {
+			for (double loss : LOSS) {
+				runScenario(original, folder, loss, reorder, downloads, true);
+			}
+		}
+	}
+
+	private static void runScenario(byte[] original, File folder, double loss, double reorder, int downloads,
+	                                boolean print) throws Exception {
+		try (LossyServer server = new LossyServer(ByteBuffer.wrap(original), loss, reorder)) {
+			Thread serverThread = new Thread(server, "lossy-udp-server");
+			serverThread.setDaemon(true);
+			serverThread.start();
+
+			long bytes = 0;
+			long start = System.nanoTime();
+			int failures = 0;
+			for (int i = 0; i < downloads; i++) {
+				ReliableUdpReceiver receiver = new ReliableUdpReceiver("127.0.0.1", server.port());
+				try {
+					File file = receiver.download("harness.bin", folder.getPath());
+					byte[] copy = Files.readAllBytes(file.toPath());
+					file.delete();
+					if (!Arrays.equals(original, copy)) {
+						throw new IOException("Downloaded file differs from the original");
+					}
+					bytes += copy.length;
+				} catch (IOException e) {
+					failures++;
+					System.err.println("[ReliableUdpHarness] Download failed: " + e.getMessage());
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+			if (print) {
+				System.out.printf("[ReliableUdpHarness] loss=%4.1f%% reorder=%4.1f%%  goodput %,8.1f MB/sec  "
+								+ "dropped=%d held=%d  %s%s%n", loss * 100, reorder * 100,
+						bytes / seconds / (1024 * 1024), server.dropped.get(), server.reordered.get(), server.lastStats,
+						failures > 0 ? "  FAILED=" + failures : "");
+			}
+		}
+	}
+
+	/**
+	 * Serves one reliable transfer at a time and misbehaves like a bad network.
+	 */
+	private static final class LossyServer implements Runnable, AutoCloseable, ReliableUdpSender.Transport {
+		private final DatagramSocket socket;
+		private final ByteBuffer content;
+		private final double loss;
+		private final double reorder;
+		private final Random random = new Random(7);
+
+		private volatile SocketAddress client;
+		private volatile ReliableUdpSender sender;
+		private byte[] held;
+		final AtomicLong dropped = new AtomicLong();
+		final AtomicLong reordered = new AtomicLong();
+		volatile String lastStats = "";
+
+		LossyServer(ByteBuffer content, double loss, double reorder) throws IOException {
+			this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			this.socket.setReceiveBufferSize(1 << 20);
+			this.content = content;
+			this.loss = loss;
+			this.reorder = reorder;
+		}
+
+		int port() {
+			return socket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[Constants.Config.BUFFER_SIZE];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				while (!socket.isClosed()) {
+					packet.setLength(buffer.length);
+					try {
+						socket.receive(packet);
+					} catch (SocketTimeoutException e) {
+						continue;
+					}
+					ReliableUdpSender current = sender;
+					if (ReliableUdp.isAck(buffer, 0, packet.getLength())) {
+						if (chance(loss)) {
+							dropped.incrementAndGet();
+						} else if (current != null && packet.getSocketAddress().equals(client)) {
+							current.onAck(buffer, 0, packet.getLength());
+						}
+						continue;
+					}
+					// A request: start a transfer, or resend the header for the current one
+					if (current == null || !packet.getSocketAddress().equals(client)) {
+						client = packet.getSocketAddress();
+						current = new ReliableUdpSender(this, content);
+						sender = current;
+						startTransfer(current);
+					}
+					byte[] header = ("FILENAME:harness.bin FILESIZE:" + content.remaining()
+							+ " CHUNKS:" + current.chunks()).getBytes();
+					send(header, header.length);
+				}
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void startTransfer(ReliableUdpSender transfer) {
+			Thread thread = new Thread(() -> {
+				try {
+					transfer.run();
+					lastStats = transfer.stats();
+				} catch (IOException e) {
+					if (!socket.isClosed()) {
+						e.printStackTrace();
+					}
+				}
+			}, "lossy-udp-sender");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// Outgoing datagrams: maybe drop, maybe hold back until after the next one
+		@Override
+		public synchronized void send(byte[] frame, int length) throws IOException {
+			if (chance(loss)) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (held == null && chance(reorder)) {
+				held = Arrays.copyOf(frame, length);
+				reordered.incrementAndGet();
+				return;
+			}
+			socket.send(new DatagramPacket(frame, length, client));
+			if (held != null) {
+				socket.send(new DatagramPacket(held, held.length, client));
+				held = null;
+			}
+		}
+
+		private synchronized boolean chance(double probability) {
+			return probability > 0 && random.nextDouble() < probability;
+		}
+
+		@Override
+		public void close() {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * ReliableUdpReceiver - client side of the reliable UDP mode (see {@link ReliableUdp})
+ * <p>
+ * Chunks are written at their offsets as they arrive, in any order, and
+ * duplicates are ignored. An ACK goes out for every out-of-order chunk (so
+ * the sender learns about holes at once), for every ACK_EVERY in-order
+ * chunks, and whenever the line goes quiet.
+ * </p>
+ */
+public class ReliableUdpReceiver {
+	private static final int ACK_EVERY = 4;
+	private static final int QUIET_MILLIS = 50;
+	private static final long GIVE_UP_NANOS = 10_000_000_000L;
+	// After the last chunk, keep answering retransmissions for a while in case the final ACK is lost
+	private static final int LINGER_MILLIS = 200;
+
+	private final String host;
+	private final int port;
+	private long chunksReceived;
+	private long duplicates;
+
+	public ReliableUdpReceiver(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Download fileName into folder under the name the server reports.
+	 *
+	 * @return the saved file
+	 */
+	public File download(String fileName, String folder) throws IOException {
+		return download(fileName, folder, null);
+	}
+
+	/**
+	 * Download through a {@link ContentStore}: the request carries the hash
+	 * of the stored copy, a NOT_MODIFIED reply is checked out of the store,
+	 * and a new download is added to it.
+	 */
+	public File download(String fileName, String folder, ContentStore store) throws IOException {
+		String hash = store == null ? null : store.hashOf(fileName);
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(QUIET_MILLIS);
+			socket.setReceiveBufferSize(1 << 20);
+			InetAddress server = InetAddress.getByName(host);
+			byte[] request = ContentHash.conditional(ReliableUdp.REQUEST_PREFIX + fileName, hash).getBytes();
+			DatagramPacket requestPacket = new DatagramPacket(request, request.length, server, port);
+			socket.send(requestPacket);
+
+			byte[] buffer = new byte[ReliableUdp.DATA_HEADER_SIZE + ReliableUdp.CHUNK_SIZE];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			byte[] ackFrame = new byte[ReliableUdp.ACK_SIZE];
+			DatagramPacket ackPacket = new DatagramPacket(ackFrame, ackFrame.length, server, port);
+
+			File outFile = null;
+			RandomAccessFile out = null;
+			FileChannel channel = null;
+			BitSet received = new BitSet();
+			int chunks = -1;
+			int cumulative = 0;
+			int sinceAck = 0;
+			long lastHeard = System.nanoTime();
+			try {
+				while (chunks < 0 || cumulative < chunks) {
+					try {
+						packet.setLength(buffer.length);
+						socket.receive(packet);
+					} catch (SocketTimeoutException e) {
+						if (System.nanoTime() - lastHeard > GIVE_UP_NANOS) {
+							throw new IOException("Server went silent: " + cumulative + " of " + chunks + " chunks");
+						}
+						if (chunks < 0) {
+							socket.send(requestPacket); // request or header lost
+						} else {
+							sendAck(socket, ackPacket, ackFrame, received, cumulative);
+						}
+						continue;
+					}
+					lastHeard = System.nanoTime();
+					int length = packet.getLength();
+
+					if (ReliableUdp.isData(buffer, 0, length)) {
+						if (chunks < 0) {
+							continue; // header not seen yet; the sender will retransmit
+						}
+						ByteBuffer frame = ByteBuffer.wrap(buffer, 1, length - 1);
+						int seq = frame.getInt();
+						long offset = frame.getLong();
+						if (seq < 0 || seq >= chunks || received.get(seq)) {
+							duplicates++;
+							sendAck(socket, ackPacket, ackFrame, received, cumulative);
+							continue;
+						}
+						ByteBuffer payload = ByteBuffer.wrap(buffer, ReliableUdp.DATA_HEADER_SIZE,
+								length - ReliableUdp.DATA_HEADER_SIZE);
+						while (payload.hasRemaining()) {
+							channel.write(payload, offset + payload.position() - ReliableUdp.DATA_HEADER_SIZE);
+						}
+						received.set(seq);
+						chunksReceived++;
+						boolean inOrder = seq == cumulative;
+						cumulative = received.nextClearBit(cumulative);
+						if (!inOrder || ++sinceAck >= ACK_EVERY || cumulative == chunks) {
+							sendAck(socket, ackPacket, ackFrame, received, cumulative);
+							sinceAck = 0;
+						}
+						continue;
+					}
+
+					String header = new String(buffer, 0, length).trim();
+					if (header.startsWith("ERROR")) {
+						throw new IOException(header);
+					}
+					String unchanged = ContentHash.parseNotModified(header);
+					if (unchanged != null && chunks < 0) {
+						File target = new File(folder, unchanged);
+						if (!store.checkout(hash, target)) {
+							throw new IOException("Stored copy of " + fileName + " is gone");
+						}
+						return target;
+					}
+					if (chunks >= 0 || !header.startsWith("FILENAME:")) {
+						continue; // repeated header
+					}
+					String renamed = null;
+					long fileSize = 0;
+					for (String part : header.split("\\s+")) {
+						if (part.startsWith("FILENAME:")) {
+							renamed = part.substring("FILENAME:".length());
+						} else if (part.startsWith("FILESIZE:")) {
+							fileSize = Long.parseLong(part.substring("FILESIZE:".length()));
+						}
+					}
+					outFile = new File(folder, renamed);
+					ContentStore.detach(outFile);
+					out = new RandomAccessFile(outFile, "rw");
+					out.setLength(fileSize);
+					channel = out.getChannel();
+					chunks = ReliableUdp.chunkCount(fileSize);
+					if (chunks == 0) {
+						sendAck(socket, ackPacket, ackFrame, received, 0);
+					}
+				}
+				linger(socket, packet, ackPacket, ackFrame, received, chunks);
+			} finally {
+				if (out != null) {
+					out.close();
+				}
+			}
+			if (store != null) {
+				store.store(outFile, fileName);
+			}
+			return outFile;
+		}
+	}
+
+	// Answer any retransmission with the final ACK until the server stops sending
+	private void linger(DatagramSocket socket, DatagramPacket packet, DatagramPacket ackPacket, byte[] ackFrame,
+	                    BitSet received, int chunks) throws IOException {
+		socket.setSoTimeout(LINGER_MILLIS);
+		try {
+			while (true) {
+				packet.setLength(packet.getData().length);
+				socket.receive(packet);
+				duplicates++;
+				sendAck(socket, ackPacket, ackFrame, received, chunks);
+			}
+		} catch (SocketTimeoutException e) {
+			// the server is done
+		}
+	}
+
+	private static void sendAck(DatagramSocket socket, DatagramPacket ackPacket, byte[] ackFrame,
+	                            BitSet received, int cumulative) throws IOException {
+		long selective = 0;
+		for (int bit = 0; bit < ReliableUdp.SELECTIVE_RANGE; bit++) {
+			if (received.get(cumulative + 1 + bit)) {
+				selective |= 1L << bit;
+			}
+		}
+		ReliableUdp.encodeAck(ackFrame, cumulative, selective);
+		socket.send(ackPacket);
+	}
+
+	public long chunksReceived() {
+		return chunksReceived;
+	}
+
+	public long duplicates() {
+		return duplicates;
+	}
+}
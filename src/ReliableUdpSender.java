@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * ReliableUdpSender - sliding-window sender for one reliable UDP transfer
+ * <p>
+ * Up to a congestion window of chunks past the cumulative ack are in
+ * flight, sent no faster than the pacing rate; both adapt to this client's
+ * ACKs through a {@link CongestionController}. Each chunk has its own
+ * retransmission timer (RTO from smoothed RTT samples, RFC 6298 style,
+ * doubled on every timeout); chunks reported missing by an ACK's selective
+ * field are resent at once. The sender is a state machine:
+ * {@link #onAck} feeds it ACK frames, {@link #pump} sends whatever is due,
+ * and {@link #run} drives both from a dedicated thread (an event loop such
+ * as {@link UdpNioServer} calls them itself).
+ * </p>
+ */
+public class ReliableUdpSender {
+
+	/**
+	 * Where DATA frames go, e.g. a DatagramSocket bound for one client.
+	 */
+	public interface Transport {
+		void send(byte[] frame, int length) throws IOException;
+	}
+
+	// At most this many chunks past the cumulative ack, however large the window
+	static final int MAX_SPAN = 1024;
+	static final long INITIAL_RTO_NANOS = 200_000_000L;
+	static final long MIN_RTO_NANOS = 5_000_000L;
+	static final long MAX_RTO_NANOS = 2_000_000_000L;
+	// Give up when the client has been silent this long
+	static final long IDLE_TIMEOUT_NANOS = 10_000_000_000L;
+
+	private final Transport transport;
+	private final ByteBuffer content;
+	private final long size;
+	private final int chunks;
+	private final byte[] frame = new byte[ReliableUdp.DATA_HEADER_SIZE + ReliableUdp.CHUNK_SIZE];
+	private final CongestionController congestion = new CongestionController(ReliableUdp.CHUNK_SIZE);
+
+	private final BitSet acked = new BitSet();
+	// Sent, not acked and not reported lost: what the congestion window limits
+	private final BitSet outstanding = new BitSet();
+	private int inFlight;
+	private final long[] sentAt;
+	private final byte[] sendCount;
+	private int base;      // lowest unacked seq
+	private int nextSeq;   // lowest never-sent seq
+
+	private long srtt = -1;
+	private long rttvar;
+	private long rto = INITIAL_RTO_NANOS;
+	private long lastAckAt = System.nanoTime();
+	private final long startedAt = System.nanoTime();
+	private long finishedAt;
+
+	private long framesSent;
+	private long bytesSent;
+	private long retransmits;
+	private long fastRetransmits;
+
+	public ReliableUdpSender(Transport transport, ByteBuffer content) {
+		this.transport = transport;
+		this.content = content.duplicate();
+		this.size = content.remaining();
+		this.chunks = ReliableUdp.chunkCount(content.remaining());
+		this.sentAt = new long[chunks];
+		this.sendCount = new byte[chunks];
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public int chunks() {
+		return chunks;
+	}
+
+	public synchronized boolean isComplete() {
+		return base >= chunks;
+	}
+
+	/**
+	 * @return true once the client has been silent for IDLE_TIMEOUT_NANOS
+	 */
+	public synchronized boolean isIdle(long now) {
+		return now - lastAckAt > IDLE_TIMEOUT_NANOS;
+	}
+
+	/**
+	 * Apply one ACK frame from the client.
+	 */
+	public synchronized void onAck(byte[] data, int offset, int length) {
+		if (!ReliableUdp.isAck(data, offset, length)) {
+			return;
+		}
+		ByteBuffer ack = ByteBuffer.wrap(data, offset + 1, length - 1);
+		int cumulative = Math.min(ack.getInt(), chunks);
+		long selective = ack.getLong();
+		long now = System.nanoTime();
+		lastAckAt = now;
+
+		int newlyAcked = 0;
+		for (int seq = base; seq < cumulative; seq++) {
+			newlyAcked += markAcked(seq, now);
+		}
+		if (cumulative > base) {
+			base = cumulative;
+		}
+
+		int highest = 63 - Long.numberOfLeadingZeros(selective);
+		for (int bit = 0; bit <= highest; bit++) {
+			int seq = cumulative + 1 + bit;
+			if (seq >= chunks) {
+				break;
+			}
+			if ((selective & (1L << bit)) != 0) {
+				newlyAcked += markAcked(seq, now);
+			} else if (seq < nextSeq && !acked.get(seq)) {
+				nack(seq, now);
+			}
+		}
+		// The cumulative seq itself is missing whenever anything after it arrived
+		if (highest >= 0 && cumulative < nextSeq) {
+			nack(cumulative, now);
+		}
+		if (newlyAcked > 0) {
+			congestion.onAcked(newlyAcked, srtt);
+		}
+		if (isComplete() && finishedAt == 0) {
+			finishedAt = now;
+		}
+		notifyAll();
+	}
+
+	// 1 if seq was newly acknowledged
+	private int markAcked(int seq, long now) {
+		if (acked.get(seq)) {
+			return 0;
+		}
+		acked.set(seq);
+		leaveFlight(seq);
+		// Karn: only chunks sent exactly once (and not queued for a resend) give an unambiguous RTT sample
+		if (sendCount[seq] == 1 && sentAt[seq] != 0) {
+			sampleRtt(now - sentAt[seq]);
+		}
+		return 1;
+	}
+
+	// Resend a reported hole, at most once per smoothed RTT
+	private void nack(int seq, long now) {
+		long guard = srtt > 0 ? srtt : rto / 2;
+		if (sentAt[seq] != 0 && now - sentAt[seq] >= guard) {
+			fastRetransmits++;
+			sentAt[seq] = 0; // due immediately in the next pump
+			leaveFlight(seq);
+			congestion.onLoss(seq, nextSeq, srtt);
+		}
+	}
+
+	private void sampleRtt(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		rto = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, srtt + 4 * rttvar));
+	}
+
+	/**
+	 * Send every chunk whose timer expired, then new chunks while the
+	 * congestion window and the pacer allow. Retransmissions are not held
+	 * back by the pacer but still take its tokens.
+	 *
+	 * @return false once the transfer is complete
+	 */
+	public synchronized boolean pump(long now) throws IOException {
+		if (isComplete()) {
+			return false;
+		}
+		boolean timedOut = false;
+		for (int seq = base; seq < nextSeq; seq++) {
+			if (!acked.get(seq) && now - sentAt[seq] >= rto) {
+				if (sentAt[seq] != 0) {
+					timedOut = true;
+				}
+				send(seq, now);
+				retransmits++;
+			}
+		}
+		if (timedOut) {
+			rto = Math.min(MAX_RTO_NANOS, rto * 2);
+			congestion.onTimeout(nextSeq, srtt);
+		}
+		while (windowOpen() && congestion.nanosUntilSend(frame.length, now) == 0) {
+			send(nextSeq++, now);
+		}
+		return true;
+	}
+
+	private void send(int seq, long now) throws IOException {
+		int length = ReliableUdp.encodeData(frame, seq, content);
+		transport.send(frame, length);
+		congestion.onSent(length, now);
+		if (!outstanding.get(seq)) {
+			outstanding.set(seq);
+			inFlight++;
+		}
+		sentAt[seq] = now;
+		if (sendCount[seq] < Byte.MAX_VALUE) {
+			sendCount[seq]++;
+		}
+		framesSent++;
+		bytesSent += length;
+	}
+
+	private void leaveFlight(int seq) {
+		if (outstanding.get(seq)) {
+			outstanding.clear(seq);
+			inFlight--;
+		}
+	}
+
+	// Selectively acked chunks leave the flight, so new data keeps flowing (and drawing ACKs) past a hole
+	private boolean windowOpen() {
+		return nextSeq < chunks && inFlight < congestion.window() && nextSeq < base + MAX_SPAN;
+	}
+
+	/**
+	 * Nanos until {@link #pump} has something to send: the pacing delay while
+	 * the window has room, else until the earliest retransmission timer fires.
+	 */
+	public synchronized long nanosUntilNextSend(long now) {
+		long earliest = Long.MAX_VALUE;
+		if (windowOpen()) {
+			long paced = congestion.nanosUntilSend(frame.length, now);
+			if (paced == 0) {
+				return 0;
+			}
+			earliest = now + paced;
+		}
+		for (int seq = base; seq < nextSeq; seq++) {
+			if (!acked.get(seq)) {
+				earliest = Math.min(earliest, sentAt[seq] + rto);
+			}
+		}
+		return earliest == Long.MAX_VALUE ? rto : Math.max(0, earliest - now);
+	}
+
+	/**
+	 * Drive the transfer from the calling thread until every chunk is
+	 * acknowledged or the client goes silent.
+	 *
+	 * @return true if the client acknowledged the whole file
+	 */
+	public boolean run() throws IOException {
+		while (true) {
+			long now = System.nanoTime();
+			if (!pump(now)) {
+				return true;
+			}
+			synchronized (this) {
+				if (isIdle(now)) {
+					return false;
+				}
+				long waitNanos = nanosUntilNextSend(now);
+				if (waitNanos > 0 && !isComplete()) {
+					try {
+						wait(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * "chunks=67 sent=70 retransmits=3 (fast 2) loss=4.3% srtt=0.4ms rto=5.0ms cwnd=24 pace=80.0MB/s
+	 * rate=61.2MB/s time=12.3ms" - loss is the share of frames that had to be resent, pace the
+	 * current pacing rate and rate the achieved send rate over the transfer.
+	 */
+	public synchronized String stats() {
+		long elapsed = Math.max(1, (finishedAt != 0 ? finishedAt : System.nanoTime()) - startedAt);
+		return String.format("chunks=%d sent=%d retransmits=%d (fast %d) loss=%.1f%% srtt=%.1fms rto=%.1fms "
+						+ "cwnd=%d pace=%.1fMB/s rate=%.1fMB/s time=%.1fms",
+				chunks, framesSent, retransmits, fastRetransmits, lossPercent(), Math.max(0, srtt) / 1e6, rto / 1e6,
+				congestion.window(), congestion.rateBytesPerSecond() / (1024 * 1024),
+				bytesSent * 1e9 / elapsed / (1024 * 1024), elapsed / 1e6);
+	}
+
+	public synchronized double lossPercent() {
+		return framesSent == 0 ? 0 : 100.0 * retransmits / framesSent;
+	}
+
+	public synchronized long srttNanos() {
+		return srtt;
+	}
+}
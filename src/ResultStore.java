@@ -0,0 +1,126 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ResultStore - bounded store for finished async RPC results
+ * <p>
+ * Results leave the store in one of three ways:
+ *  - fetched : taken by getResult or delivered by a push (counted as "fetched")
+ *  - expired : older than the TTL (checked on access and by a background sweep)
+ *  - evicted : the oldest result is dropped once there are more than maxEntries
+ * </p>
+ */
+public class ResultStore {
+	private static final class Entry {
+		final String result;
+		final long storedAt;
+
+		Entry(String result, long storedAt) {
+			this.result = result;
+			this.storedAt = storedAt;
+		}
+	}
+
+	private final ConcurrentHashMap<Integer, Entry> results = new ConcurrentHashMap<>();
+	// rpcIds in the order they were stored (may still hold ids already fetched)
+	private final ConcurrentLinkedQueue<Integer> insertionOrder = new ConcurrentLinkedQueue<>();
+	private final long ttlNanos;
+	private final int maxEntries;
+
+	private final AtomicLong fetched = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	public ResultStore(long ttl, TimeUnit unit, int maxEntries) {
+		this.ttlNanos = unit.toNanos(ttl);
+		this.maxEntries = maxEntries;
+
+		ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "result-store-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, Math.min(TimeUnit.SECONDS.toMillis(1), unit.toMillis(ttl)));
+		sweeper.scheduleAtFixedRate(this::expireStale, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public void put(int rpcId, String result) {
+		results.put(rpcId, new Entry(result, System.nanoTime()));
+		insertionOrder.add(rpcId);
+		while (results.size() > maxEntries) {
+			Integer oldest = insertionOrder.poll();
+			if (oldest == null) {
+				break;
+			}
+			if (results.remove(oldest) != null) {
+				evicted.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return the result without removing it, or null if absent or expired
+	 */
+	public String peek(int rpcId) {
+		Entry entry = results.get(rpcId);
+		if (entry == null) {
+			return null;
+		}
+		if (isExpired(entry, System.nanoTime())) {
+			if (results.remove(rpcId, entry)) {
+				expired.incrementAndGet();
+			}
+			return null;
+		}
+		return entry.result;
+	}
+
+	/**
+	 * @return the result and remove it, or null if absent or expired
+	 */
+	public String take(int rpcId) {
+		Entry entry = results.remove(rpcId);
+		if (entry == null) {
+			return null;
+		}
+		if (isExpired(entry, System.nanoTime())) {
+			expired.incrementAndGet();
+			return null;
+		}
+		fetched.incrementAndGet();
+		return entry.result;
+	}
+
+	// Results are stored in time order, so only the head of the queue needs checking
+	void expireStale() {
+		long now = System.nanoTime();
+		Integer head;
+		while ((head = insertionOrder.peek()) != null) {
+			Entry entry = results.get(head);
+			if (entry != null && !isExpired(entry, now)) {
+				break;
+			}
+			insertionOrder.poll();
+			if (entry != null && results.remove(head, entry)) {
+				expired.incrementAndGet();
+			}
+		}
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		return now - entry.storedAt > ttlNanos;
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	public String stats() {
+		return "live=" + results.size() + " fetched=" + fetched.get()
+				+ " expired=" + expired.get() + " evicted=" + evicted.get();
+	}
+}
@@ -0,0 +1,273 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RpcBenchmark - latency percentiles and throughput for the RPC and file paths
+ * <p>
+ * Each suite warms up first (JIT, server threads), then times every single
+ * operation with System.nanoTime and reports throughput plus p50/p90/p99/max.
+ * Nothing is printed inside the timed loop.
+ * </p>
+ * <p>
+ * Suites:
+ *  - micro : in-process request parsing, response formatting and foo/add/sort dispatch
+ *  - sync  : loopback round-trips to SyncRPCServer over text and binary connections
+ *  - async : submit + pushed result round-trips to AsyncRPCServer
+ *  - batch : one connection per 10-call batch to BatchRpcServer
+ *  - tcp   : whole-file downloads from MultiThreadedTCPServer (or TCPServer)
+ *  - udp   : whole-file downloads from MultiThreadedUDPServer (or UDPServer)
+ * The loopback suites need the matching server running on this machine.
+ * </p>
+ * Usage: java RpcBenchmark [suite] [operations] [threads]
+ */
+public class RpcBenchmark {
+	private static final String HOST = Constants.IP.LOCALHOST;
+	private static final String[] FILES = {"my_image.jpg", "my_image2.jpg", "my_image3.jpg", "my_image4.jpg",
+			"my_image5.jpg"};
+	private static final int SORT_LENGTH = 1000;
+
+	// One timed operation; i is the operation's index
+	private interface Operation {
+		void run(int i) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String suite = args.length != 0 ? args[0] : "micro";
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		System.out.println("[RpcBenchmark] suite=" + suite + " operations=" + operations + " threads=" + threads);
+
+		switch (suite) {
+			case "micro":
+				micro(operations, threads);
+				break;
+			case "sync":
+				sync(operations, threads);
+				break;
+			case "async":
+				async(operations, threads);
+				break;
+			case "batch":
+				batch(operations, threads);
+				break;
+			case "tcp":
+				measure("tcp file download", operations, threads, i -> fetchTcp(FILES[i % FILES.length]));
+				break;
+			case "udp":
+				measure("udp file download", operations, threads, i -> fetchUdp(FILES[i % FILES.length]));
+				break;
+			default:
+				System.err.println("[RpcBenchmark] Unknown suite: " + suite
+						+ " (expected micro, sync, async, batch, tcp or udp)");
+		}
+	}
+
+	private static void micro(int operations, int threads) throws Exception {
+		int[] sortArgs = randomArray(SORT_LENGTH);
+		String addLine = "REQUEST#7: add 3 5";
+		String sortLine = textRequest(RpcRequest.of("sort", sortArgs).withRequestId(7));
+		StringBuilder batchSort = new StringBuilder("sort ").append(SORT_LENGTH);
+		for (int v : sortArgs) {
+			batchSort.append(' ').append(v);
+		}
+		String batchSortLine = batchSort.toString();
+
+		measure("parse add (text)", operations, threads, i -> TextCodec.parseRequest(addLine));
+		measure("parse sort (text)", operations, threads, i -> TextCodec.parseRequest(sortLine));
+
+		// Codecs are not thread-safe, so formatting runs on one thread
+		Codec text = new TextCodec(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+		Codec binary = new BinaryCodec(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+		RpcResponse sorted = RpcResponse.ofValues(7, sortArgs);
+		measure("format add (text)", operations, 1, i -> text.writeResponse(RpcResponse.ofValue(7, 8)));
+		measure("format sort (text)", operations, 1, i -> text.writeResponse(sorted));
+		measure("format sort (binary)", operations, 1, i -> binary.writeResponse(sorted));
+
+		measure("dispatch foo", operations, threads, i -> SyncRPCServer.execute(RpcRequest.of("foo", 10000)));
+		measure("dispatch add", operations, threads, i -> SyncRPCServer.execute(RpcRequest.of("add", i, 5)));
+		measure("dispatch sort", operations, threads, i -> SyncRPCServer.execute(RpcRequest.of("sort", sortArgs.clone())));
+		measure("batch call sort", operations, threads, i -> BatchRpcServer.executeCall(batchSortLine));
+	}
+
+	private static void sync(int operations, int threads) throws Exception {
+		int[] sortArgs = randomArray(SORT_LENGTH);
+		for (boolean binary : new boolean[]{false, true}) {
+			String codec = binary ? "binary" : "text";
+			try (RpcConnection connection = new RpcConnection(HOST, Constants.Ports.RPC_PORT, binary)) {
+				measure("sync add (" + codec + ")", operations, threads,
+						i -> check(connection.call(RpcRequest.of("add", i, 5))));
+				measure("sync sort (" + codec + ")", operations / 10 + 1, threads,
+						i -> check(connection.call(RpcRequest.of("sort", sortArgs))));
+			}
+		}
+	}
+
+	private static void async(int operations, int threads) throws Exception {
+		int[] sortArgs = randomArray(SORT_LENGTH);
+		try (AsyncRPCClient client = new AsyncRPCClient(HOST, Constants.Ports.RPC_PORT)) {
+			measure("async add (push)", operations, threads, i -> client.handleAsyncAdd(i, 5).get());
+			measure("async sort (push)", operations / 10 + 1, threads, i -> client.handleAsyncSort(sortArgs).get());
+		}
+	}
+
+	private static void batch(int operations, int threads) throws Exception {
+		StringBuilder request = new StringBuilder("REQUEST: BATCH\n");
+		for (int i = 0; i < 10; i++) {
+			request.append("add ").append(i).append(" 5\n");
+		}
+		String batch = request.append("END\n").toString();
+		measure("batch of 10 adds", operations, threads, i -> {
+			try (Socket socket = new Socket(HOST, BatchRpcServer.SERVER_PORT)) {
+				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				out.write(batch);
+				out.flush();
+				int lines = 0;
+				while (in.readLine() != null) {
+					lines++;
+				}
+				if (lines != 11) {
+					throw new IOException("Expected 11 response lines, got " + lines);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Warm up with a tenth of the operations, then run them split over
+	 * the given number of threads and print one result line.
+	 */
+	private static void measure(String name, int operations, int threads, Operation operation) throws Exception {
+		run(new LatencyHistogram(), operations / 10 + 1, threads, operation);
+		LatencyHistogram histogram = new LatencyHistogram();
+		long start = System.nanoTime();
+		int failures = run(histogram, operations, threads, operation);
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("[RpcBenchmark] %-22s %,12.0f ops/sec  %s%s%n", name,
+				histogram.count() / (elapsed / 1_000_000_000.0), histogram.summary(),
+				failures > 0 ? "  failures=" + failures : "");
+	}
+
+	// Returns the number of failed operations (those are not recorded)
+	private static int run(LatencyHistogram histogram, int operations, int threads, Operation operation)
+			throws InterruptedException {
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger failures = new AtomicInteger();
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread worker = new Thread(() -> {
+				int i;
+				while ((i = next.getAndIncrement()) < operations) {
+					long start = System.nanoTime();
+					try {
+						operation.run(i);
+						histogram.record(System.nanoTime() - start);
+					} catch (Exception e) {
+						if (failures.getAndIncrement() == 0) {
+							System.err.println("[RpcBenchmark] First failure: " + e);
+						}
+					}
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return failures.get();
+	}
+
+	private static void check(RpcResponse response) throws IOException {
+		if (response.isError()) {
+			throw new IOException(response.payload());
+		}
+	}
+
+	// "FILENAME:<name>\nFILESIZE:<size>\n" then the raw bytes, which are discarded
+	private static void fetchTcp(String fileName) throws IOException {
+		try (Socket socket = new Socket(HOST, Constants.Ports.SERVER_PORT)) {
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			out.println(fileName);
+			InputStream in = socket.getInputStream();
+			String nameLine = FileTransfer.readHeaderLine(in);
+			if (nameLine.startsWith("ERROR")) {
+				throw new IOException(nameLine);
+			}
+			long fileSize = Long.parseLong(FileTransfer.readHeaderLine(in).split(":", 2)[1].trim());
+			byte[] buffer = new byte[64 * 1024];
+			long received = 0;
+			int n;
+			while (received < fileSize && (n = in.read(buffer)) != -1) {
+				received += n;
+			}
+			if (received < fileSize) {
+				throw new IOException("Short read: " + received + " of " + fileSize);
+			}
+		}
+	}
+
+	// "FILENAME:<name> FILESIZE:<size>" datagram, then data datagrams until the size is reached
+	private static void fetchUdp(String fileName) throws IOException {
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(2000);
+			byte[] request = fileName.getBytes();
+			socket.send(new DatagramPacket(request, request.length, InetAddress.getByName(HOST),
+					Constants.Ports.SERVER_PORT));
+			byte[] buffer = new byte[64 * 1024];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			socket.receive(packet);
+			String header = new String(packet.getData(), 0, packet.getLength()).trim();
+			if (header.startsWith("ERROR")) {
+				throw new IOException(header);
+			}
+			long fileSize = 0;
+			for (String part : header.split("\\s+")) {
+				if (part.startsWith("FILESIZE:")) {
+					fileSize = Long.parseLong(part.substring("FILESIZE:".length()));
+				}
+			}
+			long received = 0;
+			try {
+				while (received < fileSize) {
+					packet.setLength(buffer.length);
+					socket.receive(packet);
+					received += packet.getLength();
+				}
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Lost datagrams: " + received + " of " + fileSize + " bytes", e);
+			}
+		}
+	}
+
+	private static int[] randomArray(int length) {
+		Random rand = new Random(42);
+		int[] arr = new int[length];
+		for (int i = 0; i < length; i++) {
+			arr[i] = rand.nextInt(BatchRpcClient.SORT_VAL_RANGE);
+		}
+		return arr;
+	}
+
+	private static String textRequest(RpcRequest request) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new TextCodec(InputStream.nullInputStream(), bytes).writeRequest(request);
+		return bytes.toString().trim();
+	}
+}
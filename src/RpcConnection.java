@@ -0,0 +1,155 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RpcConnection - a persistent, multiplexed connection to an RPC server
+ * <p>
+ * Every request is tagged with a request id (e.g. "REQUEST#<id>: add 3 5" in
+ * the text protocol) and the server answers with the same id, possibly out
+ * of order. A single reader thread matches each response back to its
+ * waiting caller, so many threads can share one socket.
+ * </p>
+ */
+public class RpcConnection implements Closeable {
+	private final Socket socket;
+	private final Codec codec;
+	private final Compression.Streams streams;
+
+	// requestId -> caller waiting for the response
+	private final ConcurrentHashMap<Integer, CompletableFuture<RpcResponse>> pending = new ConcurrentHashMap<>();
+	private final AtomicInteger requestIdGenerator = new AtomicInteger(1);
+	private volatile boolean closed = false;
+
+	public RpcConnection(String host, int port) throws IOException {
+		this(host, port, false);
+	}
+
+	/**
+	 * @param binary use {@link BinaryCodec} frames instead of text lines
+	 */
+	public RpcConnection(String host, int port, boolean binary) throws IOException {
+		this(host, port, binary, null);
+	}
+
+	/**
+	 * @param encodings encodings to offer in the {@link Compression} handshake, or null for none
+	 */
+	public RpcConnection(String host, int port, boolean binary, String encodings) throws IOException {
+		this.socket = new Socket(host, port);
+		this.socket.setTcpNoDelay(true);
+		this.streams = Compression.offer(socket.getInputStream(), socket.getOutputStream(), encodings);
+		this.codec = binary
+				? new BinaryCodec(streams.in(), streams.out())
+				: new TextCodec(streams.in(), streams.out());
+
+		Thread reader = new Thread(this::readResponses, "rpc-reader-" + socket.getLocalPort());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Send a request without waiting for the answer. Any request id already
+	 * on the request is replaced by a fresh one for this connection.
+	 */
+	public CompletableFuture<RpcResponse> send(RpcRequest request) {
+		int requestId = nextRequestId();
+		CompletableFuture<RpcResponse> future = new CompletableFuture<>();
+		pending.put(requestId, future);
+		if (closed) {
+			failPending(new IOException("Connection closed"));
+			return future;
+		}
+		try {
+			synchronized (codec) {
+				codec.writeRequest(request.withRequestId(requestId));
+			}
+		} catch (IOException e) {
+			pending.remove(requestId);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Send a request and block until its response arrives.
+	 */
+	public RpcResponse call(RpcRequest request) throws IOException {
+		try {
+			return send(request).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for response", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * The negotiated encoding and the bytes it saved so far.
+	 */
+	public Compression.Streams compression() {
+		return streams;
+	}
+
+	public boolean isOpen() {
+		return !closed && !socket.isClosed();
+	}
+
+	// Never hand out 0, which means "untagged"
+	private int nextRequestId() {
+		int requestId;
+		do {
+			requestId = requestIdGenerator.getAndIncrement();
+		} while (requestId == 0);
+		return requestId;
+	}
+
+	// Reader loop: response with id N -> complete the future registered for N
+	private void readResponses() {
+		try {
+			RpcResponse response;
+			while ((response = codec.readResponse()) != null) {
+				if (response.isPushedResult()) {
+					continue; // only AsyncRPCClient subscribes to pushes
+				}
+				CompletableFuture<RpcResponse> future = pending.remove(response.requestId());
+				if (future != null) {
+					future.complete(response);
+				} else {
+					System.err.println("[RpcConnection] Unmatched response: " + response.payload());
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				e.printStackTrace();
+			}
+		} finally {
+			closed = true;
+			failPending(new IOException("Connection closed by server"));
+		}
+	}
+
+	private void failPending(IOException cause) {
+		for (Integer requestId : pending.keySet()) {
+			CompletableFuture<RpcResponse> future = pending.remove(requestId);
+			if (future != null) {
+				future.completeExceptionally(cause);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		socket.close();
+		failPending(new IOException("Connection closed"));
+	}
+}
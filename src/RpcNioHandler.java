@@ -0,0 +1,242 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * RpcNioHandler - the RPC protocols on top of {@link NioServer}
+ * <p>
+ * Like {@link Codec#open}, the first byte of a connection picks the wire
+ * format: {@link BinaryCodec} frames after the 0xB7 magic, text lines otherwise.
+ *  - "REQUEST: <body>"      -> "RESPONSE: <result>", answered in arrival order
+ *  - "REQUEST#<id>: <body>" -> "RESPONSE#<id>: <result>", answered as soon as ready
+ * and the same for untagged and tagged binary frames. A {@link Compression}
+ * handshake (0xC5) is accepted and answered with "identity", since the
+ * compressed streams need a blocking connection; the client then carries on
+ * uncompressed.
+ * </p>
+ * <p>
+ * The method itself runs on the worker executor so a slow "foo" never stalls
+ * the I/O thread. The dispatcher maps a request to its response and may push
+ * further responses (e.g. results of watched jobs) through the connection's
+ * {@link Session}.
+ * </p>
+ */
+public class RpcNioHandler implements NioHandler {
+
+	public interface Dispatcher {
+		RpcResponse dispatch(RpcRequest request, Session session);
+
+		/**
+		 * Called once the response has been queued on the connection, so
+		 * anything pushed from here on goes out after it.
+		 */
+		default void replied(RpcRequest request, RpcResponse response, Session session) {
+		}
+	}
+
+	/**
+	 * One connection's protocol state: its codec, its chain of in-order
+	 * requests, and whatever the dispatcher attaches to it.
+	 */
+	public static final class Session {
+		private final NioConnection connection;
+		private final FrameInput input = new FrameInput();
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		// Null until the first byte has been seen
+		private Codec codec;
+		private boolean binary;
+		// Tail of this connection's chain of in-order requests
+		private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+		private volatile Object attachment;
+
+		private Session(NioConnection connection) {
+			this.connection = connection;
+		}
+
+		/**
+		 * Send a response that answers no request, e.g. a pushed job result. Safe from any thread.
+		 */
+		public void push(RpcResponse response) {
+			write(response);
+		}
+
+		public boolean isOpen() {
+			return connection.isOpen();
+		}
+
+		public Object attachment() {
+			return attachment;
+		}
+
+		public void attach(Object attachment) {
+			this.attachment = attachment;
+		}
+
+		private void write(RpcResponse response) {
+			// Encoding and queueing under one lock, so the bytes of two responses never interleave
+			synchronized (output) {
+				try {
+					codec.writeResponse(response);
+				} catch (IOException e) {
+					// Cannot happen with an in-memory stream
+					throw new IllegalStateException(e);
+				}
+				connection.write(ByteBuffer.wrap(output.toByteArray()));
+				output.reset();
+			}
+		}
+	}
+
+	private final Dispatcher dispatcher;
+	private final Executor workers;
+
+	public RpcNioHandler(Dispatcher dispatcher, Executor workers) {
+		this.dispatcher = dispatcher;
+		this.workers = workers;
+	}
+
+	@Override
+	public void onConnect(NioConnection connection) {
+		connection.attach(new Session(connection));
+	}
+
+	@Override
+	public void onRead(NioConnection connection, ByteBuffer data) {
+		Session session = (Session) connection.attachment();
+		if (session.codec == null && !selectCodec(session, data)) {
+			return;
+		}
+		while (connection.isOpen()) {
+			RpcRequest request;
+			try {
+				request = session.binary ? readFrame(session, data) : readLine(data);
+			} catch (IOException e) {
+				System.err.println("[RpcNioHandler] " + e.getMessage() + " from " + connection.remoteAddress());
+				connection.close();
+				return;
+			}
+			if (request == null) {
+				return; // incomplete, wait for more bytes
+			}
+			handle(session, request);
+		}
+	}
+
+	// Answer a compression handshake if there is one, then pick the codec from the next byte
+	private boolean selectCodec(Session session, ByteBuffer data) {
+		if (!data.hasRemaining()) {
+			return false;
+		}
+		if ((data.get(data.position()) & 0xFF) == Compression.HANDSHAKE) {
+			int end = indexOf(data, data.position(), '\n');
+			if (end == -1) {
+				return false;
+			}
+			data.position(end + 1);
+			session.connection.write(Compression.IDENTITY + "\n");
+			if (!data.hasRemaining()) {
+				return false;
+			}
+		}
+		session.binary = (data.get(data.position()) & 0xFF) == BinaryCodec.MAGIC;
+		session.codec = session.binary
+				? new BinaryCodec(session.input, session.output)
+				: new TextCodec(session.input, session.output);
+		return true;
+	}
+
+	// One whole frame, or null if it has not fully arrived yet
+	private static RpcRequest readFrame(Session session, ByteBuffer data) throws IOException {
+		if (data.remaining() < BinaryCodec.HEADER_SIZE) {
+			return null;
+		}
+		int length = data.getInt(data.position() + BinaryCodec.HEADER_SIZE - 4);
+		if (length < 0) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		if (data.remaining() < BinaryCodec.HEADER_SIZE + length) {
+			return null;
+		}
+		byte[] frame = new byte[BinaryCodec.HEADER_SIZE + length];
+		data.get(frame);
+		session.input.set(frame);
+		return session.codec.readRequest();
+	}
+
+	// One whole line, or null if its newline has not arrived yet
+	private static RpcRequest readLine(ByteBuffer data) {
+		int end = indexOf(data, data.position(), '\n');
+		if (end == -1) {
+			return null;
+		}
+		int lineEnd = end > data.position() && data.get(end - 1) == '\r' ? end - 1 : end;
+		byte[] bytes = new byte[lineEnd - data.position()];
+		data.get(bytes);
+		data.position(end + 1);
+		return TextCodec.parseRequest(new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	private void handle(Session session, RpcRequest request) {
+		if (request.isTagged()) {
+			workers.execute(() -> answer(session, request));
+		} else {
+			// Chain untagged requests so their responses keep arrival order
+			session.tail = session.tail.thenRunAsync(() -> answer(session, request), workers)
+					.exceptionally(e -> {
+						e.printStackTrace();
+						return null;
+					});
+		}
+	}
+
+	private void answer(Session session, RpcRequest request) {
+		RpcResponse response = dispatcher.dispatch(request, session);
+		session.write(response);
+		dispatcher.replied(request, response, session);
+	}
+
+	private static int indexOf(ByteBuffer data, int from, char c) {
+		for (int i = from; i < data.limit(); i++) {
+			if (data.get(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// The bytes of the frame being decoded, fed to the connection's BinaryCodec
+	private static final class FrameInput extends InputStream {
+		private byte[] bytes = new byte[0];
+		private int position;
+
+		void set(byte[] frame) {
+			bytes = frame;
+			position = 0;
+		}
+
+		@Override
+		public int read() {
+			return position < bytes.length ? bytes[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= bytes.length) {
+				return -1;
+			}
+			int n = Math.min(len, bytes.length - position);
+			System.arraycopy(bytes, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return bytes.length - position;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * RpcPipeline - pipelined, untagged calls on one connection
+ * <p>
+ * Requests are written back-to-back without waiting for answers; a burst
+ * written with {@link #send(List)} goes out in a single flush. The servers
+ * answer untagged requests in arrival order, so a single reader thread
+ * completes the callers' futures strictly first-in, first-out. A burst of
+ * N independent calls costs one round trip instead of N.
+ * </p>
+ * <p>
+ * Unlike {@link RpcConnection}, nothing is tagged: no request ids on the
+ * wire, and a slow call holds up the answers queued behind it.
+ * </p>
+ */
+public class RpcPipeline implements Closeable {
+	private final Socket socket;
+	private final Codec codec;
+
+	// Callers in the order their requests were written
+	private final ConcurrentLinkedQueue<CompletableFuture<RpcResponse>> pending = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param binary    use {@link BinaryCodec} frames instead of text lines
+	 * @param encodings encodings to offer in the {@link Compression} handshake, or null
+	 */
+	public RpcPipeline(String host, int port, boolean binary, String encodings) throws IOException {
+		this.socket = new Socket(host, port);
+		this.socket.setTcpNoDelay(true);
+		Compression.Streams streams = Compression.offer(socket.getInputStream(), socket.getOutputStream(), encodings);
+		this.codec = binary
+				? new BinaryCodec(streams.in(), streams.out())
+				: new TextCodec(streams.in(), streams.out());
+
+		Thread reader = new Thread(this::readResponses, "rpc-pipeline-reader-" + socket.getLocalPort());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public CompletableFuture<RpcResponse> send(RpcRequest request) {
+		return send(List.of(request)).get(0);
+	}
+
+	/**
+	 * Write all requests back-to-back without waiting for any answer.
+	 *
+	 * @return one future per request, in the same order
+	 */
+	public List<CompletableFuture<RpcResponse>> send(List<RpcRequest> requests) {
+		List<CompletableFuture<RpcResponse>> futures = new ArrayList<>(requests.size());
+		List<RpcRequest> untagged = new ArrayList<>(requests.size());
+		for (RpcRequest request : requests) {
+			futures.add(new CompletableFuture<>());
+			untagged.add(request.isTagged() ? request.withRequestId(0) : request);
+		}
+		// Queue order must match write order, so both happen under one lock
+		synchronized (codec) {
+			if (closed) {
+				IOException cause = new IOException("Pipeline closed");
+				futures.forEach(future -> future.completeExceptionally(cause));
+				return futures;
+			}
+			pending.addAll(futures);
+			try {
+				codec.writeRequests(untagged);
+			} catch (IOException e) {
+				// The stream is now out of step with the queue; nothing after this can be matched
+				closed = true;
+				closeSocket();
+			}
+		}
+		return futures;
+	}
+
+	/**
+	 * Send all requests as one burst and wait for all the answers.
+	 *
+	 * @return the responses, in request order
+	 */
+	public List<RpcResponse> call(List<RpcRequest> requests) throws IOException {
+		List<RpcResponse> responses = new ArrayList<>(requests.size());
+		for (CompletableFuture<RpcResponse> future : send(requests)) {
+			try {
+				responses.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for response", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+		return responses;
+	}
+
+	public boolean isOpen() {
+		return !closed && !socket.isClosed();
+	}
+
+	// Reader loop: the n-th response answers the n-th request written
+	private void readResponses() {
+		try {
+			RpcResponse response;
+			while ((response = codec.readResponse()) != null) {
+				if (response.isPushedResult()) {
+					continue; // only AsyncRPCClient subscribes to pushes
+				}
+				CompletableFuture<RpcResponse> future = pending.poll();
+				if (future != null) {
+					future.complete(response);
+				} else {
+					System.err.println("[RpcPipeline] Response without a request: " + response.payload());
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				e.printStackTrace();
+			}
+		} finally {
+			closed = true;
+			failPending(new IOException("Connection closed by server"));
+		}
+	}
+
+	private void failPending(IOException cause) {
+		CompletableFuture<RpcResponse> future;
+		while ((future = pending.poll()) != null) {
+			future.completeExceptionally(cause);
+		}
+	}
+
+	private void closeSocket() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		socket.close();
+		failPending(new IOException("Connection closed"));
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * RpcRequest - one decoded RPC call, independent of the wire format
+ * <p>
+ * Every method in this project takes only int arguments ("foo 100000",
+ * "add 3 5", "sort 5 9 1", "getResult 1583"), so the arguments are kept as a
+ * plain int[]. A requestId of 0 means the call is untagged and must be
+ * answered in order; any other id may be answered out of order.
+ * </p>
+ * <p>
+ * A request may carry a timeout in milliseconds, counted from when the
+ * server receives it; past that the server stops working on it and answers
+ * "ERROR - Deadline exceeded" (see {@link CancellationToken}).
+ * </p>
+ */
+public final class RpcRequest {
+	private final int requestId;
+	private final String method;
+	// Resolved once here, so servers dispatch on an int (see MethodRegistry)
+	private final int methodId;
+	private final int[] args;
+	// 0 = no deadline
+	private final int timeoutMillis;
+
+	/**
+	 * @param method null if the request could not be framed at all
+	 * @param args   null if the arguments could not be parsed
+	 */
+	public RpcRequest(int requestId, String method, int[] args) {
+		this(requestId, method, MethodRegistry.idOf(method), args, 0);
+	}
+
+	/**
+	 * For decoders that read the method id off the wire.
+	 */
+	public RpcRequest(int requestId, int methodId, int[] args) {
+		this(requestId, MethodRegistry.nameOf(methodId), methodId, args, 0);
+	}
+
+	private RpcRequest(int requestId, String method, int methodId, int[] args, int timeoutMillis) {
+		this.requestId = requestId;
+		this.method = method;
+		this.methodId = methodId;
+		this.args = args;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public static RpcRequest of(String method, int... args) {
+		return new RpcRequest(0, method, args);
+	}
+
+	public RpcRequest withRequestId(int newRequestId) {
+		return new RpcRequest(newRequestId, method, methodId, args, timeoutMillis);
+	}
+
+	/**
+	 * @param newTimeoutMillis how long the server may work on it, 0 for no limit
+	 */
+	public RpcRequest withTimeout(int newTimeoutMillis) {
+		return new RpcRequest(requestId, method, methodId, args, Math.max(0, newTimeoutMillis));
+	}
+
+	public int requestId() {
+		return requestId;
+	}
+
+	public boolean isTagged() {
+		return requestId != 0;
+	}
+
+	public String method() {
+		return method;
+	}
+
+	/**
+	 * @return the method's id, or {@link MethodRegistry#UNKNOWN}
+	 */
+	public int methodId() {
+		return methodId;
+	}
+
+	public int[] args() {
+		return args;
+	}
+
+	/**
+	 * @return the timeout in milliseconds, or 0 if there is none
+	 */
+	public int timeoutMillis() {
+		return timeoutMillis;
+	}
+}
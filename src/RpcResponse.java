@@ -0,0 +1,81 @@
+import java.util.Arrays;
+
+/**
+ * RpcResponse - one RPC result, independent of the wire format
+ * <p>
+ * A result is either text ("OK", "NOT_READY", "ERROR - ...") or ints
+ * (the sum of "add", the array from "sort"). Single ints carry both forms so
+ * the text protocol can still print "8" rather than "[8]".
+ * </p>
+ * <p>
+ * A pushed result is not an answer to a request: it is sent unprompted by
+ * AsyncRPCServer when a watched background job finishes, and its requestId
+ * is the job's rpcId.
+ * </p>
+ */
+public final class RpcResponse {
+	private final int requestId;
+	private final String text;
+	private final int[] values;
+	private final boolean pushedResult;
+
+	private RpcResponse(int requestId, String text, int[] values, boolean pushedResult) {
+		this.requestId = requestId;
+		this.text = text;
+		this.values = values;
+		this.pushedResult = pushedResult;
+	}
+
+	private RpcResponse(int requestId, String text, int[] values) {
+		this(requestId, text, values, false);
+	}
+
+	public static RpcResponse ofPushedResult(int rpcId, String result) {
+		return new RpcResponse(rpcId, result, null, true);
+	}
+
+	public static RpcResponse ofText(int requestId, String text) {
+		return new RpcResponse(requestId, text, null);
+	}
+
+	public static RpcResponse ofValue(int requestId, int value) {
+		return new RpcResponse(requestId, String.valueOf(value), new int[]{value});
+	}
+
+	public static RpcResponse ofValues(int requestId, int[] values) {
+		return new RpcResponse(requestId, null, values);
+	}
+
+	public int requestId() {
+		return requestId;
+	}
+
+	/**
+	 * @return the text form, or null for an int array result
+	 */
+	public String text() {
+		return text;
+	}
+
+	/**
+	 * @return the int result(s), or null for a text-only result
+	 */
+	public int[] values() {
+		return values;
+	}
+
+	public boolean isPushedResult() {
+		return pushedResult;
+	}
+
+	public boolean isError() {
+		return text != null && text.startsWith("ERROR");
+	}
+
+	/**
+	 * The result as the text protocol prints it, e.g. "OK", "8" or "[1, 2, 3]".
+	 */
+	public String payload() {
+		return text != null ? text : Arrays.toString(values);
+	}
+}
@@ -0,0 +1,299 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * SegmentedDownloader - parallel ranged TCP downloads with resume
+ * <p>
+ * A "GET <name> 0 0" probe (see {@link FileTransfer}) reports the file's
+ * size and name. The file is then preallocated and split into up to N
+ * segments of at least MIN_SEGMENT bytes, each fetched over its own
+ * connection and written at its offset with positional FileChannel writes.
+ * </p>
+ * <p>
+ * Progress is kept next to the file in "<requested name>.part":
+ * "FILENAME:x FILESIZE:y", then one "start end done" line per segment. A
+ * failed segment is retried from its last written offset, and a later
+ * download of the same file (same size) picks every segment up where it
+ * stopped. The .part file is removed once the download is complete.
+ * </p>
+ */
+public class SegmentedDownloader {
+	static final long MIN_SEGMENT = 64 * 1024;
+	private static final int READ_BUFFER = 64 * 1024;
+	// Persist a segment's progress after this many new bytes
+	private static final long PROGRESS_EVERY = 1024 * 1024;
+	private static final int ATTEMPTS = 3;
+
+	private final String host;
+	private final int port;
+	private final int segments;
+	private long resumedBytes;
+
+	public SegmentedDownloader(String host, int port, int segments) {
+		this.host = host;
+		this.port = port;
+		this.segments = Math.max(1, segments);
+	}
+
+	/**
+	 * Download fileName into folder under the name the server reports.
+	 *
+	 * @return the saved file
+	 */
+	public File download(String fileName, String folder) throws IOException {
+		long fileSize;
+		String renamedFile;
+		try (Socket socket = new Socket(host, port)) {
+			Header header = request(socket, fileName, 0, 0);
+			fileSize = header.fileSize;
+			renamedFile = header.fileName;
+		}
+
+		File progressFile = new File(folder, fileName + ".part");
+		Progress progress = Progress.load(progressFile, fileSize);
+		if (progress == null || !new File(folder, progress.fileName).isFile()) {
+			progress = new Progress(progressFile, renamedFile, fileSize, split(fileSize));
+			ContentStore.detach(new File(folder, renamedFile));
+		} else {
+			resumedBytes = progress.completedBytes();
+		}
+		File outFile = new File(folder, progress.fileName);
+
+		ExecutorService pool = Executors.newFixedThreadPool(progress.count());
+		try (RandomAccessFile out = new RandomAccessFile(outFile, "rw")) {
+			out.setLength(fileSize);
+			FileChannel channel = out.getChannel();
+			progress.save();
+			List<Future<?>> parts = new ArrayList<>();
+			for (int i = 0; i < progress.count(); i++) {
+				int segment = i;
+				Progress state = progress;
+				parts.add(pool.submit(() -> {
+					fetchSegment(fileName, state, segment, channel);
+					return null;
+				}));
+			}
+			IOException failure = null;
+			for (Future<?> part : parts) {
+				try {
+					part.get();
+				} catch (ExecutionException e) {
+					failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+							: new IOException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					failure = new IOException("Interrupted", e);
+				}
+			}
+			if (failure != null) {
+				progress.save();
+				throw new IOException("Download of " + fileName + " stopped at " + progress.completedBytes()
+						+ " of " + fileSize + " bytes, run again to resume: " + failure.getMessage(), failure);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		Files.deleteIfExists(progressFile.toPath());
+		return outFile;
+	}
+
+	/**
+	 * Bytes that were already on disk from an earlier, interrupted download.
+	 */
+	public long resumedBytes() {
+		return resumedBytes;
+	}
+
+	// Equal segments of at least MIN_SEGMENT bytes: {start0, end0, start1, end1, ...}
+	private long[] split(long fileSize) {
+		int count = (int) Math.max(1, Math.min(segments, fileSize / MIN_SEGMENT));
+		long[] bounds = new long[2 * count];
+		for (int i = 0; i < count; i++) {
+			bounds[2 * i] = fileSize * i / count;
+			bounds[2 * i + 1] = fileSize * (i + 1) / count;
+		}
+		return bounds;
+	}
+
+	private void fetchSegment(String fileName, Progress progress, int segment, FileChannel out) throws IOException {
+		IOException last = null;
+		for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+			long position = progress.done(segment);
+			long end = progress.end(segment);
+			if (position >= end) {
+				return;
+			}
+			try (Socket socket = new Socket(host, port)) {
+				Header header = request(socket, fileName, position, end - position);
+				if (header.fileSize != progress.fileSize || header.offset != position
+						|| header.length != end - position) {
+					throw new IOException("File changed on the server: " + header.fileSize + " bytes, range "
+							+ header.offset + " " + header.length);
+				}
+				InputStream in = socket.getInputStream();
+				byte[] buffer = new byte[READ_BUFFER];
+				long unsaved = 0;
+				while (position < end) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+					if (read == -1) {
+						throw new IOException("Connection closed at offset " + position);
+					}
+					ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+					while (data.hasRemaining()) {
+						out.write(data, position + data.position());
+					}
+					position += read;
+					progress.advance(segment, position);
+					unsaved += read;
+					if (unsaved >= PROGRESS_EVERY) {
+						progress.save();
+						unsaved = 0;
+					}
+				}
+				progress.save();
+				return;
+			} catch (IOException e) {
+				last = e;
+				progress.save();
+				System.err.println("[SegmentedDownloader] Segment " + segment + " of " + fileName + " failed at "
+						+ progress.done(segment) + ": " + e.getMessage());
+			}
+		}
+		throw last;
+	}
+
+	// Send "GET <name> <offset> <length>" and read the FILENAME/FILESIZE/RANGE header
+	private static Header request(Socket socket, String fileName, long offset, long length) throws IOException {
+		PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+		writer.println(FileTransfer.RANGE_PREFIX + fileName + " " + offset + " " + length);
+		InputStream in = socket.getInputStream();
+		Header header = new Header();
+		for (int i = 0; i < 3; i++) {
+			String line = FileTransfer.readHeaderLine(in);
+			if (line == null || line.startsWith("ERROR")) {
+				throw new IOException(line == null ? "Connection closed before the header" : line);
+			}
+			String value = line.substring(line.indexOf(':') + 1);
+			if (line.startsWith("FILENAME:")) {
+				header.fileName = value;
+			} else if (line.startsWith("FILESIZE:")) {
+				header.fileSize = Long.parseLong(value);
+			} else if (line.startsWith("RANGE:")) {
+				String[] range = value.split(" ");
+				header.offset = Long.parseLong(range[0]);
+				header.length = Long.parseLong(range[1]);
+			}
+		}
+		return header;
+	}
+
+	private static final class Header {
+		String fileName;
+		long fileSize;
+		long offset;
+		long length;
+	}
+
+	/**
+	 * Segment bounds and how far each one got, mirrored in the .part file.
+	 */
+	private static final class Progress {
+		final File file;
+		final String fileName;
+		final long fileSize;
+		// {start, end, done} per segment
+		private final long[] segments;
+
+		Progress(File file, String fileName, long fileSize, long[] bounds) {
+			this.file = file;
+			this.fileName = fileName;
+			this.fileSize = fileSize;
+			this.segments = new long[bounds.length / 2 * 3];
+			for (int i = 0; i < bounds.length / 2; i++) {
+				segments[3 * i] = bounds[2 * i];
+				segments[3 * i + 1] = bounds[2 * i + 1];
+				segments[3 * i + 2] = bounds[2 * i];
+			}
+		}
+
+		/**
+		 * @return the saved progress, or null if there is none for a file of this size
+		 */
+		static Progress load(File file, long fileSize) {
+			if (!file.isFile()) {
+				return null;
+			}
+			try {
+				List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+				String[] header = lines.get(0).split(" ");
+				String fileName = header[0].substring("FILENAME:".length());
+				if (Long.parseLong(header[1].substring("FILESIZE:".length())) != fileSize) {
+					return null; // the file changed, start over
+				}
+				Progress progress = new Progress(file, fileName, fileSize, new long[2 * (lines.size() - 1)]);
+				for (int i = 1; i < lines.size(); i++) {
+					String[] parts = lines.get(i).split(" ");
+					for (int j = 0; j < 3; j++) {
+						progress.segments[3 * (i - 1) + j] = Long.parseLong(parts[j]);
+					}
+				}
+				return progress;
+			} catch (IOException | RuntimeException e) {
+				System.err.println("[SegmentedDownloader] Ignoring unreadable " + file + ": " + e.getMessage());
+				return null;
+			}
+		}
+
+		int count() {
+			return segments.length / 3;
+		}
+
+		long end(int segment) {
+			return segments[3 * segment + 1];
+		}
+
+		synchronized long done(int segment) {
+			return segments[3 * segment + 2];
+		}
+
+		synchronized void advance(int segment, long done) {
+			segments[3 * segment + 2] = done;
+		}
+
+		synchronized long completedBytes() {
+			long total = 0;
+			for (int i = 0; i < count(); i++) {
+				total += segments[3 * i + 2] - segments[3 * i];
+			}
+			return total;
+		}
+
+		synchronized void save() throws IOException {
+			StringBuilder text = new StringBuilder("FILENAME:" + fileName + " FILESIZE:" + fileSize + "\n");
+			for (int i = 0; i < count(); i++) {
+				text.append(segments[3 * i]).append(' ').append(segments[3 * i + 1]).append(' ')
+						.append(segments[3 * i + 2]).append('\n');
+			}
+			// Replace in one step, so a kill mid-write never leaves a torn .part file
+			Path temp = new File(file.getPath() + ".tmp").toPath();
+			Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+}
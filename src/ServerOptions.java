@@ -0,0 +1,52 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ServerOptions - minimal command-line parsing shared by the servers
+ * <p>
+ * Accepts "--flag" and "--key=value" arguments, e.g.
+ *  java SyncRPCServer --nio --io-threads=4
+ * Anything that does not start with "--" is ignored.
+ * </p>
+ */
+public class ServerOptions {
+	private final Map<String, String> values = new HashMap<>();
+
+	public static ServerOptions parse(String[] args) {
+		ServerOptions options = new ServerOptions();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				continue;
+			}
+			String option = arg.substring(2);
+			int eq = option.indexOf('=');
+			if (eq == -1) {
+				options.values.put(option, "true");
+			} else {
+				options.values.put(option.substring(0, eq), option.substring(eq + 1));
+			}
+		}
+		return options;
+	}
+
+	public boolean has(String key) {
+		return values.containsKey(key);
+	}
+
+	public String get(String key, String defaultValue) {
+		return values.getOrDefault(key, defaultValue);
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = values.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			System.err.println("[Options] Invalid number for --" + key + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * SortBenchmark - compares the SortEngine strategies on the arrays our clients send
+ * <p>
+ * Shapes: random values in [0, BatchRpcClient.SORT_VAL_RANGE) at the smallest,
+ * a middle and the largest client length, plus full-range random, already
+ * sorted and reversed arrays at SORT_MAX_LEN. Each strategy sorts a fresh
+ * copy of the same input; "auto" is what the servers actually run.
+ * </p>
+ * Usage: java SortBenchmark [rounds]
+ */
+public class SortBenchmark {
+
+	public static void main(String[] args) {
+		int rounds = 200;
+		if (args.length != 0) {
+			rounds = Integer.parseInt(args[0]);
+		}
+		Random rand = new Random(42);
+		int mid = (BatchRpcClient.SORT_MIN_LEN + BatchRpcClient.SORT_MAX_LEN) / 2;
+		int[][] shapes = {
+				bounded(rand, BatchRpcClient.SORT_MIN_LEN),
+				bounded(rand, mid),
+				bounded(rand, BatchRpcClient.SORT_MAX_LEN),
+				fullRange(rand, BatchRpcClient.SORT_MAX_LEN),
+				sorted(bounded(rand, BatchRpcClient.SORT_MAX_LEN), false),
+				sorted(bounded(rand, BatchRpcClient.SORT_MAX_LEN), true),
+		};
+		String[] names = {"bounded-min", "bounded-mid", "bounded-max", "full-range", "sorted", "reversed"};
+
+		// Warm up the JIT on every strategy before measuring
+		for (int[] shape : shapes) {
+			for (SortEngine.Strategy strategy : SortEngine.Strategy.values()) {
+				run(shape, strategy, rounds / 4 + 1);
+			}
+			run(shape, null, rounds / 4 + 1);
+		}
+
+		System.out.println("[SortBenchmark] " + rounds + " sorts per strategy, "
+				+ Runtime.getRuntime().availableProcessors() + " cores");
+		for (int s = 0; s < shapes.length; s++) {
+			int[] shape = shapes[s];
+			for (SortEngine.Strategy strategy : SortEngine.Strategy.values()) {
+				report(names[s], shape.length, strategy.name().toLowerCase(), run(shape, strategy, rounds), rounds);
+			}
+			report(names[s], shape.length, "auto=" + SortEngine.choose(shape).name().toLowerCase(),
+					run(shape, null, rounds), rounds);
+		}
+	}
+
+	// Returns the total nanos spent sorting (copies excluded); null strategy = SortEngine.sort
+	private static long run(int[] input, SortEngine.Strategy strategy, int rounds) {
+		long total = 0;
+		int[] reference = null;
+		for (int i = 0; i < rounds; i++) {
+			int[] arr = input.clone();
+			long start = System.nanoTime();
+			if (strategy == null) {
+				SortEngine.sort(arr);
+			} else {
+				SortEngine.sort(arr, strategy);
+			}
+			total += System.nanoTime() - start;
+			if (reference == null) {
+				reference = input.clone();
+				Arrays.sort(reference);
+				if (!Arrays.equals(reference, arr)) {
+					throw new IllegalStateException("Strategy " + strategy + " sorted incorrectly");
+				}
+			}
+		}
+		return total;
+	}
+
+	private static void report(String shape, int length, String strategy, long nanos, int rounds) {
+		System.out.printf("[SortBenchmark] %-12s n=%-6d %-16s %,10.1f us/sort %,10.0f sorts/sec%n",
+				shape, length, strategy, nanos / 1000.0 / rounds, rounds / (nanos / 1_000_000_000.0));
+	}
+
+	private static int[] bounded(Random rand, int length) {
+		int[] arr = new int[length];
+		for (int i = 0; i < length; i++) {
+			arr[i] = rand.nextInt(BatchRpcClient.SORT_VAL_RANGE);
+		}
+		return arr;
+	}
+
+	private static int[] fullRange(Random rand, int length) {
+		int[] arr = new int[length];
+		for (int i = 0; i < length; i++) {
+			arr[i] = rand.nextInt();
+		}
+		return arr;
+	}
+
+	private static int[] sorted(int[] arr, boolean reversed) {
+		Arrays.sort(arr);
+		if (reversed) {
+			for (int i = 0, j = arr.length - 1; i < j; i++, j--) {
+				int tmp = arr[i];
+				arr[i] = arr[j];
+				arr[j] = tmp;
+			}
+		}
+		return arr;
+	}
+}
@@ -0,0 +1,143 @@
+import java.util.Arrays;
+
+/**
+ * SortEngine - int[] sorting shared by the RPC servers
+ * <p>
+ * Strategies:
+ *  - QUICKSORT : Arrays.sort, the JDK's dual-pivot quicksort
+ *  - PARALLEL  : Arrays.parallelSort, merges sorted chunks on the common ForkJoinPool
+ *  - RADIX     : LSD radix sort, 8 bits per pass over (value - min), so a range
+ *                like BatchRpcClient.SORT_VAL_RANGE (100,000 ~ 17 bits) takes 3 passes
+ * </p>
+ * <p>
+ * {@link #sort(int[])} picks one from the array length, value range and
+ * order: small, wide-range or (nearly) presorted arrays go to QUICKSORT,
+ * whose run detection makes them O(n); other arrays with a narrow range go
+ * to RADIX, and very large wide-range arrays to PARALLEL when there is more
+ * than one core. SortBenchmark measures the choice against each strategy.
+ * </p>
+ */
+public final class SortEngine {
+	public enum Strategy {QUICKSORT, PARALLEL, RADIX}
+
+	// Below this, quicksort beats the fixed cost of radix's counting passes
+	static final int RADIX_MIN_LENGTH = 128;
+	// Radix stays ahead of quicksort up to 3 passes (24-bit ranges)
+	static final int RADIX_MAX_BITS = 24;
+	// Fewer than n / PRESORTED_RATIO out-of-order pairs (either direction) counts as presorted
+	static final int PRESORTED_RATIO = 64;
+	// Below this, parallelSort only adds fork/join overhead
+	static final int PARALLEL_MIN_LENGTH = 1 << 16;
+
+	private static final int RADIX_BITS = 8;
+	private static final int RADIX_BUCKETS = 1 << RADIX_BITS;
+	private static final int RADIX_MASK = RADIX_BUCKETS - 1;
+
+	private SortEngine() {
+	}
+
+	/**
+	 * Sort in place with the strategy {@link #choose(int[])} picks.
+	 */
+	public static void sort(int[] arr) {
+		sort(arr, choose(arr));
+	}
+
+	public static void sort(int[] arr, Strategy strategy) {
+		switch (strategy) {
+			case PARALLEL:
+				Arrays.parallelSort(arr);
+				break;
+			case RADIX:
+				radixSort(arr);
+				break;
+			default:
+				Arrays.sort(arr);
+		}
+	}
+
+	public static Strategy choose(int[] arr) {
+		int n = arr.length;
+		if (n < RADIX_MIN_LENGTH) {
+			return Strategy.QUICKSORT;
+		}
+		// One pass for both the value range and how far from sorted the array is
+		int min = arr[0], max = arr[0];
+		int descents = 0, ascents = 0;
+		for (int i = 1; i < n; i++) {
+			int v = arr[i];
+			if (v < arr[i - 1]) {
+				descents++;
+			} else if (v > arr[i - 1]) {
+				ascents++;
+			}
+			if (v < min) {
+				min = v;
+			} else if (v > max) {
+				max = v;
+			}
+		}
+		if (descents <= n / PRESORTED_RATIO || ascents <= n / PRESORTED_RATIO) {
+			return Strategy.QUICKSORT;
+		}
+		if (64 - Long.numberOfLeadingZeros((long) max - min) <= RADIX_MAX_BITS) {
+			return Strategy.RADIX;
+		}
+		if (n >= PARALLEL_MIN_LENGTH && Runtime.getRuntime().availableProcessors() > 1) {
+			return Strategy.PARALLEL;
+		}
+		return Strategy.QUICKSORT;
+	}
+
+	/**
+	 * LSD radix sort on (value - min), so negative values and offset ranges
+	 * need no special casing. Stable, O(n * passes) with one scratch array.
+	 */
+	static void radixSort(int[] arr) {
+		int n = arr.length;
+		if (n < 2) {
+			return;
+		}
+		int min = arr[0], max = arr[0];
+		for (int v : arr) {
+			if (v < min) {
+				min = v;
+			} else if (v > max) {
+				max = v;
+			}
+		}
+		long range = (long) max - min;
+		if (range == 0) {
+			return;
+		}
+		int bits = 64 - Long.numberOfLeadingZeros(range);
+
+		int[] src = arr;
+		int[] dst = new int[n];
+		int[] counts = new int[RADIX_BUCKETS];
+		for (int shift = 0; shift < bits; shift += RADIX_BITS) {
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; i++) {
+				counts[(int) (((long) src[i] - min) >>> shift) & RADIX_MASK]++;
+			}
+			// Counts -> starting offsets
+			int offset = 0;
+			for (int b = 0; b < RADIX_BUCKETS; b++) {
+				int count = counts[b];
+				counts[b] = offset;
+				offset += count;
+			}
+			for (int i = 0; i < n; i++) {
+				int v = src[i];
+				dst[counts[(int) (((long) v - min) >>> shift) & RADIX_MASK]++] = v;
+			}
+			int[] tmp = src;
+			src = dst;
+			dst = tmp;
+		}
+		// After an odd number of passes the result is in the scratch array
+		if (src != arr) {
+			System.arraycopy(src, 0, arr, 0, n);
+		}
+	}
+}
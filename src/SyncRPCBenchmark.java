@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SyncRPCBenchmark - compares calls/sec of connect-per-call, pooled
+ * connections and one persistent multiplexed connection, using cheap "add"
+ * calls so connection setup dominates. Connect-per-call is a pool that
+ * keeps no idle connections.
+ * <p>
+ * Usage: java SyncRPCBenchmark [callsPerThread] [threads]
+ * (SyncRPCServer must be running.)
+ * </p>
+ */
+public class SyncRPCBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int callsPerThread = 2000, threads = 4;
+		if (args.length != 0) {
+			callsPerThread = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			threads = Integer.parseInt(args[1]);
+		}
+		String host = Constants.IP.CLIENT_IP;
+		int port = Constants.Ports.RPC_PORT;
+
+		try (ConnectionPool noIdle = new ConnectionPool(0, 0, threads, 5000, 60000);
+		     SyncRPCClient perCall = new SyncRPCClient(host, port, noIdle);
+		     SyncRPCClient pooled = new SyncRPCClient(host, port);
+		     SyncRPCClient persistent = new SyncRPCClient(host, port, true)) {
+			// Warm up all paths (JIT, server threads)
+			run(perCall, callsPerThread / 10 + 1, threads);
+			run(pooled, callsPerThread / 10 + 1, threads);
+			run(persistent, callsPerThread / 10 + 1, threads);
+
+			double perCallRate = run(perCall, callsPerThread, threads);
+			double pooledRate = run(pooled, callsPerThread, threads);
+			double persistentRate = run(persistent, callsPerThread, threads);
+
+			System.out.println("[Benchmark] " + threads + " threads x " + callsPerThread + " add() calls");
+			System.out.printf("[Benchmark] connect-per-call : %,.0f calls/sec%n", perCallRate);
+			System.out.printf("[Benchmark] pooled           : %,.0f calls/sec (%.2fx)%n", pooledRate,
+					pooledRate / perCallRate);
+			System.out.printf("[Benchmark] persistent mux   : %,.0f calls/sec (%.2fx)%n", persistentRate,
+					persistentRate / perCallRate);
+			System.out.println(ConnectionPool.shared().stats());
+		}
+	}
+
+	// Returns calls/sec for all threads hammering the same client
+	private static double run(SyncRPCClient client, int callsPerThread, int threads) throws InterruptedException {
+		List<Thread> workers = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			int base = t;
+			Thread worker = new Thread(() -> {
+				for (int i = 0; i < callsPerThread; i++) {
+					try {
+						RpcResponse response = client.call(RpcRequest.of("add", base, i));
+						if (response.values() == null || response.values()[0] != base + i) {
+							System.err.println("[Benchmark] Wrong answer: " + response.payload());
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+						return;
+					}
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		return (long) callsPerThread * threads / (elapsed / 1_000_000_000.0);
+	}
+}
@@ -1,111 +1,218 @@
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.stream.IntStream;
 
-public class SyncRPCClient {
+public class SyncRPCClient implements Closeable {
 	private final String serverHost;
 	private final int serverPort;
+	// Speak BinaryCodec frames instead of text lines
+	private final boolean binary;
+	// Encodings offered in the compression handshake, or null
+	private final String encodings;
+	// Persistent multiplexed connection, or null to borrow from the pool per call
+	private final RpcConnection connection;
+	private final ConnectionPool pool;
+	// Opened by the first pipelined burst
+	private RpcPipeline pipeline;
+	// Sent with every call; the server gives up after this many ms, 0 = never
+	private int timeoutMillis;
 
 	public SyncRPCClient(String serverHost, int serverPort) {
+		this(serverHost, serverPort, ConnectionPool.shared());
+	}
+
+	/**
+	 * @param pool where calls borrow their connection, e.g. one with maxIdle 0 to connect per call
+	 */
+	public SyncRPCClient(String serverHost, int serverPort, ConnectionPool pool) {
+		this.serverHost = serverHost;
+		this.serverPort = serverPort;
+		this.binary = false;
+		this.encodings = null;
+		this.connection = null;
+		this.pool = pool;
+	}
+
+	/**
+	 * @param persistent if true, all calls share one long-lived connection
+	 *                   instead of borrowing a pooled one per call
+	 */
+	public SyncRPCClient(String serverHost, int serverPort, boolean persistent) throws IOException {
+		this(serverHost, serverPort, persistent, false);
+	}
+
+	/**
+	 * @param binary if true, use the binary frame protocol instead of text lines
+	 */
+	public SyncRPCClient(String serverHost, int serverPort, boolean persistent, boolean binary) throws IOException {
+		this(serverHost, serverPort, persistent, binary, null);
+	}
+
+	/**
+	 * @param encodings compress the connection with one of these, e.g. "lz,deflate-6", or null
+	 */
+	public SyncRPCClient(String serverHost, int serverPort, boolean persistent, boolean binary, String encodings)
+			throws IOException {
 		this.serverHost = serverHost;
 		this.serverPort = serverPort;
+		this.binary = binary;
+		this.encodings = encodings;
+		this.connection = persistent ? new RpcConnection(serverHost, serverPort, binary, encodings) : null;
+		this.pool = ConnectionPool.shared();
 	}
 
 	// Simulate a synchronous remote call to foo(iterations)
 	public void handleFoo(int iterations) throws IOException {
-		String request = "REQUEST: foo " + iterations;
-		String response = sendRequest(request);
+		RpcResponse response = call(RpcRequest.of("foo", iterations));
 		// For foo, we expect "RESPONSE: OK"
-		System.out.println("[Client] foo(" + iterations + ") => " + response);
+		System.out.println("[Client] foo(" + iterations + ") => " + response.payload());
 	}
 
 	// Synchronous remote call to add(i, j) => returns sum
 	public int handleAdd(int i, int j) throws IOException {
-		String request = "REQUEST: add " + i + " " + j;
-		String response = sendRequest(request);
-		System.out.println("[Client] add(" + i + ", " + j + ") => " + response);
-		// parse int
-		return Integer.parseInt(response);
+		RpcResponse response = call(RpcRequest.of("add", i, j));
+		System.out.println("[Client] add(" + i + ", " + j + ") => " + response.payload());
+		if (response.values() == null || response.values().length != 1) {
+			throw new IOException("Invalid response: " + response.payload());
+		}
+		return response.values()[0];
 	}
 
 	// Synchronous remote call to sort(array) => returns sorted array
 	public int[] handleSort(int[] array) throws IOException {
-		StringBuilder sb = new StringBuilder("REQUEST: sort");
-		for (int val : array) {
-			sb.append(" ").append(val);
-		}
-		String request = sb.toString();
-
-		String response = sendRequest(request);
-		System.out.println("[Client] sort(" + Arrays.toString(array) + ") => " + response);
-
-		// parse something like "[1, 2, 3, 5, 9]"
-		// quick hack: strip brackets, split by comma
-		response = response.replace("[", "").replace("]", "");
-		String[] parts = response.split(",");
-		int[] sorted = new int[parts.length];
-		for (int i = 0; i < parts.length; i++) {
-			sorted[i] = Integer.parseInt(parts[i].trim());
+		RpcResponse response = call(RpcRequest.of("sort", array));
+		System.out.println("[Client] sort(" + Arrays.toString(array) + ") => " + response.payload());
+		if (response.values() == null) {
+			throw new IOException("Invalid response: " + response.payload());
 		}
-		return sorted;
+		return response.values();
 	}
 
 	/**
 	 * Helper method that:
-	 * 1) Opens a socket
-	 * 2) Sends the request line
-	 * 3) Reads the "RESPONSE: ..." line
-	 * 4) Returns the text after "RESPONSE: "
+	 * 1) Borrows a pooled connection (or uses the persistent one)
+	 * 2) Sends the request, e.g. add(3, 5)
+	 * 3) Reads and decodes the response, and gives the connection back
+	 */
+	RpcResponse call(RpcRequest request) throws IOException {
+		if (timeoutMillis > 0) {
+			request = request.withTimeout(timeoutMillis);
+		}
+		if (connection != null) {
+			return connection.call(request);
+		}
+		// foo, add and sort have no side effects, so a stale connection may be retried
+		return pool.call(new ConnectionPool.Key(serverHost, serverPort, binary, encodings), request, true);
+	}
+
+	/**
+	 * @param timeoutMillis deadline for each following call, counted from when the
+	 *                      server receives it; 0 for none
 	 */
-	private String sendRequest(String request) throws IOException {
-		try (Socket socket = new Socket(serverHost, serverPort);
-		     PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-		     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-			out.println(request);
-			String line = in.readLine();
-			if (line == null) {
-				throw new IOException("No response from server");
+	public void setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Send all requests back-to-back on one connection and wait for all the
+	 * answers: one round trip for the burst instead of one per call.
+	 *
+	 * @return the responses, in request order
+	 */
+	public List<RpcResponse> callPipelined(List<RpcRequest> requests) throws IOException {
+		RpcPipeline current;
+		synchronized (this) {
+			if (pipeline == null || !pipeline.isOpen()) {
+				pipeline = new RpcPipeline(serverHost, serverPort, binary, encodings);
+			}
+			current = pipeline;
+		}
+		if (timeoutMillis > 0) {
+			requests = requests.stream().map(request -> request.withTimeout(timeoutMillis)).toList();
+		}
+		return current.call(requests);
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (pipeline != null) {
+				pipeline.close();
 			}
-			if (!line.startsWith("RESPONSE:")) {
-				throw new IOException("Invalid response: " + line);
+		}
+		if (connection != null) {
+			if (!connection.compression().encoding().isIdentity()) {
+				System.out.println("[Client] Compression: " + connection.compression().stats());
 			}
-			// e.g. "RESPONSE: OK" => "OK"
-			return line.substring("RESPONSE:".length()).trim();
+			connection.close();
 		}
 	}
 
 	// Testing
 	public static void main(String[] args) {
 		int numberOfLoops = 1, iterations = 1000000000;
+		boolean persistent = false, binary = false, pipelined = false;
+		String encodings = null;
+		int timeoutMillis = 0;
 		if (args.length != 0) {
 			numberOfLoops = Integer.parseInt(args[0]);
 			iterations = Integer.parseInt(args[1]);
 		}
+		for (int k = 2; k < args.length; k++) {
+			persistent |= "persistent".equals(args[k]);
+			binary |= "binary".equals(args[k]);
+			pipelined |= "pipelined".equals(args[k]);
+			if (args[k].startsWith("deadline=")) {
+				timeoutMillis = Integer.parseInt(args[k].substring("deadline=".length()));
+			}
+			if (args[k].startsWith("compress=")) {
+				encodings = args[k].substring("compress=".length());
+			}
+		}
 		String serverHost = Constants.IP.CLIENT_IP;
 		int serverPort = Constants.Ports.RPC_PORT;
 		List<Long> durations = new ArrayList<>();
-		SyncRPCClient client = new SyncRPCClient(serverHost, serverPort);
+		SyncRPCClient client;
+		try {
+			client = new SyncRPCClient(serverHost, serverPort, persistent, binary, encodings);
+			client.setTimeout(timeoutMillis);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
 
 		long startTimeAll = System.currentTimeMillis();
 		for (int i = 0; i < numberOfLoops; i++) {
 			try {
 				// Example calls
 				long startTime = System.currentTimeMillis();
-				client.handleFoo(iterations);
 				int a = (int) (Math.random() * 100000);
 				int b = (int) (Math.random() * 10000000);
-				int sum = client.handleAdd(a, b);
-				System.out.println("[Client Main] Sum from server: " + sum);
 				int[] arr = IntStream.generate(() -> new Random().nextInt(100) + 500).limit(200).toArray();
-				int[] sorted = client.handleSort(arr);
+				int sum;
+				int[] sorted;
+				if (pipelined) {
+					// All three in one burst; the answers come back in the same order
+					List<RpcResponse> responses = client.callPipelined(List.of(RpcRequest.of("foo", iterations),
+							RpcRequest.of("add", a, b), RpcRequest.of("sort", arr)));
+					System.out.println("[Client] foo(" + iterations + ") => " + responses.get(0).payload());
+					System.out.println("[Client] add(" + a + ", " + b + ") => " + responses.get(1).payload());
+					if (responses.get(1).values() == null || responses.get(2).values() == null) {
+						throw new IOException("Invalid response: " + responses.get(1).payload() + " / "
+								+ responses.get(2).payload());
+					}
+					sum = responses.get(1).values()[0];
+					sorted = responses.get(2).values();
+				} else {
+					client.handleFoo(iterations);
+					sum = client.handleAdd(a, b);
+					sorted = client.handleSort(arr);
+				}
+				System.out.println("[Client Main] Sum from server: " + sum);
 				long endTime = System.currentTimeMillis();
 				durations.add(endTime - startTime);
 				System.out.println("[Client Main] Sorted array from server: " + Arrays.toString(sorted));
@@ -116,6 +223,14 @@ public class SyncRPCClient {
 		}
 		long endTimeAll = System.currentTimeMillis();
 		long totalTime = endTimeAll - startTimeAll;
+		if (!persistent) {
+			System.out.println(ConnectionPool.shared().stats());
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 
 		System.out.println("[Client Main] Completed " + numberOfLoops + " calls to all operations");
 		System.out.println("[Client Main] Total time = " + totalTime + " ms");
@@ -1,10 +1,14 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SyncRPCServer {
@@ -12,85 +16,195 @@ public class SyncRPCServer {
 	private static final int PORT = Constants.Ports.RPC_PORT;
 	private static final AtomicBoolean running = new AtomicBoolean(true);
 
+	// Runs connection handlers and tagged requests; chosen with --executor
+	private static ExecutorService connectionExecutor;
+	private static ExecutorService requestExecutor;
+	// Encodings allowed with --compress, or null for any the client asks for
+	private static List<Compression.Encoding> compression;
+	// Results of pure methods, or null with --memo-size=0
+	private static MemoCache memo;
+	// Small tagged requests collected into micro-batches, or null without --batch
+	private static MicroBatcher<PendingCall> batcher;
+	// Methods cheap enough that the thread hop and the write cost more than the call
+	private static final BitSet batchedMethods = new BitSet();
+
+	static {
+		batchedMethods.set(MethodRegistry.ADD);
+	}
+
+	// A tagged request waiting in a micro-batch, with the connection to answer on
+	private record PendingCall(Codec codec, RpcRequest request, CancellationToken token) {
+	}
+
+	// Adding a method means registering it here
+	private static final MethodRegistry<RpcResponse> methods = MethodRegistry.forResponses()
+			.registerInt("foo", (requestId, iterations) -> {
+				// Pure, so a repeated foo(iterations) is answered from the memo cache
+				CancellationToken token = CancellationToken.current();
+				MemoCache.get(memo, MemoCache.Key.of(MethodRegistry.FOO, iterations),
+						() -> ExecutionStrategy.offloadCpu(() -> foo(iterations, token))); // do some heavy lifting
+				return RpcResponse.ofText(requestId, "OK");
+			})
+			.registerIntInt("add", (requestId, i, j) -> RpcResponse.ofValue(requestId, add(i, j))) // "8"
+			.registerIntArray("sort", (requestId, args) -> {
+				// args are a fresh array from the codec, so sort them in place
+				sort(args);
+				return RpcResponse.ofValues(requestId, args); // "[1, 2, 3, 5, 9]"
+			})
+			.registerNoArgs("stats", requestId -> RpcResponse.ofText(requestId, stats()));
+
 	public static void main(String[] args) {
-		System.out.println("[Server] Starting RPCServer on port " + PORT);
+		ServerOptions options = ServerOptions.parse(args);
+		memo = MemoCache.forOptions(options);
+		if (options.has("nio")) {
+			if (options.has("batch")) {
+				System.err.println("[Server] --batch is not supported with --nio, ignoring it");
+			}
+			startNio(options);
+			return;
+		}
+		// Only the blocking connections submit to it
+		batcher = MicroBatcher.forOptions("rpc", options, SyncRPCServer::runBatch);
+		compression = Compression.forOptions(options);
+		connectionExecutor = ExecutionStrategy.executorFor(options);
+		requestExecutor = ExecutionStrategy.executorFor(options);
+		System.out.println("[Server] Starting RPCServer on port " + PORT + " (executor: "
+				+ ExecutionStrategy.fromOptions(options) + ")");
 		try (ServerSocket serverSocket = new ServerSocket(PORT)) {
 			while (running.get()) {
 				// Accept a new client
 				Socket clientSocket = serverSocket.accept();
+				// Small responses and pushes must not wait for the client's delayed ACK
+				clientSocket.setTcpNoDelay(true);
 				System.out.println("[Server] Accepted connection from " + clientSocket.getInetAddress()
 						+ ":" + clientSocket.getPort());
 
-				// Handle each client connection in a separate thread
-				new Thread(() -> handleClient(clientSocket)).start();
+				// Handle each client connection on the configured executor
+				connectionExecutor.execute(() -> handleClient(clientSocket));
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			connectionExecutor.shutdown();
+			requestExecutor.shutdown();
+		}
+	}
+
+	// Non-blocking mode: a few I/O threads plus a worker pool for the methods themselves
+	private static void startNio(ServerOptions options) {
+		ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			new NioServer(PORT, new RpcNioHandler(SyncRPCServer::dispatch, workers),
+					options.getInt("io-threads", Constants.Config.IO_THREADS)).start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			workers.shutdown();
 		}
 	}
 
 	private static void handleClient(Socket clientSocket) {
-		try (Socket socket = clientSocket;
-		     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		     PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-			// Read exactly one request line
-			String request = in.readLine();
-			if (request == null || !request.startsWith("REQUEST:")) {
-				out.println("RESPONSE: ERROR - Invalid request");
-				return;
-			}
+		CancellationToken connectionToken = CancellationToken.create();
+		try (Socket socket = clientSocket) {
+			// An optional compression handshake, then the first byte decides between the text and the binary protocol
+			Compression.Streams streams = Compression.accept(socket.getInputStream(), socket.getOutputStream(),
+					compression);
+			Codec codec = Codec.open(streams.in(), streams.out());
 
-			// Example: "REQUEST: foo 100000"
-			//          "REQUEST: add 3 5"
-			//          "REQUEST: sort 5 9 1 3 2"
-			String[] parts = request.substring("REQUEST:".length()).trim().split("\\s+");
-			String methodName = parts[0];
-
-			String response;
-			switch (methodName) {
-				case "foo": {
-					// e.g. "foo 100000"
-					int iterations = Integer.parseInt(parts[1]);
-					foo(iterations); // do some heavy lifting
-					response = "OK";
-					break;
-				}
-				case "add": {
-					// e.g. "add 3 5"
-					int i = Integer.parseInt(parts[1]);
-					int j = Integer.parseInt(parts[2]);
-					int sum = add(i, j);
-					response = String.valueOf(sum); // "8"
-					break;
-				}
-				case "sort": {
-					// e.g. "sort 5 9 1 3 2"
-					int[] array = new int[parts.length - 1];
-					for (int k = 1; k < parts.length; k++) {
-						array[k - 1] = Integer.parseInt(parts[k]);
+			// Keep the connection open and serve requests until the client hangs up.
+			// Untagged requests are answered in order on this thread; tagged ones
+			// run concurrently and may be answered out of order.
+			RpcRequest request;
+			while ((request = codec.readRequest()) != null) {
+				// The deadline counts from here, so time spent queued is included
+				CancellationToken token = CancellationToken.forRequest(connectionToken, request);
+				if (request.isTagged()) {
+					RpcRequest tagged = request;
+					if (batcher == null || !batchedMethods.get(tagged.methodId())
+							|| !batcher.submit(new PendingCall(codec, tagged, token))) {
+						requestExecutor.execute(() -> reply(codec, execute(tagged, token)));
 					}
-					sort(array); // sort in-place
-					response = Arrays.toString(array); // "[1, 2, 3, 5, 9]"
-					break;
+				} else {
+					reply(codec, execute(request, token));
 				}
-				default:
-					response = "ERROR - Unknown method";
 			}
-
-			out.println("RESPONSE: " + response);
+			if (!streams.encoding().isIdentity()) {
+				System.out.println("[Server] Connection closed, " + streams.stats());
+			}
 
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			// Nobody is left to read the answers of tagged requests still running
+			connectionToken.cancel(CancellationToken.DISCONNECTED);
+		}
+	}
+
+	// Several request threads may share one connection, so writes are serialized
+	private static void reply(Codec codec, RpcResponse response) {
+		synchronized (codec) {
+			try {
+				codec.writeResponse(response);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Run a micro-batch back-to-back, then answer each connection's share with one write
+	private static void runBatch(List<PendingCall> batch) {
+		Map<Codec, List<RpcResponse>> byConnection = new IdentityHashMap<>();
+		for (PendingCall call : batch) {
+			byConnection.computeIfAbsent(call.codec(), codec -> new ArrayList<>()).add(execute(call.request(), call.token()));
+		}
+		byConnection.forEach((codec, responses) -> {
+			synchronized (codec) {
+				try {
+					codec.writeResponses(responses);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	// e.g. "memo=1 hits=8 ... rpc-batcher: 120 batches, ..."
+	private static String stats() {
+		return (memo != null ? memo.stats() : "memo=off") + (batcher != null ? " " + batcher.stats() : "")
+				+ " " + CancellationToken.stats();
+	}
+
+	// Entry point for the NIO handler, text or binary
+	private static RpcResponse dispatch(RpcRequest request, RpcNioHandler.Session session) {
+		return execute(request);
+	}
+
+	// Example: foo(100000), add(3, 5), sort(5, 9, 1, 3, 2)
+	static RpcResponse execute(RpcRequest request) {
+		return execute(request, CancellationToken.forRequest(null, request));
+	}
+
+	// Run with token as the current one; a cancelled computation answers "ERROR - <reason>"
+	private static RpcResponse execute(RpcRequest request, CancellationToken token) {
+		try {
+			token.throwIfCancelled();
+			return token.call(() -> methods.dispatch(request));
+		} catch (CancellationException e) {
+			return RpcResponse.ofText(request.requestId(), "ERROR - " + e.getMessage());
 		}
 	}
 
 	// Simulate a CPU-intensive method
-	private static void foo(int iterations) {
+	private static long foo(int iterations, CancellationToken token) {
+		CancellationToken.Work work = token.begin(iterations);
 		long dummy = 0;
 		for (int i = 0; i < iterations; i++) {
+			if ((i & CancellationToken.CHECKPOINT_MASK) == 0) {
+				work.checkpoint(i); // stop if the client gave up
+			}
 			dummy *= i; // do some dummy work
 		}
+		return dummy;
 	}
 
 	private static int add(int i, int j) {
@@ -98,6 +212,6 @@ public class SyncRPCServer {
 	}
 
 	private static void sort(int[] arr) {
-		Arrays.sort(arr);
+		SortEngine.sort(arr);
 	}
 }
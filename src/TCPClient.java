@@ -6,24 +6,33 @@ public class TCPClient {
 	static String fileName = "my_image.jpg";
 
 	public static void main(String[] args) {
+		ContentStore store = new ContentStore(Constants.FilePath.CLIENT_IMAGE_FOLDER);
+		String hash = store.hashOf(fileName);
 		try (Socket socket = new Socket(Constants.IP.LOCALHOST, Constants.Ports.SERVER_PORT)) {
 			PrintWriter outputWriter = new PrintWriter(socket.getOutputStream(), true);
-			outputWriter.println(fileName);
+			outputWriter.println(ContentHash.conditional(fileName, hash));
 
-			// Read server response
-			BufferedReader inputFromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			// Read server response; the header is read unbuffered so no file bytes are lost
+			InputStream socketInputFromServer = socket.getInputStream();
 
 			// Expect "FILENAME:<renamed>" or "ERROR:..."
-			String line = inputFromServer.readLine();
-			if (line.startsWith("ERROR")) {
+			String line = FileTransfer.readHeaderLine(socketInputFromServer);
+			if (line == null || line.startsWith("ERROR")) {
 				System.err.println("[Client] " + line);
 				return;
 			}
+			String unchanged = ContentHash.parseNotModified(line);
+			if (unchanged != null) {
+				File outputFile = new File(Constants.FilePath.CLIENT_IMAGE_FOLDER, unchanged);
+				store.checkout(hash, outputFile);
+				System.out.println("[Client] Not modified, linked from the store as: " + outputFile.getName());
+				return;
+			}
 
 			// Parse renamed filename
 			String renamed = line.split(":", 2)[1];
 			// Next line: "FILESIZE:<size>"
-			line = inputFromServer.readLine();
+			line = FileTransfer.readHeaderLine(socketInputFromServer);
 			long fileSize = 0;
 			if (line.startsWith("FILESIZE:")) {
 				fileSize = Long.parseLong(line.split(":", 2)[1]);
@@ -31,8 +40,8 @@ public class TCPClient {
 
 			// Receive file
 			File outputFile = new File(Constants.FilePath.CLIENT_IMAGE_FOLDER, renamed);
+			ContentStore.detach(outputFile);
 			FileOutputStream fos = new FileOutputStream(outputFile);
-			InputStream socketInputFromServer = socket.getInputStream();
 			byte[] buffer = new byte[Constants.Config.BUFFER_SIZE];
 			int totalRead = 0;
 			int bytesRead;
@@ -41,6 +50,7 @@ public class TCPClient {
 				totalRead += bytesRead;
 			}
 			fos.close();
+			store.store(outputFile, fileName);
 			System.out.println("[Client] File received and saved as: " + outputFile.getName()
 					+ " in path: " + outputFile.getCanonicalPath());
 		} catch (IOException e) {
@@ -1,49 +1,99 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 public class TCPServer {
 
-	final static int BUFFER_SIZE = 4096;
+	// false with --buffered: copy through a byte[] instead of FileChannel.transferTo
+	private static boolean zeroCopy = true;
+	// Hot images in memory, or null with --cache-size=0
+	private static FileCache cache;
 
 	public static void main(String[] args) {
-		try (ServerSocket serverSocket = new ServerSocket(Constants.Ports.SERVER_PORT)) {
-			System.out.println("[Server] TCP Server started on port " + Constants.Ports.SERVER_PORT + "...");
+		ServerOptions options = ServerOptions.parse(args);
+		zeroCopy = !options.has("buffered");
+		cache = FileCache.forOptions(Constants.FilePath.SERVER_IMAGE_FOLDER, options);
+		// Accepting through a channel gives every client socket a SocketChannel for transferTo
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			ServerSocket serverSocket = serverChannel.socket();
+			serverSocket.bind(new InetSocketAddress(Constants.Ports.SERVER_PORT));
+			System.out.println("[Server] TCP Server started on port " + Constants.Ports.SERVER_PORT + " ("
+					+ (zeroCopy ? "zero-copy" : "buffered") + ")...");
 
 			while (true) {
 				// Accept one client (single-threaded)
 				Socket clientSocket = serverSocket.accept();
 				System.out.println("[Server] Accepted a client: " + clientSocket.getRemoteSocketAddress() + "with inet address: " + clientSocket.getInetAddress());
 
-				// Create input/output streams
-				BufferedReader inputReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-				PrintWriter outputWriter = new PrintWriter(clientSocket.getOutputStream(), true);
+				// A bad request only fails its own client, never the accept loop
+				try {
+					handleClient(clientSocket);
+				} catch (IOException | RuntimeException e) {
+					System.err.println("[Server] Request failed: " + e);
+					sendError(clientSocket, e);
+				} finally {
+					clientSocket.close();
+				}
+			}
 
-				// Read a request line from the client
-				String clientInput = inputReader.readLine();
-				System.out.println("[Server] Client request: " + clientInput);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-				// "Rename" logic: for demonstration, we’ll just append
-				// the client’s remote port to the file name
-				String renamedFile = appendInfoToFileName(clientInput, clientSocket.getPort());
+	private static void handleClient(Socket clientSocket) throws IOException {
+		// Create input/output streams
+		BufferedReader inputReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+		PrintWriter outputWriter = new PrintWriter(clientSocket.getOutputStream(), true);
 
-				// Send the image
-				File file = new File(Constants.FilePath.SERVER_IMAGE_FOLDER, clientInput);
-				if (!file.exists()) {
-					// Simple error handling: notify client
-					System.err.println("[Server] File does not exist: " + file.getCanonicalPath());
-					outputWriter.println("ERROR: File not found");
-					clientSocket.close();
-					continue;
-				}
+		// Read a request line from the client
+		ContentHash.Conditional request = ContentHash.Conditional.parse(inputReader.readLine());
+		String clientInput = request.request();
+		if (clientInput == null) {
+			return; // closed without a request
+		}
+		System.out.println("[Server] Client request: " + clientInput);
 
-				sendFile(file, renamedFile, clientSocket);
+		// "Rename" logic: for demonstration, we’ll just append
+		// the client’s remote port to the file name
+		String renamedFile = appendInfoToFileName(clientInput, clientSocket.getPort());
+
+		// The client already has this exact content
+		if (request.notModified(new File(Constants.FilePath.SERVER_IMAGE_FOLDER, clientInput))) {
+			outputWriter.println(ContentHash.notModified(renamedFile));
+			System.out.println("[Server] Not modified: " + clientInput);
+			return;
+		}
 
-				clientSocket.close();
+		// Send the image, from memory when cached; files too large to cache go out with transferTo below
+		FileCache.CachedFile cached = cache != null ? cache.get(clientInput) : null;
+		if (cache != null && cached != FileCache.NOT_CACHEABLE) {
+			if (cached == null) {
+				System.err.println("[Server] File does not exist: " + clientInput);
+				outputWriter.println("ERROR: File not found");
+			} else {
+				sendFile(cached, renamedFile, clientSocket);
 			}
+			return;
+		}
+		File file = new File(Constants.FilePath.SERVER_IMAGE_FOLDER, clientInput);
+		if (!file.exists()) {
+			// Simple error handling: notify client
+			System.err.println("[Server] File does not exist: " + file.getCanonicalPath());
+			outputWriter.println("ERROR: File not found");
+			return;
+		}
 
-		} catch (IOException e) {
-			e.printStackTrace();
+		sendFile(file, renamedFile, clientSocket);
+	}
+
+	private static void sendError(Socket clientSocket, Exception e) {
+		try {
+			new PrintWriter(clientSocket.getOutputStream(), true).println("ERROR: " + e.getMessage());
+		} catch (IOException ignored) {
+			// the client is gone anyway
 		}
 	}
 
@@ -58,17 +108,19 @@ public class TCPServer {
 			outputWriter.println("FILESIZE:" + fileSize);
 
 			// Send file contents (binary)
-			BufferedInputStream fileIn = new BufferedInputStream(new FileInputStream(file));
-			OutputStream socketOut = clientSocket.getOutputStream();
-
-			byte[] buffer = new byte[BUFFER_SIZE];
-			int bytesRead;
-			while ((bytesRead = fileIn.read(buffer)) != -1) {
-				socketOut.write(buffer, 0, bytesRead);
-			}
+			FileTransfer.send(file, clientSocket, zeroCopy);
+			System.out.println("[Server] File sent to client with renamed: " + renamedFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-			socketOut.flush();
-			fileIn.close();
+	private static void sendFile(FileCache.CachedFile file, String renamedFile, Socket clientSocket) {
+		try {
+			PrintWriter outputWriter = new PrintWriter(clientSocket.getOutputStream(), true);
+			outputWriter.println("FILENAME:" + renamedFile);
+			outputWriter.println("FILESIZE:" + file.size());
+			FileTransfer.send(file, clientSocket, zeroCopy);
 			System.out.println("[Server] File sent to client with renamed: " + renamedFile);
 		} catch (IOException e) {
 			e.printStackTrace();
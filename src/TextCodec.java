@@ -0,0 +1,219 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * TextCodec - the original line-based RPC protocol
+ * <p>
+ * Protocol:
+ *  - "REQUEST: add 3 5"      -> "RESPONSE: 8"        (untagged, answered in order)
+ *  - "REQUEST#42: add 3 5"   -> "RESPONSE#42: 8"     (tagged, may be answered out of order)
+ *  - int arrays are written as "[1, 2, 3]", like Arrays.toString
+ *  - pushed results of background jobs: "RESULT <rpcId> <result>"
+ *  - an optional deadline ends the request: "REQUEST: foo 1000000000 DEADLINE:500" (ms)
+ * </p>
+ */
+public class TextCodec implements Codec {
+	public static final String REQUEST_TAG = "REQUEST#";
+	public static final String RESPONSE_TAG = "RESPONSE#";
+	public static final String RESULT_PUSH = "RESULT ";
+	public static final String DEADLINE = "DEADLINE:";
+
+	private final BufferedReader in;
+	private final BufferedWriter out;
+
+	public TextCodec(InputStream in, OutputStream out) {
+		this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public RpcRequest readRequest() throws IOException {
+		String line = in.readLine();
+		return line == null ? null : parseRequest(line);
+	}
+
+	@Override
+	public void writeRequest(RpcRequest request) throws IOException {
+		encodeRequest(request);
+		out.flush();
+	}
+
+	@Override
+	public void writeRequests(List<RpcRequest> requests) throws IOException {
+		for (RpcRequest request : requests) {
+			encodeRequest(request);
+		}
+		out.flush();
+	}
+
+	private void encodeRequest(RpcRequest request) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(request.isTagged() ? REQUEST_TAG + request.requestId() + ": " : "REQUEST: ");
+		sb.append(request.method());
+		if (request.args() != null) {
+			for (int arg : request.args()) {
+				sb.append(' ').append(arg);
+			}
+		}
+		if (request.timeoutMillis() > 0) {
+			sb.append(' ').append(DEADLINE).append(request.timeoutMillis());
+		}
+		out.write(sb.toString());
+		out.newLine();
+	}
+
+	@Override
+	public RpcResponse readResponse() throws IOException {
+		String line = in.readLine();
+		if (line == null) {
+			return null;
+		}
+		int requestId = 0;
+		String payload;
+		if (line.startsWith(RESULT_PUSH)) {
+			// "RESULT 1583 OK: foo=124999999750000000"
+			String[] parts = line.substring(RESULT_PUSH.length()).split(" ", 2);
+			try {
+				return RpcResponse.ofPushedResult(Integer.parseInt(parts[0]), parts.length > 1 ? parts[1] : "");
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid result push: " + line);
+			}
+		} else if (line.startsWith(RESPONSE_TAG)) {
+			int colon = line.indexOf(':');
+			try {
+				requestId = Integer.parseInt(line.substring(RESPONSE_TAG.length(), colon));
+			} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+				throw new IOException("Invalid response: " + line);
+			}
+			payload = line.substring(colon + 1).trim();
+		} else if (line.startsWith("RESPONSE:")) {
+			payload = line.substring("RESPONSE:".length()).trim();
+		} else {
+			throw new IOException("Invalid response: " + line);
+		}
+		return parsePayload(requestId, payload);
+	}
+
+	@Override
+	public void writeResponse(RpcResponse response) throws IOException {
+		encodeResponse(response);
+		out.flush();
+	}
+
+	@Override
+	public void writeResponses(List<RpcResponse> responses) throws IOException {
+		for (RpcResponse response : responses) {
+			encodeResponse(response);
+		}
+		out.flush();
+	}
+
+	private void encodeResponse(RpcResponse response) throws IOException {
+		if (response.isPushedResult()) {
+			out.write(RESULT_PUSH + response.requestId() + " " + response.payload());
+			out.newLine();
+			return;
+		}
+		String prefix = response.requestId() != 0 ? RESPONSE_TAG + response.requestId() + ": " : "RESPONSE: ";
+		out.write(prefix + response.payload());
+		out.newLine();
+	}
+
+	/**
+	 * "REQUEST: sort 5 9 1" or "REQUEST#7: sort 5 9 1" -> RpcRequest.
+	 * Malformed lines give a request with a null method.
+	 */
+	public static RpcRequest parseRequest(String line) {
+		if (line.startsWith(REQUEST_TAG)) {
+			int colon = line.indexOf(':');
+			int requestId;
+			try {
+				requestId = Integer.parseInt(line.substring(REQUEST_TAG.length(), colon));
+			} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+				return new RpcRequest(0, null, null);
+			}
+			return parseBody(requestId, line.substring(colon + 1));
+		}
+		if (line.startsWith("REQUEST:")) {
+			return parseBody(0, line.substring("REQUEST:".length()));
+		}
+		return new RpcRequest(0, null, null);
+	}
+
+	/**
+	 * "sort 5 9 1" -> RpcRequest. Unparseable arguments give a request with null args.
+	 */
+	public static RpcRequest parseBody(int requestId, String body) {
+		String[] parts = body.trim().split("\\s+");
+		int count = parts.length;
+		int timeoutMillis = 0;
+		if (count > 1 && parts[count - 1].startsWith(DEADLINE)) {
+			try {
+				timeoutMillis = Integer.parseInt(parts[--count].substring(DEADLINE.length()));
+			} catch (NumberFormatException e) {
+				return new RpcRequest(requestId, parts[0], null);
+			}
+		}
+		int[] args = new int[count - 1];
+		try {
+			for (int k = 1; k < count; k++) {
+				args[k - 1] = Integer.parseInt(parts[k]);
+			}
+		} catch (NumberFormatException e) {
+			args = null;
+		}
+		RpcRequest request = new RpcRequest(requestId, parts[0], args);
+		return timeoutMillis > 0 ? request.withTimeout(timeoutMillis) : request;
+	}
+
+	// "[1, 2, 3]" -> ints, "8" -> int, anything else -> text
+	static RpcResponse parsePayload(int requestId, String payload) {
+		if (payload.startsWith("[") && payload.endsWith("]")) {
+			String inner = payload.substring(1, payload.length() - 1).trim();
+			if (inner.isEmpty()) {
+				return RpcResponse.ofValues(requestId, new int[0]);
+			}
+			String[] parts = inner.split(",");
+			int[] values = new int[parts.length];
+			try {
+				for (int i = 0; i < parts.length; i++) {
+					values[i] = Integer.parseInt(parts[i].trim());
+				}
+				return RpcResponse.ofValues(requestId, values);
+			} catch (NumberFormatException e) {
+				return RpcResponse.ofText(requestId, payload);
+			}
+		}
+		if (looksLikeInt(payload)) {
+			try {
+				return RpcResponse.ofValue(requestId, Integer.parseInt(payload));
+			} catch (NumberFormatException e) {
+				// e.g. out of int range, keep it as text
+			}
+		}
+		return RpcResponse.ofText(requestId, payload);
+	}
+
+	private static boolean looksLikeInt(String s) {
+		if (s.isEmpty()) {
+			return false;
+		}
+		int start = s.charAt(0) == '-' ? 1 : 0;
+		if (start == s.length()) {
+			return false;
+		}
+		for (int i = start; i < s.length(); i++) {
+			if (!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,80 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TokenBucket - paces a byte stream to a target rate
+ * <p>
+ * Tokens (bytes) refill continuously at the rate, up to burstBytes. Sending
+ * n bytes takes n tokens; the balance may go negative (e.g. for an unpaced
+ * retransmission), which simply delays the following sends. A rate of 0
+ * means unlimited. Not thread-safe: use one bucket per transfer.
+ * </p>
+ */
+public class TokenBucket {
+	private double bytesPerNano;
+	private final double burstBytes;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * Fixed-rate pacer for one legacy UDP download, from --udp-rate (MB/s, 0 = unpaced).
+	 */
+	public static TokenBucket forOptions(ServerOptions options) {
+		long megabytes = Math.max(0, options.getInt("udp-rate", Constants.Config.UDP_RATE_MB));
+		return new TokenBucket(megabytes * 1024.0 * 1024.0, 4L * Constants.Config.BUFFER_SIZE);
+	}
+
+	public TokenBucket(double bytesPerSecond, long burstBytes) {
+		this.burstBytes = burstBytes;
+		this.tokens = burstBytes;
+		setRate(bytesPerSecond);
+	}
+
+	public void setRate(double bytesPerSecond) {
+		refill(System.nanoTime());
+		this.bytesPerNano = bytesPerSecond / 1_000_000_000.0;
+	}
+
+	public double rateBytesPerSecond() {
+		return bytesPerNano * 1_000_000_000.0;
+	}
+
+	/**
+	 * @return nanos until bytes can be sent, 0 if they can go now
+	 */
+	public long nanosUntil(int bytes, long now) {
+		if (bytesPerNano <= 0) {
+			return 0;
+		}
+		refill(now);
+		if (tokens >= bytes) {
+			return 0;
+		}
+		return (long) Math.ceil((bytes - tokens) / bytesPerNano);
+	}
+
+	public void consume(int bytes, long now) {
+		if (bytesPerNano <= 0) {
+			return;
+		}
+		refill(now);
+		tokens = Math.max(-burstBytes, tokens - bytes);
+	}
+
+	/**
+	 * Block until bytes may be sent, then take them.
+	 */
+	public void acquire(int bytes) {
+		long now = System.nanoTime();
+		long wait;
+		while ((wait = nanosUntil(bytes, now)) > 0) {
+			LockSupport.parkNanos(wait);
+			now = System.nanoTime();
+		}
+		consume(bytes, now);
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(burstBytes, tokens + (now - lastRefill) * bytesPerNano);
+		lastRefill = now;
+	}
+}
@@ -12,9 +12,11 @@ public class UDPClient {
 	static String fileName = "my_image.jpg";
 
 	public static void main(String[] args) {
+		ContentStore store = new ContentStore(Constants.FilePath.CLIENT_IMAGE_FOLDER);
+		String hash = store.hashOf(fileName);
 		try (DatagramSocket socket = new DatagramSocket()) {
-			// Send filename to the UDP Server
-			byte[] sendData = fileName.getBytes();
+			// Send filename to the UDP Server, with the hash of the copy we already have
+			byte[] sendData = ContentHash.conditional(fileName, hash).getBytes();
 			InetAddress serverAddress = InetAddress.getByName(UDP_SERVER_IP);
 			DatagramPacket requestPacket = new DatagramPacket(sendData, sendData.length, serverAddress, UDP_SERVER_PORT);
 			socket.send(requestPacket);
@@ -29,6 +31,12 @@ public class UDPClient {
 				System.err.println("[Client] " + header);
 				return;
 			}
+			String unchanged = ContentHash.parseNotModified(header);
+			if (unchanged != null) {
+				store.checkout(hash, new File(Constants.FilePath.CLIENT_IMAGE_FOLDER, unchanged));
+				System.out.println("[Client] Not modified, linked from the store as: " + unchanged);
+				return;
+			}
 			// Parse
 			// e.g. "FILENAME:picture_12345.jpg:FILESIZE:12500"
 			String[] parts = header.split(":");
@@ -37,6 +45,7 @@ public class UDPClient {
 
 			// Start receiving file data
 			File outputFile = new File(Constants.FilePath.CLIENT_IMAGE_FOLDER, renamed);
+			ContentStore.detach(outputFile);
 			FileOutputStream fileOutputStream = new FileOutputStream(outputFile);
 			long totalReceived = 0;
 
@@ -50,6 +59,7 @@ public class UDPClient {
 			}
 
 			fileOutputStream.close();
+			store.store(outputFile, fileName);
 			System.out.println("[Client] File received and saved as: " + renamed);
 
 		} catch (IOException e) {
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class UDPServer {
 
@@ -12,6 +13,9 @@ public class UDPServer {
 	static final int UDP_SERVER_PORT = Constants.Ports.SERVER_PORT;
 
 	public static void main(String[] args) {
+		// Hot images in memory, or null with --cache-size=0
+		ServerOptions options = ServerOptions.parse(args);
+		FileCache cache = FileCache.forOptions(Constants.FilePath.SERVER_IMAGE_FOLDER, options);
 		try (DatagramSocket socket = new DatagramSocket(UDP_SERVER_PORT)) {
 			System.out.println("[Server] UDP Server listening on port " + UDP_SERVER_PORT);
 			byte[] receiveBuffer = new byte[BUFFER_SIZE];
@@ -24,7 +28,30 @@ public class UDPServer {
 				int clientPort = requestPacket.getPort();
 
 				// Extract filename
-				String requestedFile = new String(requestPacket.getData(), 0, requestPacket.getLength()).trim();
+				ContentHash.Conditional request = ContentHash.Conditional.parse(
+						new String(requestPacket.getData(), 0, requestPacket.getLength()).trim());
+				String requestedFile = request.request();
+				if (request.notModified(new File(Constants.FilePath.SERVER_IMAGE_FOLDER, requestedFile))) {
+					byte[] reply = ContentHash.notModified(appendInfoToFileName(requestedFile, clientPort)).getBytes();
+					socket.send(new DatagramPacket(reply, reply.length, clientAddress, clientPort));
+					continue;
+				}
+
+				// No feedback from the client: pace at a fixed --udp-rate so its receive buffer keeps up
+				TokenBucket pacer = TokenBucket.forOptions(options);
+				if (cache != null) {
+					try {
+						if (sendCached(socket, cache, pacer, requestedFile, clientAddress, clientPort)) {
+							continue;
+						}
+					} catch (IOException | RuntimeException e) {
+						// A file that cannot be loaded fails this request, not the server
+						System.err.println("[Server] Request failed: " + e);
+						byte[] errorData = ("ERROR: " + e.getMessage()).getBytes();
+						socket.send(new DatagramPacket(errorData, errorData.length, clientAddress, clientPort));
+						continue;
+					}
+				}
 
 				File file = new File(Constants.FilePath.SERVER_IMAGE_FOLDER, requestedFile);
 				if (!file.exists()) {
@@ -51,6 +78,7 @@ public class UDPServer {
 					byte[] sendBuffer = new byte[BUFFER_SIZE];
 					int bytesRead;
 					while ((bytesRead = bis.read(sendBuffer)) != -1) {
+						pacer.acquire(bytesRead);
 						DatagramPacket dataPacket = new DatagramPacket(
 								sendBuffer, bytesRead, clientAddress, clientPort);
 						socket.send(dataPacket);
@@ -63,6 +91,34 @@ public class UDPServer {
 		}
 	}
 
+	// Same replies as the disk path, served from memory; false if the file is too large to cache
+	private static boolean sendCached(DatagramSocket socket, FileCache cache, TokenBucket pacer, String requestedFile,
+	                                  InetAddress clientAddress, int clientPort) throws IOException {
+		FileCache.CachedFile cached = cache.get(requestedFile);
+		if (cached == FileCache.NOT_CACHEABLE) {
+			return false;
+		}
+		if (cached == null) {
+			byte[] errorData = "ERROR: File not found".getBytes();
+			socket.send(new DatagramPacket(errorData, errorData.length, clientAddress, clientPort));
+			return true;
+		}
+		String renamedFile = appendInfoToFileName(requestedFile, clientPort);
+		byte[] headerData = ("FILENAME:" + renamedFile + ":FILESIZE:" + cached.size()).getBytes();
+		socket.send(new DatagramPacket(headerData, headerData.length, clientAddress, clientPort));
+
+		ByteBuffer content = cached.content();
+		byte[] sendBuffer = new byte[BUFFER_SIZE];
+		while (content.hasRemaining()) {
+			int length = Math.min(sendBuffer.length, content.remaining());
+			content.get(sendBuffer, 0, length);
+			pacer.acquire(length);
+			socket.send(new DatagramPacket(sendBuffer, length, clientAddress, clientPort));
+		}
+		System.out.println("Sent file: " + requestedFile + " as " + renamedFile);
+		return true;
+	}
+
 	private static String appendInfoToFileName(String requestedFile, int port) {
 		int dotIndex = requestedFile.lastIndexOf('.');
 		if (dotIndex == -1) {
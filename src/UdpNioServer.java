@@ -0,0 +1,488 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * UdpNioServer - selector-based core for the UDP file server
+ * <p>
+ * Every socket is a non-blocking {@link DatagramChannel} owned by one I/O
+ * thread ("event loop"). Transfers live in a session table keyed by client
+ * address; the loop that received a request sends all of that transfer's
+ * datagrams, paced by timers instead of a sleeping thread, so thousands of
+ * concurrent downloads cost a session each rather than a thread each.
+ * Requests (file lookups, possibly hitting the disk) go to a fixed pool of
+ * worker threads. Datagrams are received into pooled direct buffers, and
+ * file bodies are sent straight from the cached or memory-mapped content.
+ * </p>
+ * <p>
+ * Protocol: the same as MultiThreadedUDPServer, i.e. a plain file name gets
+ * "FILENAME:x FILESIZE:y" and the raw chunks paced at --udp-rate, and
+ * "RELIABLE <name>" gets a {@link ReliableUdpSender} transfer.
+ * With --reuse-port the server binds one SO_REUSEPORT socket per I/O thread
+ * (--io-threads, default one per core) and the kernel spreads clients over
+ * them; otherwise a single socket and loop serve everybody.
+ * </p>
+ */
+public class UdpNioServer {
+	// Largest datagram we ever receive or send
+	private static final int DATAGRAM_SIZE = ReliableUdp.DATA_HEADER_SIZE + ReliableUdp.CHUNK_SIZE;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+	private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+	// Timers closer than this are waited out with parkNanos, select() only has millisecond resolution
+	private static final long PARK_THRESHOLD_NANOS = 1_000_000L;
+	// Log the session table and buffer pool every this many transfers
+	private static final int STATS_EVERY = 1000;
+
+	private final int port;
+	private final String folder;
+	private final BiFunction<String, Integer, String> renamer;
+	private final FileCache cache;
+	private final ServerOptions options;
+	private final boolean reusePort;
+	private final int ioThreads;
+	private final int workerCount;
+	private final ExecutorService workers;
+	private final DirectBufferPool buffers = new DirectBufferPool(DATAGRAM_SIZE, MAX_POOLED_BUFFERS);
+	private final ConcurrentHashMap<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
+	private final AtomicInteger completed = new AtomicInteger();
+	private volatile boolean running = true;
+	private EventLoop[] loops;
+
+	/**
+	 * @param renamer (requestedFile, clientPort) -> file name reported to the client
+	 * @param cache   serve hot files from memory, or null to map every file from disk
+	 */
+	public UdpNioServer(int port, String folder, BiFunction<String, Integer, String> renamer, FileCache cache,
+	                    ServerOptions options) {
+		this.port = port;
+		this.folder = folder;
+		this.renamer = renamer;
+		this.cache = cache;
+		this.options = options;
+		this.reusePort = options.has("reuse-port") && reusePortSupported();
+		this.ioThreads = reusePort
+				? Math.max(1, options.getInt("io-threads", Runtime.getRuntime().availableProcessors())) : 1;
+		this.workerCount = Math.max(1, options.getInt("workers", Runtime.getRuntime().availableProcessors()));
+		AtomicInteger workerIds = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+			Thread thread = new Thread(runnable, "udp-worker-" + workerIds.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Bind the sockets, start the I/O threads and block until the server stops.
+	 */
+	public void start() throws IOException {
+		loops = new EventLoop[ioThreads];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(openChannel());
+		}
+		System.out.println("[UdpNioServer] Listening on port " + port + " with " + loops.length + " socket(s)"
+				+ (reusePort ? " (SO_REUSEPORT)" : "") + ", " + workerCount + " workers");
+		Thread[] threads = new Thread[loops.length];
+		for (int i = 0; i < loops.length; i++) {
+			threads[i] = new Thread(loops[i], "udp-io-" + i);
+			loops[i].thread = threads[i];
+			threads[i].start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			stop();
+		}
+	}
+
+	public void stop() {
+		running = false;
+		workers.shutdown();
+		if (loops != null) {
+			for (EventLoop loop : loops) {
+				if (loop != null) {
+					loop.selector.wakeup();
+				}
+			}
+		}
+	}
+
+	private static boolean reusePortSupported() {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				return true;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		System.err.println("[UdpNioServer] SO_REUSEPORT is not supported here, using a single socket");
+		return false;
+	}
+
+	private DatagramChannel openChannel() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		if (reusePort) {
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		return channel;
+	}
+
+	/**
+	 * "sessions=12 completed=3400 buffers=18"
+	 */
+	public String stats() {
+		return "sessions=" + sessions.size() + " completed=" + completed.get() + " buffers=" + buffers.allocated();
+	}
+
+	// On a worker: parse the request, find the content, then hand the transfer to the loop
+	private void handleRequest(EventLoop loop, SocketAddress client, ByteBuffer datagram) {
+		String request;
+		try {
+			request = StandardCharsets.UTF_8.decode(datagram).toString().trim();
+		} finally {
+			buffers.release(datagram);
+		}
+		System.out.println("[UdpNioServer] Client requests: " + request + " from " + client);
+		ContentHash.Conditional conditional = ContentHash.Conditional.parse(request);
+		request = conditional.request();
+		boolean reliable = request.startsWith(ReliableUdp.REQUEST_PREFIX);
+		String requestedFile = reliable ? request.substring(ReliableUdp.REQUEST_PREFIX.length()).trim() : request;
+		if (conditional.notModified(new File(folder, requestedFile))) {
+			String reply = ContentHash.notModified(renamer.apply(requestedFile, ((InetSocketAddress) client).getPort()));
+			loop.execute(() -> loop.sendText(client, reply));
+			return;
+		}
+		// A repeated request needs nothing from the disk: the running session has the header
+		Session existing = sessions.get(client);
+		if (existing != null) {
+			existing.repeated();
+			return;
+		}
+		try {
+			ByteBuffer content = content(requestedFile);
+			if (content == null) {
+				loop.execute(() -> loop.sendText(client, "ERROR: File not found"));
+				return;
+			}
+			String renamedFile = renamer.apply(requestedFile, ((InetSocketAddress) client).getPort());
+			Session session = new Session(loop, client, renamedFile, content, reliable);
+			existing = sessions.putIfAbsent(client, session);
+			if (existing != null) {
+				existing.repeated();
+				return;
+			}
+			loop.execute(() -> {
+				loop.sendText(client, session.header());
+				loop.service(session, System.nanoTime());
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Whole file as a buffer: from the cache, or memory-mapped from disk if uncached or too large to cache
+	private ByteBuffer content(String requestedFile) throws IOException {
+		FileCache.CachedFile cached = cache != null ? cache.get(requestedFile) : null;
+		if (cache != null && cached != FileCache.NOT_CACHEABLE) {
+			return cached == null ? null : cached.content();
+		}
+		File file = new File(folder, requestedFile);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * One transfer to one client, driven by the loop that owns it.
+	 */
+	private final class Session {
+		final EventLoop loop;
+		final SocketAddress client;
+		final String fileName;
+		final long startedAt = System.nanoTime();
+		// Reliable mode
+		final ReliableUdpSender sender;
+		// Legacy mode: the unsent rest of the file, paced at --udp-rate
+		final ByteBuffer content;
+		final TokenBucket pacer;
+		final long size;
+
+		long dueAt;
+		boolean blocked;
+		boolean finished;
+
+		Session(EventLoop loop, SocketAddress client, String fileName, ByteBuffer content, boolean reliable) {
+			this.loop = loop;
+			this.client = client;
+			this.fileName = fileName;
+			this.size = content.remaining();
+			if (reliable) {
+				this.sender = new ReliableUdpSender((frame, length) -> loop.send(client, frame, length), content);
+				this.content = null;
+				this.pacer = null;
+			} else {
+				this.sender = null;
+				this.content = content.duplicate();
+				this.pacer = TokenBucket.forOptions(options);
+			}
+		}
+
+		String header() {
+			return "FILENAME:" + fileName + " FILESIZE:" + size + (sender != null ? " CHUNKS:" + sender.chunks() : "");
+		}
+
+		// The client asked again: a reliable one lost the header, a legacy one gets nothing new
+		void repeated() {
+			if (sender != null) {
+				loop.execute(() -> loop.sendText(client, header()));
+			}
+		}
+
+		/**
+		 * Send whatever is due. Sets blocked when the socket's send buffer is full.
+		 *
+		 * @return false once the transfer is over
+		 */
+		boolean pump(long now) throws IOException {
+			if (sender != null) {
+				// A full send buffer just drops the frame; the retransmission timer covers it
+				return sender.pump(now) && !sender.isIdle(now);
+			}
+			while (content.hasRemaining()) {
+				int length = Math.min(Constants.Config.BUFFER_SIZE, content.remaining());
+				if (pacer.nanosUntil(length, now) > 0) {
+					return true;
+				}
+				if (loop.channel.send(content.slice(content.position(), length), client) == 0) {
+					blocked = true;
+					return true;
+				}
+				content.position(content.position() + length);
+				pacer.consume(length, now);
+			}
+			return false;
+		}
+
+		long nanosUntilNextSend(long now) {
+			if (sender != null) {
+				return sender.nanosUntilNextSend(now);
+			}
+			return pacer.nanosUntil(Math.min(Constants.Config.BUFFER_SIZE, content.remaining()), now);
+		}
+
+		String summary() {
+			if (sender != null) {
+				return "Reliable " + (sender.isComplete() ? "sent " : "gave up on ") + fileName + ": " + sender.stats();
+			}
+			double seconds = Math.max(1, System.nanoTime() - startedAt) / 1_000_000_000.0;
+			return String.format("File sent: %s (%d bytes at %.1fMB/s)", fileName, size, size / seconds / (1024 * 1024));
+		}
+	}
+
+	private record Timer(long dueAt, Session session) {
+	}
+
+	/**
+	 * One I/O thread: a socket, its selector, the timers of its sessions and
+	 * a queue of tasks submitted from other threads.
+	 */
+	private final class EventLoop implements Runnable {
+		private final DatagramChannel channel;
+		private final Selector selector;
+		private final SelectionKey key;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final PriorityQueue<Timer> timers = new PriorityQueue<>((a, b) -> Long.compare(a.dueAt, b.dueAt));
+		// Sessions waiting for room in the socket's send buffer
+		private final Queue<Session> blocked = new ArrayDeque<>();
+		// Only touched on this loop's thread
+		private final ByteBuffer sendBuffer = buffers.acquire();
+		private final byte[] ackFrame = new byte[ReliableUdp.ACK_SIZE];
+		private volatile Thread thread;
+
+		EventLoop(DatagramChannel channel) throws IOException {
+			this.channel = channel;
+			this.selector = Selector.open();
+			this.key = channel.register(selector, SelectionKey.OP_READ);
+		}
+
+		void execute(Runnable task) {
+			if (Thread.currentThread() == thread) {
+				task.run();
+			} else {
+				tasks.add(task);
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer datagram = buffers.acquire();
+			while (running) {
+				try {
+					long wait = runTimers(System.nanoTime());
+					if (wait < 0) {
+						selector.select();
+					} else if (wait >= PARK_THRESHOLD_NANOS) {
+						selector.select(wait / 1_000_000);
+					} else {
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+						}
+						selector.selectNow();
+					}
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					if (!key.isValid()) {
+						break;
+					}
+					if (key.isWritable()) {
+						key.interestOps(SelectionKey.OP_READ);
+						long now = System.nanoTime();
+						for (int i = blocked.size(); i > 0; i--) {
+							Session session = blocked.poll();
+							session.blocked = false;
+							service(session, now);
+						}
+					}
+					if (key.isReadable()) {
+						datagram = receiveAll(datagram);
+					}
+					selector.selectedKeys().clear();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			buffers.release(datagram);
+			try {
+				selector.close();
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// ACKs are applied right here; requests go to a worker together with their buffer
+		private ByteBuffer receiveAll(ByteBuffer datagram) throws IOException {
+			SocketAddress client;
+			while ((client = channel.receive(datagram)) != null) {
+				datagram.flip();
+				int length = datagram.remaining();
+				if (length == ReliableUdp.ACK_SIZE) {
+					datagram.get(ackFrame);
+					if (ReliableUdp.isAck(ackFrame, 0, length)) {
+						Session session = sessions.get(client);
+						if (session != null && session.sender != null) {
+							onAck(session, session.loop == this ? ackFrame : ackFrame.clone());
+						}
+						datagram.clear();
+						continue;
+					}
+					datagram.rewind();
+				}
+				ByteBuffer request = datagram;
+				SocketAddress from = client;
+				workers.execute(() -> handleRequest(this, from, request));
+				datagram = buffers.acquire();
+			}
+			return datagram;
+		}
+
+		// Sessions are only serviced by their own loop, which an ACK may have bypassed on another socket
+		private void onAck(Session session, byte[] ack) {
+			session.loop.execute(() -> {
+				session.sender.onAck(ack, 0, ack.length);
+				session.loop.service(session, System.nanoTime());
+			});
+		}
+
+		// Service every session whose timer is due; nanos until the next one, or -1 if none
+		private long runTimers(long now) {
+			Timer timer;
+			while ((timer = timers.peek()) != null && timer.dueAt <= now) {
+				timers.poll();
+				Session session = timer.session;
+				if (!session.finished && !session.blocked && session.dueAt == timer.dueAt) {
+					service(session, now);
+				}
+			}
+			return timer == null ? -1 : timer.dueAt - now;
+		}
+
+		void service(Session session, long now) {
+			if (session.finished || session.blocked) {
+				return;
+			}
+			try {
+				if (!session.pump(now)) {
+					finish(session);
+					return;
+				}
+				if (session.blocked) {
+					blocked.add(session);
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				session.dueAt = now + session.nanosUntilNextSend(now);
+				timers.add(new Timer(session.dueAt, session));
+			} catch (IOException e) {
+				e.printStackTrace();
+				finish(session);
+			}
+		}
+
+		private void finish(Session session) {
+			session.finished = true;
+			sessions.remove(session.client, session);
+			System.out.println("[UdpNioServer] " + session.summary());
+			if (completed.incrementAndGet() % STATS_EVERY == 0) {
+				System.out.println("[UdpNioServer] " + stats());
+			}
+		}
+
+		void send(SocketAddress client, byte[] data, int length) throws IOException {
+			sendBuffer.clear();
+			sendBuffer.put(data, 0, length).flip();
+			channel.send(sendBuffer, client);
+		}
+
+		void sendText(SocketAddress client, String text) {
+			try {
+				byte[] data = text.getBytes(StandardCharsets.UTF_8);
+				send(client, data, data.length);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}